@@ -0,0 +1,157 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//This Function gets the messages of the error streams from Service Connector Hub and sends one
+//notification per failure digest to the ErrorTopic, in place of one notification per message.
+//The Service Connectors batch the messages of error_digest_window_seconds into one call, and the
+//messages of a call are grouped by error stream, target host and status code, see FailureDigest.
+//When a target is down, its thousands of failed messages become a few notifications per window.
+//At most error_digest_max_notifications are sent per call. The digests with the fewest messages
+//beyond it are sent together as one notification that lists their groups and counts.
+//If a notification cannot be published, the call fails, so that Service Connector Hub retries it.
+//The digests published by the failed call are remembered by the function instance, keyed by
+//their stream, target host, status code and offsets, and are not published again when the same
+//messages come back. A retry that runs on another instance publishes them a second time.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.oracle.bmc.auth.ResourcePrincipalAuthenticationDetailsProvider;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.ons.NotificationDataPlaneClient;
+import com.oracle.bmc.ons.model.MessageDetails;
+import com.oracle.bmc.ons.requests.PublishMessageRequest;
+
+public class ErrorDigestFunction {
+
+	private static final EventLog EVENTS = EventLog.get(ErrorDigestFunction.class);
+	private static final String TOPIC_OCID = System.getenv().get("error_digest_topic_ocid");
+	private static final int MAX_NOTIFICATIONS = Math.max(1,
+			Integer.parseInt(System.getenv().getOrDefault("error_digest_max_notifications", "20")));
+	// the ids of the last digests published, oldest first
+	private static final int PUBLISHED_IDS = 1000;
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final Set<String> PUBLISHED = Collections
+			.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > PUBLISHED_IDS;
+				}
+			}));
+
+	private final ResourcePrincipalAuthenticationDetailsProvider provider = ResourcePrincipalAuthenticationDetailsProvider
+			.builder().build();
+
+	/**
+	 * @param incomingMessage The stream messages passed by Service Connector Hub
+	 * @return String
+	 * @throws IOException If the messages are not JSON
+	 *
+	 *                     This is the entry point of the function execution.
+	 */
+	public String handleRequest(String incomingMessage) throws IOException {
+
+		if (TOPIC_OCID == null || TOPIC_OCID.isEmpty()) {
+			throw new IllegalStateException("error_digest_topic_ocid is not configured.");
+		}
+
+		try {
+			JsonNode records = OBJECT_MAPPER.readTree(incomingMessage);
+			List<FailureDigest> digests = FailureDigest.digest(records);
+			int failed = 0;
+			int skipped = 0;
+
+			try (NotificationDataPlaneClient notificationClient = NotificationDataPlaneClient.builder()
+					.build(provider)) {
+
+				// the last notification lists the remaining digests if there are too many
+				int notified = digests.size() <= MAX_NOTIFICATIONS ? digests.size() : MAX_NOTIFICATIONS - 1;
+				for (FailureDigest digest : digests.subList(0, notified)) {
+					if (PUBLISHED.contains(digest.id())) {
+						skipped++;
+					} else if (!publish(notificationClient, digest.id(), digest.title(), digest.toJson())) {
+						failed++;
+					}
+				}
+				List<FailureDigest> remaining = digests.subList(notified, digests.size());
+				String remainingId = remaining.stream().map(FailureDigest::id).collect(Collectors.joining("\n"));
+				if (!remaining.isEmpty() && PUBLISHED.contains(remainingId)) {
+					skipped++;
+				} else if (!remaining.isEmpty() && !publish(notificationClient, remainingId,
+						remainingTitle(remaining), remainingSummary(remaining))) {
+					failed++;
+				}
+			}
+
+			EVENTS.info("digests_published", "messages", records.size(), "digests", digests.size(), "failed",
+					failed, "alreadyPublished", skipped);
+			if (failed > 0) {
+				throw new IllegalStateException(failed + " failure digests could not be published.");
+			}
+			return "success";
+
+		} finally {
+			EventLog.flush();
+		}
+	}
+
+	/**
+	 * @param notificationClient
+	 * @param id                 The id the notification is remembered by
+	 * @param title
+	 * @param body
+	 * @return boolean Returns true if the notification was published
+	 */
+	private boolean publish(NotificationDataPlaneClient notificationClient, String id, String title,
+			ObjectNode body) {
+
+		try {
+			notificationClient.publishMessage(PublishMessageRequest.builder().topicId(TOPIC_OCID)
+					.messageDetails(MessageDetails.builder().title(title)
+							.body(OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(body)).build())
+					.build());
+			PUBLISHED.add(id);
+			return true;
+		} catch (IOException | BmcException e) {
+			EVENTS.failure("digest_publish_failed", e, "title", title);
+			return false;
+		}
+	}
+
+	private static String remainingTitle(List<FailureDigest> remaining) {
+
+		long messages = remaining.stream().mapToLong(FailureDigest::getMessages).sum();
+		return messages + " more failed messages in " + remaining.size() + " other target host and status groups";
+	}
+
+	/**
+	 * @param remaining
+	 * @return ObjectNode The stream, target host, status code and no. of messages
+	 *         of each digest that was not sent on its own
+	 */
+	private static ObjectNode remainingSummary(List<FailureDigest> remaining) {
+
+		ObjectNode summary = OBJECT_MAPPER.createObjectNode();
+		summary.put("messages", remaining.stream().mapToLong(FailureDigest::getMessages).sum());
+		ArrayNode groups = summary.putArray("groups");
+		for (FailureDigest digest : remaining) {
+			groups.addObject().put("stream", digest.getStream()).put("targetHost", digest.getTargetHost())
+					.put("statusCode", digest.getStatusCode()).put("messages", digest.getMessages());
+		}
+		return summary;
+	}
+
+}
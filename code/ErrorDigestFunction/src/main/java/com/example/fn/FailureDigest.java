@@ -0,0 +1,222 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The summary of the failed messages of an error stream that have the same target host and status
+//code, e.g.
+//{"stream": "ServerUnavailableStream", "targetHost": "orders.example.com", "statusCode": 503,
+// "messages": 1250, "firstFailure": "2022-10-10T09:00:02Z", "lastFailure": "2022-10-10T09:00:58Z",
+// "sampleKeys": ["order-1", "order-7"], "offsets": {"0": {"from": 1200, "to": 2449}},
+// "sampleErrorBody": "{\"error\": ...}"}
+//The status code is the lastStatusCode of the retryMetadata of the messages, 0 if the target was
+//not called. The failure times are the lastFailure times of the retryMetadata, or the times the
+//messages were put in the error stream. offsets holds the range of offsets of the messages in
+//each partition, so they can be read from the stream or found in the stream-error-bucket.
+//Only the first error_digest_sample_keys keys are kept, decoded from the Base64 that Service
+//Connector Hub passes them in.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class FailureDigest {
+
+	private static final int SAMPLE_KEYS = Integer
+			.parseInt(System.getenv().getOrDefault("error_digest_sample_keys", "10"));
+	// ONS messages are limited to 64KB, so the error body sample is kept short
+	private static final int SAMPLE_ERROR_BODY_CHARS = 500;
+	private static final String UNKNOWN_HOST = "unknown";
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final String stream;
+	private final String targetHost;
+	private final int statusCode;
+	private long messages;
+	private long firstFailure = Long.MAX_VALUE;
+	private long lastFailure;
+	private final Set<String> sampleKeys = new LinkedHashSet<>();
+	// partition -> lowest and highest offset
+	private final Map<String, long[]> offsets = new TreeMap<>();
+	private String sampleErrorBody;
+
+	private FailureDigest(String stream, String targetHost, int statusCode) {
+		this.stream = stream;
+		this.targetHost = targetHost;
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * @param records The stream messages passed by Service Connector Hub
+	 * @return List<FailureDigest> The digests, with the most messages first
+	 */
+	public static List<FailureDigest> digest(JsonNode records) {
+
+		Map<String, FailureDigest> digests = new LinkedHashMap<>();
+
+		for (JsonNode record : records) {
+			String stream = record.path("stream").asText("");
+			JsonNode message = readMessage(record.path("value").asText(""));
+			JsonNode retryMetadata = message.path("retryMetadata");
+			String targetHost = targetHost(message.path("targetRestApi").asText(""));
+			int statusCode = retryMetadata.path("lastStatusCode").asInt(0);
+
+			FailureDigest digest = digests.computeIfAbsent(stream + " " + targetHost + " " + statusCode,
+					groupKey -> new FailureDigest(stream, targetHost, statusCode));
+			digest.add(record, retryMetadata);
+		}
+
+		List<FailureDigest> sorted = new ArrayList<>(digests.values());
+		sorted.sort((first, second) -> Long.compare(second.messages, first.messages));
+		return sorted;
+	}
+
+	private void add(JsonNode record, JsonNode retryMetadata) {
+
+		messages++;
+		long failedAt = retryMetadata.path("lastFailure").asLong(record.path("timestamp").asLong(0));
+		if (failedAt > 0) {
+			firstFailure = Math.min(firstFailure, failedAt);
+			lastFailure = Math.max(lastFailure, failedAt);
+		}
+		if (sampleKeys.size() < SAMPLE_KEYS && record.hasNonNull("key")) {
+			sampleKeys.add(readKey(record.get("key").asText()));
+		}
+		if (record.has("offset")) {
+			long offset = record.get("offset").asLong();
+			long[] range = offsets.computeIfAbsent(record.path("partition").asText("0"),
+					partition -> new long[] { offset, offset });
+			range[0] = Math.min(range[0], offset);
+			range[1] = Math.max(range[1], offset);
+		}
+		if (sampleErrorBody == null && retryMetadata.hasNonNull("lastErrorBody")) {
+			String errorBody = retryMetadata.get("lastErrorBody").asText();
+			sampleErrorBody = errorBody.length() > SAMPLE_ERROR_BODY_CHARS
+					? errorBody.substring(0, SAMPLE_ERROR_BODY_CHARS)
+					: errorBody;
+		}
+	}
+
+	/**
+	 * @param value The Base64 encoded stream message
+	 * @return JsonNode The message, or a missing node if it is not JSON
+	 */
+	private static JsonNode readMessage(String value) {
+
+		try {
+			JsonNode message = OBJECT_MAPPER.readTree(Base64.getDecoder().decode(value));
+			return message == null ? OBJECT_MAPPER.missingNode() : message;
+		} catch (IOException | IllegalArgumentException e) {
+			return OBJECT_MAPPER.missingNode();
+		}
+	}
+
+	/**
+	 * @param key The Base64 encoded stream key, as Service Connector Hub passes it
+	 * @return String The stream key, or the key as passed if it is not Base64
+	 */
+	private static String readKey(String key) {
+
+		try {
+			return new String(Base64.getDecoder().decode(key), UTF_8);
+		} catch (IllegalArgumentException e) {
+			return key;
+		}
+	}
+
+	/**
+	 * @param targetRestApi
+	 * @return String The host and port of the target, or unknown
+	 */
+	private static String targetHost(String targetRestApi) {
+
+		try {
+			URI uri = URI.create(targetRestApi);
+			if (uri.getHost() == null) {
+				return UNKNOWN_HOST;
+			}
+			return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+		} catch (IllegalArgumentException e) {
+			return UNKNOWN_HOST;
+		}
+	}
+
+	/**
+	 * @return String The stream, target host, status code and offset ranges of
+	 *         the digest, which are the same when Service Connector Hub passes
+	 *         the same messages again
+	 */
+	public String id() {
+
+		StringBuilder id = new StringBuilder(stream).append(' ').append(targetHost).append(' ').append(statusCode);
+		offsets.forEach((partition, range) -> id.append(' ').append(partition).append(':').append(range[0])
+				.append('-').append(range[1]));
+		return id.toString();
+	}
+
+	/**
+	 * @return String The notification title
+	 */
+	public String title() {
+
+		String title = messages + (messages == 1 ? " message" : " messages") + " failed on " + targetHost
+				+ (statusCode == 0 ? " without a response" : " with status " + statusCode) + " in " + stream;
+		// ONS titles are limited to 255 characters
+		return title.length() > 255 ? title.substring(0, 255) : title;
+	}
+
+	/**
+	 * @return ObjectNode The digest as JSON
+	 */
+	public ObjectNode toJson() {
+
+		ObjectNode digest = OBJECT_MAPPER.createObjectNode();
+		digest.put("stream", stream);
+		digest.put("targetHost", targetHost);
+		digest.put("statusCode", statusCode);
+		digest.put("messages", messages);
+		if (lastFailure > 0) {
+			digest.put("firstFailure", Instant.ofEpochMilli(firstFailure).toString());
+			digest.put("lastFailure", Instant.ofEpochMilli(lastFailure).toString());
+		}
+		sampleKeys.forEach(digest.putArray("sampleKeys")::add);
+		ObjectNode offsetsNode = digest.putObject("offsets");
+		offsets.forEach(
+				(partition, range) -> offsetsNode.putObject(partition).put("from", range[0]).put("to", range[1]));
+		if (sampleErrorBody != null) {
+			digest.put("sampleErrorBody", sampleErrorBody);
+		}
+		return digest;
+	}
+
+	public String getStream() {
+		return stream;
+	}
+
+	public String getTargetHost() {
+		return targetHost;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public long getMessages() {
+		return messages;
+	}
+
+}
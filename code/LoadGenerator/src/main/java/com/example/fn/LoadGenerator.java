@@ -0,0 +1,299 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Open-loop load generator for the ingest API of PopulateDataStreamFunction and the retry API of
+//RetryFunction. Requests are started at a constant arrival rate, whether or not the earlier
+//requests have completed, and the latency of a request is measured from the time it was
+//scheduled to start. A slow endpoint therefore cannot slow down the load and hide its own
+//latency (coordinated omission). The service time, measured from the time a request was sent,
+//is reported next to it. A request that is not sent because load_max_in_flight requests are in
+//flight is recorded with a latency of load_request_timeout_seconds, so that it is not left out of
+//the percentiles either.
+//Latencies are recorded in HdrHistograms. The throughput, errors and latency percentiles are
+//printed every load_report_interval_seconds, and for the whole run, without the warm-up, at the
+//end. The full latency distribution is written to load_histogram_file if it is set, to compare
+//runs before a release.
+//load_target_url is an API Gateway route of a deployed Function, e.g. https://[host-name]/stream/populate,
+//or an HTTP trigger of a Function on a local fn server, e.g. http://localhost:8080/t/DataSyncApplication/populate
+//
+//usage: load_target_url=<url> load_rate_per_second=200 java -jar target/loadgenerator-1.0.0.jar
+
+package com.example.fn;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+public class LoadGenerator {
+
+	private static final String TARGET_URL = System.getenv().get("load_target_url");
+	private static final String API = System.getenv().getOrDefault("load_api", "populate");
+	private static final double RATE_PER_SECOND = Double
+			.parseDouble(System.getenv().getOrDefault("load_rate_per_second", "100"));
+	private static final long DURATION_SECONDS = Long
+			.parseLong(System.getenv().getOrDefault("load_duration_seconds", "60"));
+	private static final long WARMUP_SECONDS = Long
+			.parseLong(System.getenv().getOrDefault("load_warmup_seconds", "10"));
+	private static final int MAX_IN_FLIGHT = Integer
+			.parseInt(System.getenv().getOrDefault("load_max_in_flight", "1000"));
+	private static final long REQUEST_TIMEOUT_SECONDS = Long
+			.parseLong(System.getenv().getOrDefault("load_request_timeout_seconds", "30"));
+	private static final long REPORT_INTERVAL_SECONDS = Long
+			.parseLong(System.getenv().getOrDefault("load_report_interval_seconds", "10"));
+	// sent as the Authorization header, which PopulateDataStreamFunction stores for the vaultSecretName
+	private static final String AUTHORIZATION = System.getenv().get("load_authorization");
+	private static final String HISTOGRAM_FILE = System.getenv().get("load_histogram_file");
+	// latencies are recorded in microseconds, up to an hour with 3 significant digits
+	private static final long HIGHEST_LATENCY_US = TimeUnit.HOURS.toMicros(1);
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	private final PayloadGenerator payloads;
+	private final URI targetUri;
+	// HTTP/1.1, as a local fn server on plain http does not take the HTTP/2 upgrade
+	private final HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(10)).build();
+
+	// the latencies of the current report interval
+	private final Recorder intervalLatencies = new Recorder(HIGHEST_LATENCY_US, 3);
+	// the latencies and service times of the requests scheduled after the warm-up
+	private final Recorder measuredLatencies = new Recorder(HIGHEST_LATENCY_US, 3);
+	private final Recorder measuredServiceTimes = new Recorder(HIGHEST_LATENCY_US, 3);
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder intervalSent = new LongAdder();
+	private final LongAdder intervalErrors = new LongAdder();
+	private final LongAdder intervalSkipped = new LongAdder();
+	private final LongAdder measuredSucceeded = new LongAdder();
+	private final LongAdder measuredSkipped = new LongAdder();
+	private final Map<String, LongAdder> measuredErrors = new ConcurrentHashMap<>();
+
+	private long startedAt;
+	private long warmupEndsAt;
+	private Histogram recycledInterval;
+
+	public LoadGenerator(PayloadGenerator payloads, URI targetUri) {
+		this.payloads = payloads;
+		this.targetUri = targetUri;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		if (TARGET_URL == null || TARGET_URL.isBlank()) {
+			System.err.println("Set load_target_url to the API Gateway route or fn server trigger to load.");
+			System.exit(2);
+		}
+		if (RATE_PER_SECOND <= 0) {
+			System.err.println("load_rate_per_second must be greater than 0.");
+			System.exit(2);
+		}
+
+		PayloadGenerator payloads = PayloadGenerator.forApi(API);
+		System.out.println("Load: " + API + " " + TARGET_URL + " at " + RATE_PER_SECOND + " requests/s for "
+				+ DURATION_SECONDS + "s after a " + WARMUP_SECONDS + "s warm-up, " + payloads.describe());
+
+		new LoadGenerator(payloads, URI.create(TARGET_URL)).run();
+	}
+
+	/**
+	 * This method sends the requests on schedule, prints the interval reports
+	 * while they run and the summary once the last request completed or timed
+	 * out.
+	 */
+	public void run() throws InterruptedException, FileNotFoundException {
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "load-reporter");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		startedAt = System.nanoTime();
+		warmupEndsAt = startedAt + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+		long endsAt = warmupEndsAt + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+		reporter.scheduleAtFixedRate(this::reportInterval, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS,
+				TimeUnit.SECONDS);
+
+		for (long i = 0;; i++) {
+			// computed from the start, so rounding does not add up over the run
+			long scheduledAt = startedAt + (long) (i * 1e9 / RATE_PER_SECOND);
+			if (scheduledAt >= endsAt) {
+				break;
+			}
+			long delay;
+			while ((delay = scheduledAt - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(delay);
+			}
+			send(scheduledAt);
+		}
+
+		long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS);
+		while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+			Thread.sleep(10);
+		}
+		reporter.shutdownNow();
+		reporter.awaitTermination(REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		reportInterval();
+		reportSummary();
+	}
+
+	/**
+	 * @param scheduledAt The time the request was scheduled to start, from
+	 *                    System.nanoTime()
+	 */
+	private void send(long scheduledAt) {
+
+		boolean measured = scheduledAt >= warmupEndsAt;
+
+		// a request that would exceed load_max_in_flight is not sent, as the
+		// generator would run out of connections before the endpoint. It is
+		// recorded as if it had timed out, a lower bound of its latency
+		if (inFlight.get() >= MAX_IN_FLIGHT) {
+			long latencyUs = toMicros(TimeUnit.SECONDS.toNanos(REQUEST_TIMEOUT_SECONDS));
+			intervalLatencies.recordValue(latencyUs);
+			intervalErrors.increment();
+			intervalSkipped.increment();
+			if (measured) {
+				measuredLatencies.recordValue(latencyUs);
+				measuredSkipped.increment();
+			}
+			return;
+		}
+
+		HttpRequest.Builder builder = HttpRequest.newBuilder(targetUri)
+				.timeout(Duration.ofSeconds(REQUEST_TIMEOUT_SECONDS)).header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(payloads.next()));
+		if (AUTHORIZATION != null) {
+			builder.header("Authorization", AUTHORIZATION);
+		}
+
+		inFlight.incrementAndGet();
+		intervalSent.increment();
+		long sentAt = System.nanoTime();
+
+		httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, failure) -> {
+					long completedAt = System.nanoTime();
+
+					String error = null;
+					if (failure != null) {
+						Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+								? failure.getCause()
+								: failure;
+						error = cause.getClass().getSimpleName();
+					} else if (response.statusCode() >= 400) {
+						error = "HTTP " + response.statusCode();
+					}
+
+					long latencyUs = toMicros(completedAt - scheduledAt);
+					intervalLatencies.recordValue(latencyUs);
+					if (error != null) {
+						intervalErrors.increment();
+					}
+					if (measured) {
+						measuredLatencies.recordValue(latencyUs);
+						measuredServiceTimes.recordValue(toMicros(completedAt - sentAt));
+						if (error == null) {
+							measuredSucceeded.increment();
+						} else {
+							measuredErrors.computeIfAbsent(error, key -> new LongAdder()).increment();
+						}
+					}
+					// only now, so the summary waits for this request to be recorded
+					inFlight.decrementAndGet();
+				});
+	}
+
+	private synchronized void reportInterval() {
+
+		Histogram interval = intervalLatencies.getIntervalHistogram(recycledInterval);
+		long sent = intervalSent.sumThenReset();
+		long errors = intervalErrors.sumThenReset();
+		long skipped = intervalSkipped.sumThenReset();
+		long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedAt);
+
+		System.out.println(String.format(
+				"[%5ds]%s sent=%d completed=%d errors=%d skipped=%d in-flight=%d latency p50=%.1fms p99=%.1fms"
+						+ " max=%.1fms",
+				elapsedSeconds, System.nanoTime() < warmupEndsAt ? " warm-up" : "", sent,
+				interval.getTotalCount() - skipped, errors, skipped, inFlight.get(),
+				toMillis(interval.getValueAtPercentile(50)), toMillis(interval.getValueAtPercentile(99)),
+				toMillis(interval.getMaxValue())));
+		recycledInterval = interval;
+	}
+
+	private void reportSummary() throws FileNotFoundException {
+
+		Histogram latencies = measuredLatencies.getIntervalHistogram();
+		Histogram serviceTimes = measuredServiceTimes.getIntervalHistogram();
+		long succeeded = measuredSucceeded.sum();
+		long skipped = measuredSkipped.sum();
+		// the skipped requests are in the latencies, but were not sent
+		long completed = latencies.getTotalCount() - skipped;
+		long failed = measuredErrors.values().stream().mapToLong(LongAdder::sum).sum();
+
+		System.out.println();
+		System.out.println(String.format("Requests: completed=%d succeeded=%d errors=%d skipped=%d", completed,
+				succeeded, failed, skipped));
+		System.out.println(String.format("Throughput: %.1f requests/s, %.1f successful requests/s",
+				(double) completed / DURATION_SECONDS, (double) succeeded / DURATION_SECONDS));
+		if (failed > 0) {
+			Map<String, Long> errors = new TreeMap<>();
+			measuredErrors.forEach((error, count) -> errors.put(error, count.sum()));
+			System.out.println("Errors: " + errors);
+		}
+		if (skipped > 0) {
+			System.out.println("Skipped requests were not sent as load_max_in_flight requests were in flight; "
+					+ "the endpoint could not keep up with the rate. They are counted in the latency from "
+					+ "schedule at load_request_timeout_seconds.");
+		}
+		System.out.println(percentiles("Latency from schedule", latencies));
+		System.out.println(percentiles("Service time", serviceTimes));
+
+		if (HISTOGRAM_FILE != null) {
+			try (PrintStream histogramFile = new PrintStream(HISTOGRAM_FILE)) {
+				// in milliseconds, the format read by HdrHistogram plotters
+				latencies.outputPercentileDistribution(histogramFile, 1000.0);
+			}
+			System.out.println("Latency distribution written to " + HISTOGRAM_FILE);
+		}
+	}
+
+	private static String percentiles(String name, Histogram histogram) {
+
+		StringBuilder line = new StringBuilder(name).append(":");
+		for (double percentile : PERCENTILES) {
+			String label = percentile == Math.rint(percentile) ? String.valueOf((long) percentile)
+					: String.valueOf(percentile);
+			line.append(String.format(" p%s=%.1fms", label, toMillis(histogram.getValueAtPercentile(percentile))));
+		}
+		return line.append(String.format(" max=%.1fms mean=%.1fms", toMillis(histogram.getMaxValue()),
+				histogram.getMean() / 1000)).toString();
+	}
+
+	private static long toMicros(long nanos) {
+		return Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), HIGHEST_LATENCY_US);
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000.0;
+	}
+
+}
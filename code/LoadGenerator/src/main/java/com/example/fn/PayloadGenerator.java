@@ -0,0 +1,199 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The request bodies sent by the load generator.
+//For the ingest API, load_payload_pool_size requests are generated before the run, so building
+//them does not delay the schedule. They are spread over load_key_count stream keys, and mix the
+//operations in load_operations and the targetRestApiPayload sizes in load_payload_sizes, given as
+//value:weight lists, e.g. PUT:60,POST:30,DELETE:10 and 512:60,4096:30,65536:10 bytes.
+//load_vault_secret_percent of the messages name one of a few vaultSecretNames, so the Vault path
+//of the Functions is part of the load. The same load_seed generates the same requests.
+//For the retry API, every request sends the retry payload in load_retry_payload_file.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class PayloadGenerator {
+
+	private static final String TARGET_REST_API = System.getenv().getOrDefault("load_target_rest_api",
+			"http://localhost:8081/orders");
+	private static final String OPERATIONS = System.getenv().getOrDefault("load_operations",
+			"PUT:60,POST:30,DELETE:10");
+	private static final String PAYLOAD_SIZES = System.getenv().getOrDefault("load_payload_sizes",
+			"512:60,4096:30,65536:10");
+	private static final int VAULT_SECRET_PERCENT = Integer
+			.parseInt(System.getenv().getOrDefault("load_vault_secret_percent", "20"));
+	private static final int KEY_COUNT = Integer.parseInt(System.getenv().getOrDefault("load_key_count", "1000"));
+	private static final int POOL_SIZE = Integer
+			.parseInt(System.getenv().getOrDefault("load_payload_pool_size", "1000"));
+	private static final long SEED = Long.parseLong(System.getenv().getOrDefault("load_seed", "42"));
+	private static final String RETRY_PAYLOAD_FILE = System.getenv().get("load_retry_payload_file");
+	private static final int VAULT_SECRETS = 5;
+	// the approximate size of an order item in the generated payloads
+	private static final int ITEM_SIZE_BYTES = 100;
+	private static final String[] STATUSES = { "NEW", "PAID", "SHIPPED", "DELIVERED", "CANCELLED" };
+	private static final String[] WORDS = { "blue", "large", "cotton", "steel", "organic", "spare", "kit", "cable",
+			"bottle", "lamp", "desk", "filter", "set", "pack" };
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final Random random = new Random(SEED);
+	private final List<byte[]> bodies;
+
+	private PayloadGenerator(List<byte[]> bodies) {
+		this.bodies = bodies;
+	}
+
+	/**
+	 * @param api populate or retry
+	 * @return PayloadGenerator
+	 * @throws IOException If the retry payload file cannot be read
+	 */
+	public static PayloadGenerator forApi(String api) throws IOException {
+
+		switch (api) {
+		case "populate":
+			return new PayloadGenerator(new ArrayList<>()).generatePopulateBodies();
+		case "retry":
+			if (RETRY_PAYLOAD_FILE == null) {
+				throw new IllegalArgumentException("load_retry_payload_file is needed for the retry API.");
+			}
+			byte[] retryPayload = Files.readAllBytes(Paths.get(RETRY_PAYLOAD_FILE));
+			// fail before the run if the file is not JSON
+			OBJECT_MAPPER.readTree(retryPayload);
+			return new PayloadGenerator(Collections.singletonList(retryPayload));
+		default:
+			throw new IllegalArgumentException("Unknown load_api " + api + ", use populate or retry.");
+		}
+	}
+
+	/**
+	 * @return byte[] A request body picked at random from the pool
+	 */
+	public byte[] next() {
+		return bodies.size() == 1 ? bodies.get(0) : bodies.get(random.nextInt(bodies.size()));
+	}
+
+	/**
+	 * @return String The no. of request bodies and their average size
+	 */
+	public String describe() {
+
+		long totalBytes = 0;
+		for (byte[] body : bodies) {
+			totalBytes = totalBytes + body.length;
+		}
+		return bodies.size() + " request bodies, " + totalBytes / bodies.size() + " bytes on average";
+	}
+
+	private PayloadGenerator generatePopulateBodies() throws IOException {
+
+		Map<String, Integer> operations = parseWeights(OPERATIONS);
+		Map<String, Integer> payloadSizes = parseWeights(PAYLOAD_SIZES);
+
+		for (int i = 0; i < POOL_SIZE; i++) {
+			String streamKey = "load-" + random.nextInt(KEY_COUNT);
+			String operation = pick(operations);
+
+			ObjectNode request = OBJECT_MAPPER.createObjectNode();
+			request.put("streamKey", streamKey);
+			ObjectNode streamMessage = request.putObject("streamMessage");
+			streamMessage.put("sourceApplication", "loadgenerator");
+			if (random.nextInt(100) < VAULT_SECRET_PERCENT) {
+				streamMessage.put("vaultSecretName", "loadgenerator-" + random.nextInt(VAULT_SECRETS));
+			}
+			streamMessage.put("targetRestApi", TARGET_REST_API + "/" + streamKey);
+			streamMessage.put("targetRestApiOperation", operation);
+
+			ArrayNode headers = streamMessage.putArray("targetRestApiHeaders");
+			headers.addObject().put("key", "Content-Type").put("value", "application/json");
+			if ("POST".equals(operation)) {
+				headers.addObject().put("key", "Idempotency-Key")
+						.put("value", new UUID(random.nextLong(), random.nextLong()).toString());
+			}
+			if (!"DELETE".equals(operation)) {
+				streamMessage.set("targetRestApiPayload",
+						orderPayload(streamKey, Integer.parseInt(pick(payloadSizes))));
+			}
+			bodies.add(OBJECT_MAPPER.writeValueAsBytes(request));
+		}
+		return this;
+	}
+
+	/**
+	 * @param streamKey
+	 * @param sizeBytes The approximate size of the payload
+	 * @return ObjectNode An order with as many items as fit in sizeBytes
+	 */
+	private ObjectNode orderPayload(String streamKey, int sizeBytes) {
+
+		ObjectNode order = OBJECT_MAPPER.createObjectNode();
+		order.put("orderId", streamKey);
+		order.put("status", STATUSES[random.nextInt(STATUSES.length)]);
+		order.put("updatedAt", Instant.ofEpochSecond(1665400000L + random.nextInt(86400 * 30)).toString());
+		order.putObject("customer").put("customerId", "C" + random.nextInt(100000)).put("country",
+				random.nextBoolean() ? "US" : "DE");
+
+		ArrayNode items = order.putArray("items");
+		int itemCount = Math.max(1, (sizeBytes - 150) / ITEM_SIZE_BYTES);
+		for (int i = 0; i < itemCount; i++) {
+			items.addObject().put("sku", "SKU-" + (10000 + random.nextInt(90000)))
+					.put("quantity", 1 + random.nextInt(9)).put("price", random.nextInt(20000) / 100.0)
+					.put("description", WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+							+ " " + WORDS[random.nextInt(WORDS.length)]);
+		}
+		return order;
+	}
+
+	/**
+	 * @param weights
+	 * @return String A value picked with the probability of its weight
+	 */
+	private String pick(Map<String, Integer> weights) {
+
+		int total = weights.values().stream().mapToInt(Integer::intValue).sum();
+		int point = random.nextInt(total);
+		for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+			point = point - weight.getValue();
+			if (point < 0) {
+				return weight.getKey();
+			}
+		}
+		throw new IllegalStateException("Weights do not add up.");
+	}
+
+	/**
+	 * @param config A value:weight list, e.g. PUT:60,POST:30,DELETE:10
+	 * @return Map<String, Integer> The weight of each value
+	 */
+	private static Map<String, Integer> parseWeights(String config) {
+
+		Map<String, Integer> weights = new LinkedHashMap<>();
+		for (String entry : config.split(",")) {
+			String[] valueWeight = entry.trim().split(":");
+			int weight = valueWeight.length > 1 ? Integer.parseInt(valueWeight[1].trim()) : 1;
+			if (weight > 0) {
+				weights.put(valueWeight[0].trim(), weight);
+			}
+		}
+		if (weights.isEmpty()) {
+			throw new IllegalArgumentException("No positive weight in " + config);
+		}
+		return weights;
+	}
+
+}
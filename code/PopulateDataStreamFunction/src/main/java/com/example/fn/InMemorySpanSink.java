@@ -0,0 +1,72 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Span exporter that keeps the exported spans in memory, used when trace_exporter is memory.
+//It is meant for local runs and tests, where the spans can be checked without an OTLP
+//collector. Only the most recent trace_memory_sink_size spans are kept.
+
+package com.example.fn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+public class InMemorySpanSink implements SpanExporter {
+
+	private static final int MAX_SPANS = Integer
+			.parseInt(System.getenv().getOrDefault("trace_memory_sink_size", "10000"));
+
+	private final ConcurrentLinkedDeque<SpanData> spans = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger batches = new AtomicInteger();
+
+	@Override
+	public CompletableResultCode export(Collection<SpanData> exportedSpans) {
+
+		batches.incrementAndGet();
+		for (SpanData span : exportedSpans) {
+			spans.addLast(span);
+			if (size.incrementAndGet() > MAX_SPANS && spans.pollFirst() != null) {
+				size.decrementAndGet();
+			}
+		}
+		return CompletableResultCode.ofSuccess();
+	}
+
+	@Override
+	public CompletableResultCode flush() {
+		return CompletableResultCode.ofSuccess();
+	}
+
+	@Override
+	public CompletableResultCode shutdown() {
+		return CompletableResultCode.ofSuccess();
+	}
+
+	/**
+	 * @return List<SpanData> The exported spans, oldest first
+	 */
+	public List<SpanData> getFinishedSpans() {
+		return new ArrayList<>(spans);
+	}
+
+	/**
+	 * @return int The number of batches exported
+	 */
+	public int getExportedBatches() {
+		return batches.get();
+	}
+
+	public void reset() {
+		spans.clear();
+		size.set(0);
+		batches.set(0);
+	}
+
+}
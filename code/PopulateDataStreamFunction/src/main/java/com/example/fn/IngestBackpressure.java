@@ -0,0 +1,184 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+// Backpressure for the ingest API, so source applications slow down instead of writing into a
+// DataSyncStream that its consumer cannot keep up with.
+// Two signals are tracked per container:
+// - the consumer lag, the no. of messages between the latest offset of a partition and the offset
+//   committed by the backpressure_consumer_group consumer group, read the same way as the backlog
+//   of BacklogMonitor. The lag estimate is cached and refreshed every backpressure_refresh_seconds.
+//   Only DataSyncConsumer commits offsets to a consumer group. When ReadDataStreamFunction is fed
+//   by Service Connector Hub, as deployed by default, the group has no committed offsets, so the
+//   lag is not checked and a backpressure_group_not_committed event is logged once per container.
+// - the share of puts throttled by the stream over the last backpressure_throttle_window_seconds.
+// A write is rejected with 429 and a Retry-After of backpressure_retry_after_seconds when the lag of
+// a partition exceeds backpressure_max_lag_messages, or when the throttled share exceeds
+// backpressure_max_throttle_rate. A limit of 0, the default, disables the check.
+package com.example.fn;
+
+import java.util.Map;
+
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+
+public class IngestBackpressure {
+
+	private static final EventLog EVENTS = EventLog.get(IngestBackpressure.class);
+	private static final String CONSUMER_GROUP = System.getenv().getOrDefault("backpressure_consumer_group",
+			System.getenv().getOrDefault("consumer_group_name", "DataSyncConsumerGroup"));
+	private static final long MAX_LAG_MESSAGES = Long
+			.parseLong(System.getenv().getOrDefault("backpressure_max_lag_messages", "0"));
+	private static final double MAX_THROTTLE_RATE = Double
+			.parseDouble(System.getenv().getOrDefault("backpressure_max_throttle_rate", "0"));
+	private static final long REFRESH_MS = Long
+			.parseLong(System.getenv().getOrDefault("backpressure_refresh_seconds", "30")) * 1000;
+	private static final long THROTTLE_WINDOW_MS = Long
+			.parseLong(System.getenv().getOrDefault("backpressure_throttle_window_seconds", "60")) * 1000;
+	private static final int RETRY_AFTER_SECONDS = Integer
+			.parseInt(System.getenv().getOrDefault("backpressure_retry_after_seconds", "30"));
+	// the no. of puts in the window below which the throttled share is not acted on
+	private static final int MIN_THROTTLE_SAMPLES = 20;
+	private static final int WINDOW_BUCKETS = 6;
+
+	private final StreamTransport streamTransport;
+	private long lagEstimate;
+	private long lagRefreshedAt;
+	private boolean groupNotCommittedLogged;
+
+	// puts and throttled puts in buckets of THROTTLE_WINDOW_MS / WINDOW_BUCKETS
+	private final long[] bucketStarts = new long[WINDOW_BUCKETS];
+	private final long[] putCounts = new long[WINDOW_BUCKETS];
+	private final long[] throttledCounts = new long[WINDOW_BUCKETS];
+
+	public IngestBackpressure(StreamTransport streamTransport) {
+		this.streamTransport = streamTransport;
+	}
+
+	/**
+	 * @param stream
+	 * @return int The no. of seconds the source application should wait before
+	 *         writing again, or 0 if the write is accepted.
+	 *
+	 *         This method checks the cached consumer lag, refreshing it when it is
+	 *         older than the refresh interval, and the recent throttled share.
+	 */
+	public synchronized int check(Stream stream) {
+
+		if (MAX_LAG_MESSAGES > 0) {
+			long now = System.currentTimeMillis();
+			if (now - lagRefreshedAt >= REFRESH_MS) {
+				lagRefreshedAt = now;
+				refreshLag(stream);
+			}
+			if (lagEstimate > MAX_LAG_MESSAGES) {
+				EVENTS.sampled("write_rejected", "reason", "consumer_lag", "lag", lagEstimate, "maxLag",
+						MAX_LAG_MESSAGES);
+				return RETRY_AFTER_SECONDS;
+			}
+		}
+
+		if (MAX_THROTTLE_RATE > 0) {
+			long puts = 0;
+			long throttled = 0;
+			long windowStart = System.currentTimeMillis() - THROTTLE_WINDOW_MS;
+
+			for (int i = 0; i < WINDOW_BUCKETS; i++) {
+				if (bucketStarts[i] > windowStart) {
+					puts = puts + putCounts[i];
+					throttled = throttled + throttledCounts[i];
+				}
+			}
+			if (puts >= MIN_THROTTLE_SAMPLES && (double) throttled / puts > MAX_THROTTLE_RATE) {
+				EVENTS.sampled("write_rejected", "reason", "throttled", "throttled", throttled, "puts", puts);
+				return RETRY_AFTER_SECONDS;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param results
+	 *
+	 *                This method records the outcome of a put, whether the stream
+	 *                throttled it.
+	 */
+	public void recordPut(Iterable<PutMessagesResultEntry> results) {
+
+		for (PutMessagesResultEntry entry : results) {
+			recordOutcome(entry.getError() != null && isThrottled(entry.getError()));
+		}
+	}
+
+	/**
+	 * This method records a put that the stream rejected as a whole with 429.
+	 */
+	public void recordThrottledPut() {
+		recordOutcome(true);
+	}
+
+	public static int retryAfterSeconds() {
+		return RETRY_AFTER_SECONDS;
+	}
+
+	/**
+	 * @param error The error code of a put result entry
+	 * @return boolean Returns true if the stream throttled the message
+	 */
+	public static boolean isThrottled(String error) {
+		return error != null && error.toLowerCase().contains("throttl");
+	}
+
+	private synchronized void recordOutcome(boolean throttled) {
+
+		long bucketWidth = Math.max(THROTTLE_WINDOW_MS / WINDOW_BUCKETS, 1);
+		long bucketStart = System.currentTimeMillis() / bucketWidth * bucketWidth;
+		int bucket = (int) (bucketStart / bucketWidth % WINDOW_BUCKETS);
+
+		if (bucketStarts[bucket] != bucketStart) {
+			bucketStarts[bucket] = bucketStart;
+			putCounts[bucket] = 0;
+			throttledCounts[bucket] = 0;
+		}
+		putCounts[bucket] = putCounts[bucket] + 1;
+		if (throttled) {
+			throttledCounts[bucket] = throttledCounts[bucket] + 1;
+		}
+	}
+
+	/**
+	 * @param stream
+	 *
+	 *               This method estimates the lag as the largest difference,
+	 *               across partitions, between the latest offset of the partition
+	 *               and the offset committed by the consumer group. Partitions the
+	 *               group has not committed are left out. The previous estimate is
+	 *               kept if the offsets cannot be read.
+	 */
+	private void refreshLag(Stream stream) {
+
+		try {
+			Map<String, Long> committedOffsets = streamTransport.getCommittedOffsets(stream, CONSUMER_GROUP);
+			if (committedOffsets.isEmpty()) {
+				if (!groupNotCommittedLogged) {
+					groupNotCommittedLogged = true;
+					EVENTS.warning("backpressure_group_not_committed", "group", CONSUMER_GROUP, "stream",
+							stream.getName());
+				}
+				lagEstimate = 0;
+				return;
+			}
+
+			long lag = 0;
+			for (Map.Entry<String, Long> committedOffset : committedOffsets.entrySet()) {
+				long headOffset = streamTransport.getLatestOffset(stream, committedOffset.getKey());
+				lag = Math.max(lag, headOffset - committedOffset.getValue());
+			}
+			lagEstimate = lag;
+
+		} catch (RuntimeException e) {
+			// the REST and Kafka transports fail with different exceptions
+			EVENTS.failure("consumer_lag_read_failed", e, "group", CONSUMER_GROUP);
+		}
+	}
+
+}
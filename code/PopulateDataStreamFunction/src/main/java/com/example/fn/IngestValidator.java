@@ -0,0 +1,97 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+// Validates the streamMessage posted by a source application before it is stored in the stream.
+// Every message is validated against streamMessage.schema.json. A source application can add
+// its own schema, selected by the sourceApplication node of the streamMessage, through the
+// ingest_schemas configuration variable, e.g. {"orders": {"properties": {...}}}.
+// The schemas are compiled once per container.
+package com.example.fn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.networknt.schema.JsonSchema;
+import com.networknt.schema.JsonSchemaFactory;
+import com.networknt.schema.SpecVersion;
+import com.networknt.schema.ValidationMessage;
+
+public class IngestValidator {
+
+	private static final String DEFAULT_SCHEMA = "/streamMessage.schema.json";
+
+	private final JsonSchema defaultSchema;
+	private final Map<String, JsonSchema> applicationSchemas;
+
+	private IngestValidator(JsonSchema defaultSchema, Map<String, JsonSchema> applicationSchemas) {
+		this.defaultSchema = defaultSchema;
+		this.applicationSchemas = applicationSchemas;
+	}
+
+	/**
+	 * @return IngestValidator
+	 * 
+	 *         This method compiles the default schema and the schemas in the
+	 *         ingest_schemas configuration variable
+	 */
+	public static IngestValidator fromConfig() {
+
+		ObjectMapper objectMapper = new ObjectMapper();
+		JsonSchemaFactory schemaFactory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V7);
+
+		try (InputStream schemaStream = IngestValidator.class.getResourceAsStream(DEFAULT_SCHEMA)) {
+
+			JsonSchema defaultSchema = schemaFactory.getSchema(objectMapper.readTree(schemaStream));
+			Map<String, JsonSchema> applicationSchemas = new HashMap<>();
+
+			String config = System.getenv().get("ingest_schemas");
+			if (config != null && !config.isBlank()) {
+				Iterator<Map.Entry<String, JsonNode>> schemas = objectMapper.readTree(config).fields();
+				while (schemas.hasNext()) {
+					Map.Entry<String, JsonNode> schema = schemas.next();
+					applicationSchemas.put(schema.getKey(), schemaFactory.getSchema(schema.getValue()));
+				}
+			}
+			return new IngestValidator(defaultSchema, applicationSchemas);
+
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Schemas could not be read. " + e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * @param streamMessageNode
+	 * @return List<String> The validation errors, empty if the message is valid.
+	 * 
+	 *         This method validates the streamMessage against the default schema
+	 *         and the schema of its source application.
+	 */
+	public List<String> validate(JsonNode streamMessageNode) {
+
+		if (streamMessageNode == null || !streamMessageNode.isObject()) {
+			return Collections.singletonList("streamMessage node is not found in payload.");
+		}
+
+		List<String> errors = new ArrayList<>();
+		for (ValidationMessage message : defaultSchema.validate(streamMessageNode)) {
+			errors.add(message.getMessage());
+		}
+
+		JsonSchema applicationSchema = applicationSchemas.get(streamMessageNode.path("sourceApplication").asText());
+		if (applicationSchema != null) {
+			for (ValidationMessage message : applicationSchema.validate(streamMessageNode)) {
+				errors.add(message.getMessage());
+			}
+		}
+		return errors;
+	}
+
+}
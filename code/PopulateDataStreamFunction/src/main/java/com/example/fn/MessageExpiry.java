@@ -0,0 +1,78 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+// Stamps the time after which a message is obsolete, so that ReadDataStreamFunction and
+// RetryFunction shed it instead of calling the target. A source application sets it with the
+// expiresAt node of the streamMessage, as an ISO-8601 time or in epoch milliseconds, or with the
+// maxAgeSeconds node, e.g. "maxAgeSeconds": 300 for a price update that is useless after 5 minutes.
+// Without them, messages get message_max_age_seconds, if it is set. The message is stored with
+// expiresAt in epoch milliseconds, the earlier of the two times if both are set, as its first
+// field, so the functions that read it find it without parsing the rest of the message.
+package com.example.fn;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public final class MessageExpiry {
+
+	public static final String NODE_NAME = "expiresAt";
+	private static final String MAX_AGE_NODE_NAME = "maxAgeSeconds";
+	private static final long DEFAULT_MAX_AGE_SECONDS = Long
+			.parseLong(System.getenv().getOrDefault("message_max_age_seconds", "0"));
+
+	private MessageExpiry() {
+	}
+
+	/**
+	 * @param messageNode
+	 * @param now         The ingest time in epoch milliseconds
+	 * @throws IllegalArgumentException If expiresAt is not a time
+	 *
+	 *                                  This method replaces the expiresAt and
+	 *                                  maxAgeSeconds nodes of the message with
+	 *                                  expiresAt in epoch milliseconds, as the
+	 *                                  first field.
+	 */
+	public static void stamp(ObjectNode messageNode, long now) {
+
+		long expiresAt = 0;
+
+		JsonNode expiresAtNode = messageNode.get(NODE_NAME);
+		if (expiresAtNode != null && expiresAtNode.isIntegralNumber()) {
+			expiresAt = expiresAtNode.asLong();
+		} else if (expiresAtNode != null && expiresAtNode.isTextual()) {
+			try {
+				expiresAt = Instant.parse(expiresAtNode.asText()).toEpochMilli();
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException(NODE_NAME + " is not an ISO-8601 time: " + expiresAtNode.asText());
+			}
+		} else if (expiresAtNode != null && !expiresAtNode.isNull()) {
+			throw new IllegalArgumentException(NODE_NAME + " must be an ISO-8601 time or epoch milliseconds.");
+		}
+
+		long maxAgeSeconds = messageNode.path(MAX_AGE_NODE_NAME).asLong(0);
+		if (maxAgeSeconds <= 0 && expiresAt == 0) {
+			maxAgeSeconds = DEFAULT_MAX_AGE_SECONDS;
+		}
+		if (maxAgeSeconds > 0) {
+			long maxAgeExpiresAt = now + maxAgeSeconds * 1000;
+			expiresAt = expiresAt == 0 ? maxAgeExpiresAt : Math.min(expiresAt, maxAgeExpiresAt);
+		}
+
+		messageNode.remove(MAX_AGE_NODE_NAME);
+		messageNode.remove(NODE_NAME);
+		if (expiresAt > 0) {
+			Map<String, JsonNode> fields = new LinkedHashMap<>();
+			messageNode.fields().forEachRemaining(field -> fields.put(field.getKey(), field.getValue()));
+			messageNode.removeAll();
+			messageNode.put(NODE_NAME, expiresAt);
+			messageNode.setAll(fields);
+		}
+	}
+
+}
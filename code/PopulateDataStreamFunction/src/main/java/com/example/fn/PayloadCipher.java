@@ -0,0 +1,281 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Envelope encryption of the targetRestApiPayload of stream messages with AES-GCM.
+//When payload_encryption is true, PopulateDataStreamFunction replaces the payload with an
+//encryptedPayload node, so the payload is never stored in plain form in the DataSyncStream, the
+//error streams or the error archive, e.g.
+//"encryptedPayload": {"encryptedKey": "...", "iv": "...", "ciphertext": "...", "aad": "streamKey,targetRestApi"}
+//The ciphertext is bound to the stream key and the targetRestApi of the message as AES-GCM
+//additional authenticated data, so a payload moved to another key or target fails to decrypt.
+//A fan-out message is rerouted once per failed target, so its payload is bound to the stream key
+//only ("aad": "streamKey"). The aad node names the bound fields and is authenticated itself.
+//The payload is encrypted with a data key generated by the KeyService. The encrypted data key is
+//carried in the message and the data key is reused for data_key_max_messages messages or
+//data_key_max_age_seconds, whichever comes first, so KeyService is called once per rotation and
+//not once per message. ReadDataStreamFunction and RetryFunction decrypt the payload just before
+//the target call, caching up to data_key_cache_size decrypted data keys. DispatchRules only see
+//the encryptedPayload node, so their predicates on targetRestApiPayload paths never match an
+//encrypted message.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class PayloadCipher {
+
+	public static final String NODE_NAME = "encryptedPayload";
+	private static final String PAYLOAD_NODE_NAME = "targetRestApiPayload";
+	// the message fields bound to the ciphertext as additional authenticated data
+	private static final String BOUND_TO_KEY = "streamKey";
+	private static final String BOUND_TO_KEY_AND_TARGET = "streamKey,targetRestApi";
+	private static final boolean ENABLED = Boolean
+			.parseBoolean(System.getenv().getOrDefault("payload_encryption", "false"));
+	// random 96 bit IVs stay far below the NIST limit of 2^32 messages per key
+	private static final long DATA_KEY_MAX_MESSAGES = Long
+			.parseLong(System.getenv().getOrDefault("data_key_max_messages", "1000000"));
+	private static final long DATA_KEY_MAX_AGE_MS = Long
+			.parseLong(System.getenv().getOrDefault("data_key_max_age_seconds", "3600")) * 1000;
+	private static final int DATA_KEY_CACHE_SIZE = Integer
+			.parseInt(System.getenv().getOrDefault("data_key_cache_size", "256"));
+	private static final int IV_LENGTH_BYTES = 12;
+	private static final int TAG_LENGTH_BITS = 128;
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	// Cipher instances are not thread safe, and creating one costs more than
+	// encrypting a message
+	private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final KeyService keyService;
+	private final SecureRandom random = new SecureRandom();
+
+	// the data key used to encrypt, with the no. of messages it encrypted
+	private KeyService.DataKey dataKey;
+	private SecretKeySpec dataKeySpec;
+	private long dataKeyCreatedAt;
+	private long dataKeyMessages;
+
+	// encryptedKey -> data key, least recently used first
+	private final Map<String, SecretKeySpec> decryptionKeys = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, SecretKeySpec> eldest) {
+			return size() > DATA_KEY_CACHE_SIZE;
+		}
+	};
+
+	public PayloadCipher(KeyService keyService) {
+		this.keyService = keyService;
+	}
+
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * @param messageNode
+	 * @param streamKey   The key the message is stored with
+	 * @throws GeneralSecurityException
+	 * @throws JsonProcessingException
+	 *
+	 *                                  This method replaces the
+	 *                                  targetRestApiPayload of the message with
+	 *                                  its encryptedPayload.
+	 */
+	public void encryptPayload(ObjectNode messageNode, String streamKey)
+			throws GeneralSecurityException, JsonProcessingException {
+
+		if (!messageNode.has(PAYLOAD_NODE_NAME)) {
+			return;
+		}
+		byte[] payload = OBJECT_MAPPER.writeValueAsBytes(messageNode.get(PAYLOAD_NODE_NAME));
+
+		// the targets of a fan-out message are rerouted on their own
+		String targetRestApi = messageNode.has("targets") ? null : messageNode.path("targetRestApi").asText(null);
+		String boundTo = targetRestApi == null ? BOUND_TO_KEY : BOUND_TO_KEY_AND_TARGET;
+
+		byte[] iv = new byte[IV_LENGTH_BYTES];
+		random.nextBytes(iv);
+
+		KeyService.DataKey encryptionKey;
+		SecretKeySpec encryptionKeySpec;
+		synchronized (this) {
+			rotateDataKey();
+			encryptionKey = dataKey;
+			encryptionKeySpec = dataKeySpec;
+			dataKeyMessages = dataKeyMessages + 1;
+		}
+
+		Cipher cipher = CIPHERS.get();
+		cipher.init(Cipher.ENCRYPT_MODE, encryptionKeySpec, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+		cipher.updateAAD(associatedData(boundTo, streamKey, targetRestApi));
+		byte[] ciphertext = cipher.doFinal(payload);
+
+		messageNode.remove(PAYLOAD_NODE_NAME);
+		messageNode.putObject(NODE_NAME).put("encryptedKey", encryptionKey.getEncryptedKey())
+				.put("iv", Base64.getEncoder().encodeToString(iv))
+				.put("ciphertext", Base64.getEncoder().encodeToString(ciphertext)).put("aad", boundTo);
+	}
+
+	/**
+	 * @param parser A parser positioned on the start of the encryptedPayload
+	 *               object
+	 * @return EncryptedPayload The encryptedPayload node, to decrypt once the
+	 *         fields it is bound to are read
+	 * @throws IOException If the node is incomplete
+	 */
+	public static EncryptedPayload readPayload(JsonParser parser) throws IOException {
+
+		String encryptedKey = null;
+		byte[] iv = null;
+		byte[] ciphertext = null;
+		String boundTo = null;
+
+		if (parser.currentToken() != JsonToken.START_OBJECT) {
+			throw new IOException(NODE_NAME + " is not an object.");
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if (value != JsonToken.VALUE_STRING) {
+				parser.skipChildren();
+			} else if ("encryptedKey".equals(field)) {
+				encryptedKey = parser.getText();
+			} else if ("iv".equals(field)) {
+				iv = parser.getBinaryValue();
+			} else if ("ciphertext".equals(field)) {
+				ciphertext = parser.getBinaryValue();
+			} else if ("aad".equals(field)) {
+				boundTo = parser.getText();
+			}
+		}
+		if (encryptedKey == null || iv == null || ciphertext == null || boundTo == null) {
+			throw new IOException(NODE_NAME + " needs encryptedKey, iv, ciphertext and aad.");
+		}
+		return new EncryptedPayload(encryptedKey, iv, ciphertext, boundTo);
+	}
+
+	/**
+	 * @param encryptedPayload
+	 * @param streamKey        The key the message was read with
+	 * @param targetRestApi    The top level targetRestApi of the message, or null
+	 * @return byte[] The targetRestApiPayload, as UTF-8 encoded JSON
+	 * @throws IOException If the payload cannot be decrypted, or was encrypted
+	 *                     for another key or target
+	 */
+	public byte[] decryptPayload(EncryptedPayload encryptedPayload, String streamKey, String targetRestApi)
+			throws IOException {
+
+		if (!BOUND_TO_KEY.equals(encryptedPayload.boundTo)
+				&& !BOUND_TO_KEY_AND_TARGET.equals(encryptedPayload.boundTo)) {
+			throw new IOException(NODE_NAME + " has an unknown aad " + encryptedPayload.boundTo + ".");
+		}
+		try {
+			Cipher cipher = CIPHERS.get();
+			cipher.init(Cipher.DECRYPT_MODE, decryptionKey(encryptedPayload.encryptedKey),
+					new GCMParameterSpec(TAG_LENGTH_BITS, encryptedPayload.iv));
+			cipher.updateAAD(associatedData(encryptedPayload.boundTo, streamKey, targetRestApi));
+			return cipher.doFinal(encryptedPayload.ciphertext);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Payload could not be decrypted. " + e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * @param boundTo       The bound fields, also bound themselves
+	 * @param streamKey
+	 * @param targetRestApi
+	 * @return byte[] The additional authenticated data of the payload
+	 */
+	private static byte[] associatedData(String boundTo, String streamKey, String targetRestApi) {
+
+		StringBuilder associatedData = new StringBuilder(boundTo).append('\n')
+				.append(streamKey == null ? "" : streamKey);
+		if (BOUND_TO_KEY_AND_TARGET.equals(boundTo)) {
+			associatedData.append('\n').append(targetRestApi == null ? "" : targetRestApi);
+		}
+		return associatedData.toString().getBytes(UTF_8);
+	}
+
+	/**
+	 * This method replaces the data key once it reached its message count or
+	 * age.
+	 */
+	private void rotateDataKey() throws GeneralSecurityException {
+
+		long now = System.currentTimeMillis();
+		if (dataKey != null && dataKeyMessages < DATA_KEY_MAX_MESSAGES
+				&& now - dataKeyCreatedAt < DATA_KEY_MAX_AGE_MS) {
+			return;
+		}
+		dataKey = keyService.generateDataKey();
+		dataKeySpec = new SecretKeySpec(dataKey.getPlaintext(), "AES");
+		dataKeyCreatedAt = now;
+		dataKeyMessages = 0;
+	}
+
+	/**
+	 * @param encryptedKey
+	 * @return SecretKeySpec The data key, from the cache or decrypted by the
+	 *         KeyService
+	 */
+	private SecretKeySpec decryptionKey(String encryptedKey) throws GeneralSecurityException {
+
+		SecretKeySpec keySpec;
+		synchronized (decryptionKeys) {
+			keySpec = decryptionKeys.get(encryptedKey);
+		}
+		if (keySpec == null) {
+			// a key missed by two threads at once is decrypted twice, which is
+			// cheaper than holding the lock during the KeyService call
+			keySpec = new SecretKeySpec(keyService.decryptDataKey(encryptedKey), "AES");
+			synchronized (decryptionKeys) {
+				decryptionKeys.put(encryptedKey, keySpec);
+			}
+		}
+		return keySpec;
+	}
+
+	/**
+	 * The fields of an encryptedPayload node.
+	 */
+	public static final class EncryptedPayload {
+
+		private final String encryptedKey;
+		private final byte[] iv;
+		private final byte[] ciphertext;
+		private final String boundTo;
+
+		private EncryptedPayload(String encryptedKey, byte[] iv, byte[] ciphertext, String boundTo) {
+			this.encryptedKey = encryptedKey;
+			this.iv = iv;
+			this.ciphertext = ciphertext;
+			this.boundTo = boundTo;
+		}
+	}
+
+}
@@ -3,31 +3,35 @@
 
 // This Function is used to populate the DataSyncStream . 
 // It is invoked when the Source Application/s post data to the REST API exposed using API Gateway.
+// Writes are rejected with 429 when DataSyncStream is too far behind or being throttled, see
+// IngestBackpressure. A message the stream does not accept is reported with its own status code.
+// When payload_encryption is true, the targetRestApiPayload is encrypted before it is stored, see
+// PayloadCipher.
+// Messages are stamped with the time they expire at, if any, see MessageExpiry.
 package com.example.fn;
 
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.logging.Logger;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fnproject.fn.api.Headers;
 import com.fnproject.fn.api.httpgateway.HTTPGatewayContext;
 import com.oracle.bmc.auth.ResourcePrincipalAuthenticationDetailsProvider;
 import com.oracle.bmc.model.BmcException;
 import com.oracle.bmc.streaming.StreamAdminClient;
-import com.oracle.bmc.streaming.StreamClient;
-import com.oracle.bmc.streaming.model.PutMessagesDetails;
 import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
 import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
 import com.oracle.bmc.streaming.model.Stream;
 import com.oracle.bmc.streaming.requests.GetStreamRequest;
-import com.oracle.bmc.streaming.requests.PutMessagesRequest;
 import com.oracle.bmc.streaming.responses.GetStreamResponse;
-import com.oracle.bmc.streaming.responses.PutMessagesResponse;
 import com.oracle.bmc.vault.VaultsClient;
 import com.oracle.bmc.vault.model.Base64SecretContentDetails;
 import com.oracle.bmc.vault.model.CreateSecretDetails;
@@ -37,10 +41,19 @@ import com.oracle.bmc.vault.requests.CreateSecretRequest;
 import com.oracle.bmc.vault.requests.ListSecretsRequest;
 import com.oracle.bmc.vault.responses.ListSecretsResponse;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Scope;
+
 public class PopulateDataStreamFunction {
-	private static final Logger LOGGER = Logger.getLogger(PopulateDataStreamFunction.class.getName());
+	private static final EventLog EVENTS = EventLog.get(PopulateDataStreamFunction.class);
 	private final ResourcePrincipalAuthenticationDetailsProvider provider = ResourcePrincipalAuthenticationDetailsProvider
 			.builder().build();
+	private final StreamTransport streamTransport = StreamTransport.create(provider);
+	private final IngestValidator ingestValidator = IngestValidator.fromConfig();
+	private final IngestBackpressure backpressure = new IngestBackpressure(streamTransport);
+	private final PayloadCipher payloadCipher = new PayloadCipher(KeyService.create(provider));
 	private static final String VAULT_OCID = System.getenv().get("vault_ocid");
 	private static final String VAULT_COMPARTMENT_OCID = System.getenv().get("vault_compartment_ocid");
 	private static final String VAULT_KEY_OCID = System.getenv().get("vault_key_ocid");
@@ -67,6 +80,12 @@ public class PopulateDataStreamFunction {
 		Headers headers = httpGatewayContext.getHeaders();
 		Optional<String> authorizationHeaderOpt = headers.get("Authorization");
 
+		// continue the trace of the source application, if it sent a traceparent
+		// header
+		Span ingestSpan = Tracing.startSpan("ingest", SpanKind.SERVER,
+				headers.get(Tracing.TRACEPARENT).orElse(null));
+		Scope ingestScope = ingestSpan.makeCurrent();
+
 		ObjectMapper objectMapper = new ObjectMapper();
 		try {
 			JsonNode jsonNode = objectMapper.readTree(requestBody);
@@ -76,9 +95,51 @@ public class PopulateDataStreamFunction {
 
 			streamKey = jsonNode.path("streamKey").asText();
 
-			streamMessage = jsonNode.path("streamMessage").toString();
+			JsonNode streamMessageNode = jsonNode.get("streamMessage");
+
+			// Reject invalid messages before they use any stream capacity
+			List<String> validationErrors = ingestValidator.validate(streamMessageNode);
+			if (!validationErrors.isEmpty()) {
+				EVENTS.warning("message_rejected", "key", streamKey, "errors", validationErrors);
+				httpGatewayContext.setStatusCode(400);
+				ingestSpan.setStatus(StatusCode.ERROR, "Invalid streamMessage");
+				return "Invalid streamMessage. " + String.join(" ", validationErrors);
+			}
+
+			// stamp the time after which the message is shed instead of dispatched
+			if (streamMessageNode.isObject()) {
+				try {
+					MessageExpiry.stamp((ObjectNode) streamMessageNode, System.currentTimeMillis());
+				} catch (IllegalArgumentException e) {
+					EVENTS.warning("message_rejected", "key", streamKey, "errors", e.getMessage());
+					httpGatewayContext.setStatusCode(400);
+					ingestSpan.setStatus(StatusCode.ERROR, "Invalid streamMessage");
+					return "Invalid streamMessage. " + e.getMessage();
+				}
+			}
+
+			Stream dataStream = getStream(DATA_STREAM_OCID);
+
+			// Ask the source application to slow down while the stream is behind,
+			// before the payload is encrypted
+			int retryAfterSeconds = backpressure.check(dataStream);
+			if (retryAfterSeconds > 0) {
+				ingestSpan.setStatus(StatusCode.ERROR, "Backpressure");
+				return tooManyRequests(httpGatewayContext, retryAfterSeconds,
+						"DataSyncStream is behind, retry later.");
+			}
+
+			// carry the trace in the message, for the functions that read it
+			if (streamMessageNode.isObject()) {
+				Tracing.inject((ObjectNode) streamMessageNode);
+			}
+			// keep the payload out of the streams in plain form
+			if (PayloadCipher.isEnabled() && streamMessageNode.isObject()) {
+				payloadCipher.encryptPayload((ObjectNode) streamMessageNode, streamKey);
+			}
+			streamMessage = streamMessageNode.toString();
+
 			// To get the vaultSecretName from streamMessage
-			JsonNode streamMessageNode = objectMapper.readTree(streamMessage);
 			if (authorizationHeaderOpt.isPresent()) {
 
 				String authorizationHeader = authorizationHeaderOpt.get();
@@ -86,23 +147,55 @@ public class PopulateDataStreamFunction {
 
 				// If secret with the name vaultSecretName is not already present,
 				// create a secret
-				if (checkSecretInVault(vaultSecretName)) {
-					createSecretInVault(authorizationHeader, vaultSecretName);
+				Span vaultSpan = Tracing.startSpan("vault store", SpanKind.INTERNAL);
+				try {
+					if (checkSecretInVault(vaultSecretName)) {
+						createSecretInVault(authorizationHeader, vaultSecretName);
+					}
+				} finally {
+					vaultSpan.end();
 				}
 
 			}
 
-			storeMessageinStream(streamMessage, DATA_STREAM_OCID, streamKey);
+			List<PutMessagesResultEntry> putResults = storeMessageinStream(streamMessage, dataStream, streamKey);
+			String failedRecords = failedRecords(putResults, httpGatewayContext);
+			if (failedRecords != null) {
+				ingestSpan.setStatus(StatusCode.ERROR, "Put message error");
+				return failedRecords;
+			}
 
 		} catch (BmcException e) {
-			LOGGER.severe(e.getLocalizedMessage());
+			EVENTS.failure("ingest_failed", e, "key", streamKey, "status", e.getStatusCode());
+			ingestSpan.recordException(e);
+			ingestSpan.setStatus(StatusCode.ERROR);
+			if (e.getStatusCode() == 429) {
+				backpressure.recordThrottledPut();
+				return tooManyRequests(httpGatewayContext, IngestBackpressure.retryAfterSeconds(),
+						e.getLocalizedMessage());
+			}
 			httpGatewayContext.setStatusCode(e.getStatusCode());
 			return e.getLocalizedMessage();
 
 		} catch (JsonProcessingException jsonex) {
-			LOGGER.severe(jsonex.getLocalizedMessage());
-			httpGatewayContext.setStatusCode(500);
+			EVENTS.failure("payload_invalid", jsonex);
+			ingestSpan.setStatus(StatusCode.ERROR, "Invalid payload");
+			httpGatewayContext.setStatusCode(400);
 			return "Error occured in processing the payload ";
+
+		} catch (GeneralSecurityException e) {
+			EVENTS.failure("payload_encryption_failed", e, "key", streamKey);
+			ingestSpan.recordException(e);
+			ingestSpan.setStatus(StatusCode.ERROR, "Encryption failed");
+			httpGatewayContext.setStatusCode(500);
+			return "Error occured in encrypting the payload ";
+
+		} finally {
+			ingestScope.close();
+			ingestSpan.end();
+			// export the spans of this call
+			Tracing.flush();
+			EventLog.flush();
 		}
 
 		return "success";
@@ -174,33 +267,92 @@ public class PopulateDataStreamFunction {
 	}
 
 	/**
+	 * @param httpGatewayContext
+	 * @param retryAfterSeconds
 	 * @param message
-	 * @param streamOCID
+	 * @return String
+	 *
+	 *         This method sets the 429 status and the Retry-After header of the
+	 *         response
+	 */
+	private String tooManyRequests(HTTPGatewayContext httpGatewayContext, int retryAfterSeconds, String message) {
+
+		httpGatewayContext.setStatusCode(429);
+		httpGatewayContext.setResponseHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		return message;
+	}
+
+	/**
+	 * @param putResults
+	 * @param httpGatewayContext
+	 * @return String The status of each record as JSON, or null if all records
+	 *         were stored
+	 *
+	 *         This method reports the records the stream did not accept. A
+	 *         throttled record gets 429 and any other failure 500. The response
+	 *         status is the status of the failed records, or 207 if they differ.
+	 */
+	private String failedRecords(List<PutMessagesResultEntry> putResults, HTTPGatewayContext httpGatewayContext) {
+
+		List<Integer> failedStatuses = new ArrayList<>();
+		ObjectNode responseNode = new ObjectMapper().createObjectNode();
+		ArrayNode recordsNode = responseNode.putArray("records");
+
+		for (PutMessagesResultEntry entry : putResults) {
+			ObjectNode recordNode = recordsNode.addObject();
+
+			if (entry.getError() == null) {
+				recordNode.put("status", 200).put("partition", entry.getPartition()).put("offset", entry.getOffset());
+			} else {
+				int status = IngestBackpressure.isThrottled(entry.getError()) ? 429 : 500;
+				failedStatuses.add(status);
+				recordNode.put("status", status).put("error", entry.getError()).put("errorMessage",
+						entry.getErrorMessage());
+			}
+		}
+
+		if (failedStatuses.isEmpty()) {
+			return null;
+		}
+		int status = failedStatuses.stream().allMatch(failedStatuses.get(0)::equals) ? failedStatuses.get(0) : 207;
+		if (status == 429) {
+			tooManyRequests(httpGatewayContext, IngestBackpressure.retryAfterSeconds(), null);
+		} else {
+			httpGatewayContext.setStatusCode(status);
+		}
+		return responseNode.toString();
+	}
+
+	/**
+	 * @param message
+	 * @param stream
 	 * @param streamKey
+	 * @return List<PutMessagesResultEntry>
 	 * 
 	 * 
 	 *                   This method stores the message in the Stream
 	 */
-	private void storeMessageinStream(String message, String streamOCID, String streamKey) {
+	private List<PutMessagesResultEntry> storeMessageinStream(String message, Stream stream, String streamKey) {
 
-		StreamClient streamClient = StreamClient.builder().stream(getStream(streamOCID)).build(provider);
+		Span putSpan = Tracing.startSpan("stream put", SpanKind.PRODUCER);
+		try {
+			List<PutMessagesDetailsEntry> messages = Arrays
+					.asList(PutMessagesDetailsEntry.builder().key(streamKey.getBytes()).value(message.getBytes()).build());
 
-		PutMessagesDetails messagesDetails = PutMessagesDetails.builder()
-				.messages(Arrays.asList(
-						PutMessagesDetailsEntry.builder().key(streamKey.getBytes()).value(message.getBytes()).build()))
-				.build();
-		PutMessagesRequest putRequest = PutMessagesRequest.builder().streamId(streamOCID)
-				.putMessagesDetails(messagesDetails).build();
+			List<PutMessagesResultEntry> putResults = streamTransport.putMessages(stream, messages);
+			backpressure.recordPut(putResults);
+			for (PutMessagesResultEntry entry : putResults) {
+				if (entry.getError() != null) {
 
-		PutMessagesResponse putResponse = streamClient.putMessages(putRequest);
-		for (PutMessagesResultEntry entry : putResponse.getPutMessagesResult().getEntries()) {
-			if (entry.getError() != null) {
+					EVENTS.severe("stream_put_failed", "key", streamKey, "error", entry.getErrorMessage());
+				} else {
 
-				LOGGER.severe("Put message error " + entry.getErrorMessage());
-			} else {
-
-				LOGGER.info("Message pushed to offset " + entry.getOffset() + " in partition " + entry.getPartition());
+					EVENTS.sampled("stream_put", "offset", entry.getOffset(), "partition", entry.getPartition());
+				}
 			}
+			return putResults;
+		} finally {
+			putSpan.end();
 		}
 
 	}
@@ -0,0 +1,150 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Stream transport using the OCI Streaming REST API through StreamClient.
+//The REST API has no call for the latest offset of a partition. It is found by reading the
+//messages written in a growing time window before now, up to the latest one.
+
+package com.example.fn;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateCursorDetails;
+import com.oracle.bmc.streaming.model.CreateCursorDetails.Type;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.PartitionReservation;
+import com.oracle.bmc.streaming.model.PutMessagesDetails;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.requests.CreateCursorRequest;
+import com.oracle.bmc.streaming.requests.GetGroupRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import com.oracle.bmc.streaming.requests.PutMessagesRequest;
+import com.oracle.bmc.streaming.responses.GetMessagesResponse;
+import com.oracle.bmc.streaming.responses.PutMessagesResponse;
+
+public class RestStreamTransport implements StreamTransport {
+
+	// the time windows before now searched for the latest message, the last one
+	// being the stream retention period
+	private static final long[] LATEST_OFFSET_WINDOWS_MS = { 10000, 60000, 600000, 3600000, 86400000 };
+	private static final int MAX_READ_LIMIT = 10000;
+	private static final int MAX_LATEST_OFFSET_READS = 50;
+
+	private final BasicAuthenticationDetailsProvider provider;
+	// StreamClients are bound to the messages endpoint of a stream, so one client
+	// is kept per stream OCID for the life of the container.
+	private final Map<String, StreamClient> streamClients = new ConcurrentHashMap<>();
+
+	public RestStreamTransport(BasicAuthenticationDetailsProvider provider) {
+		this.provider = provider;
+	}
+
+	@Override
+	public List<PutMessagesResultEntry> putMessages(Stream stream, List<PutMessagesDetailsEntry> entries) {
+
+		PutMessagesDetails messagesDetails = PutMessagesDetails.builder().messages(entries).build();
+
+		PutMessagesRequest putRequest = PutMessagesRequest.builder().streamId(stream.getId())
+				.putMessagesDetails(messagesDetails).build();
+
+		PutMessagesResponse putResponse = getStreamClient(stream).putMessages(putRequest);
+
+		return putResponse.getPutMessagesResult().getEntries();
+	}
+
+	@Override
+	public long getLatestOffset(Stream stream, String partition) {
+
+		StreamClient streamClient = getStreamClient(stream);
+		long now = System.currentTimeMillis();
+
+		for (long windowMs : LATEST_OFFSET_WINDOWS_MS) {
+			long latestOffset = readToLatest(streamClient, stream.getId(), CreateCursorDetails.builder()
+					.partition(partition).type(Type.AtTime).time(new Date(now - windowMs)).build());
+			if (latestOffset >= 0) {
+				return latestOffset;
+			}
+		}
+		return readToLatest(streamClient, stream.getId(),
+				CreateCursorDetails.builder().partition(partition).type(Type.TrimHorizon).build());
+	}
+
+	@Override
+	public Map<String, Long> getCommittedOffsets(Stream stream, String groupName) {
+
+		Map<String, Long> committedOffsets = new HashMap<>();
+		List<PartitionReservation> reservations;
+
+		try {
+			reservations = getStreamClient(stream)
+					.getGroup(GetGroupRequest.builder().streamId(stream.getId()).groupName(groupName).build())
+					.getGroup().getReservations();
+		} catch (BmcException e) {
+			if (e.getStatusCode() == 404) {
+				return committedOffsets;
+			}
+			throw e;
+		}
+
+		for (PartitionReservation reservation : reservations) {
+			if (reservation.getCommittedOffset() != null) {
+				committedOffsets.put(reservation.getPartition(), reservation.getCommittedOffset());
+			}
+		}
+		return committedOffsets;
+	}
+
+	/**
+	 * @param streamClient
+	 * @param streamOCID
+	 * @param cursorDetails
+	 * @return long The offset of the last message read, or -1 if there are no
+	 *         messages after the cursor
+	 *
+	 *         This method reads from the cursor until no more messages are
+	 *         returned. After MAX_LATEST_OFFSET_READS reads it stops, and the
+	 *         offset returned is behind the latest one.
+	 */
+	private long readToLatest(StreamClient streamClient, String streamOCID, CreateCursorDetails cursorDetails) {
+
+		String cursor = streamClient.createCursor(
+				CreateCursorRequest.builder().streamId(streamOCID).createCursorDetails(cursorDetails).build())
+				.getCursor().getValue();
+		long latestOffset = -1;
+
+		for (int reads = 0; reads < MAX_LATEST_OFFSET_READS; reads++) {
+			GetMessagesResponse getResponse = streamClient.getMessages(
+					GetMessagesRequest.builder().streamId(streamOCID).cursor(cursor).limit(MAX_READ_LIMIT).build());
+			List<Message> messages = getResponse.getItems();
+
+			if (messages.isEmpty()) {
+				return latestOffset;
+			}
+			latestOffset = messages.get(messages.size() - 1).getOffset();
+			cursor = getResponse.getOpcNextCursor();
+		}
+		return latestOffset;
+	}
+
+	/**
+	 * @param stream
+	 * @return StreamClient
+	 *
+	 *         This method returns the cached StreamClient for a stream
+	 */
+	StreamClient getStreamClient(Stream stream) {
+
+		return streamClients.computeIfAbsent(stream.getId(),
+				id -> StreamClient.builder().stream(stream).build(provider));
+	}
+
+}
@@ -0,0 +1,64 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The transport used to produce messages to a Stream, and to read how far its consumers are behind.
+//The REST StreamClient is the default. The Kafka protocol transport is selected by
+//setting stream_transport to kafka in the Function Application configuration.
+
+package com.example.fn;
+
+import java.util.List;
+import java.util.Map;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+
+public interface StreamTransport {
+
+	/**
+	 * @param stream
+	 * @param entries
+	 * @return List<PutMessagesResultEntry> One result entry per message, in the
+	 *         order of the entries.
+	 *
+	 *         This method publishes the messages to the stream
+	 */
+	List<PutMessagesResultEntry> putMessages(Stream stream, List<PutMessagesDetailsEntry> entries);
+
+	/**
+	 * @param stream
+	 * @param partition
+	 * @return long The offset of the latest message in the partition, or -1 if
+	 *         the partition is empty.
+	 */
+	long getLatestOffset(Stream stream, String partition);
+
+	/**
+	 * @param stream
+	 * @param groupName
+	 * @return Map<String, Long> partition -> offset of the last message
+	 *         committed by the consumer group. Partitions the group has not
+	 *         committed are left out, and an unknown group returns an empty map.
+	 */
+	Map<String, Long> getCommittedOffsets(Stream stream, String groupName);
+
+	/**
+	 * @param provider
+	 * @return StreamTransport
+	 *
+	 *         This method creates the transport configured in the Function
+	 *         Application configuration.
+	 */
+	static StreamTransport create(BasicAuthenticationDetailsProvider provider) {
+
+		String transport = System.getenv().getOrDefault("stream_transport", "rest");
+
+		if ("kafka".equalsIgnoreCase(transport)) {
+			return new KafkaStreamTransport(provider);
+		}
+		return new RestStreamTransport(provider);
+	}
+
+}
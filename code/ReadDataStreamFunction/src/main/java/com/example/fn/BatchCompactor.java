@@ -0,0 +1,256 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Last-write-wins compaction of the messages of a batch before they are dispatched, enabled by
+//setting batch_compaction to true. Messages are compacted when they have the same stream key and
+//targetRestApi:
+//- a PUT replaces the target resource, so a PUT that is followed by another PUT is dropped.
+//- a POST that is followed by a DELETE, with only PUTs in between, creates a resource that is
+//  deleted again, so the POST, the PUTs and the DELETE are all dropped.
+//A message with conditional headers (If-Match, If-Unmodified-Since, ...), that a dispatch rule
+//matches, or that is not a valid PUT, POST or DELETE message, is never compacted, and nothing
+//before it is compacted with anything after it. The rules are applied after compaction, so a
+//message that replaced an earlier one must not be dropped or routed by a rule. A fan-out message
+//is never compacted either, and nothing of its stream key is compacted across it. The remaining
+//messages keep their stream order.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+public class BatchCompactor {
+
+	private static final EventLog EVENTS = EventLog.get(BatchCompactor.class);
+	private static final boolean ENABLED = Boolean
+			.parseBoolean(System.getenv().getOrDefault("batch_compaction", "false"));
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final DispatchRules dispatchRules;
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong supersededPuts = new AtomicLong();
+	private final AtomicLong foldedMessages = new AtomicLong();
+
+	/**
+	 * @param dispatchRules The rules MessageDispatcher applies to the compacted
+	 *                      messages
+	 */
+	public BatchCompactor(DispatchRules dispatchRules) {
+		this.dispatchRules = dispatchRules;
+	}
+
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * @param deliveries The messages of a batch, in stream order
+	 * @return List<TenantScheduler.Delivery> The messages left after compaction,
+	 *         in stream order
+	 */
+	public List<TenantScheduler.Delivery> compact(List<TenantScheduler.Delivery> deliveries) {
+
+		if (!ENABLED || deliveries.size() < 2) {
+			return deliveries;
+		}
+
+		TenantScheduler.Delivery[] kept = deliveries.toArray(new TenantScheduler.Delivery[0]);
+		// (key, target) -> the indexes of the compactable messages kept since the
+		// last message that could not be compacted
+		Map<String, List<Integer>> groups = new HashMap<>();
+		Map<Integer, String> operations = new HashMap<>();
+		int superseded = 0;
+		int folded = 0;
+
+		for (int i = 0; i < kept.length; i++) {
+
+			String streamKey = kept[i].getStreamKey();
+			if (streamKey.isEmpty()) {
+				continue;
+			}
+			Target target = readTarget(kept[i].getStreamMessage());
+			if (target.compactable && matchesRule(kept[i].getStreamMessage())) {
+				target.compactable = false;
+			}
+			if (target.fanOut) {
+				// a fan-out message may call any target of the key
+				String keyPrefix = streamKey + "\n";
+				groups.forEach((key, group) -> {
+					if (key.startsWith(keyPrefix)) {
+						group.clear();
+					}
+				});
+				continue;
+			}
+			if (target.api == null) {
+				continue;
+			}
+
+			List<Integer> group = groups.computeIfAbsent(streamKey + "\n" + target.api, g -> new ArrayList<>());
+			if (!target.compactable) {
+				group.clear();
+				continue;
+			}
+			operations.put(i, target.operation);
+
+			switch (target.operation) {
+			case "PUT":
+				if (!group.isEmpty() && "PUT".equals(operations.get(group.get(group.size() - 1)))) {
+					kept[group.remove(group.size() - 1)] = null;
+					superseded = superseded + 1;
+				}
+				group.add(i);
+				break;
+
+			case "DELETE":
+				int post = group.size() - 1;
+				while (post >= 0 && "PUT".equals(operations.get(group.get(post)))) {
+					post = post - 1;
+				}
+				if (post >= 0 && "POST".equals(operations.get(group.get(post)))) {
+					while (group.size() > post) {
+						kept[group.remove(group.size() - 1)] = null;
+						folded = folded + 1;
+					}
+					kept[i] = null;
+					folded = folded + 1;
+				} else {
+					group.add(i);
+				}
+				break;
+
+			default:
+				group.add(i);
+			}
+		}
+
+		messages.addAndGet(kept.length);
+		if (superseded + folded == 0) {
+			return deliveries;
+		}
+		supersededPuts.addAndGet(superseded);
+		foldedMessages.addAndGet(folded);
+		EVENTS.info("batch_compacted", "messages", kept.length, "compacted", superseded + folded, "supersededPuts",
+				superseded, "foldedMessages", folded);
+
+		List<TenantScheduler.Delivery> compacted = new ArrayList<>(kept.length - superseded - folded);
+		for (TenantScheduler.Delivery delivery : kept) {
+			if (delivery != null) {
+				compacted.add(delivery);
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * This method emits the no. of messages seen, superseded PUT messages and
+	 * folded messages since the last call as a batch_compaction_stats event, and
+	 * resets them.
+	 */
+	public void logStats() {
+
+		EVENTS.info("batch_compaction_stats", "messages", messages.getAndSet(0), "supersededPuts",
+				supersededPuts.getAndSet(0), "foldedMessages", foldedMessages.getAndSet(0));
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return boolean Returns true if a dispatch rule matches the message, or it
+	 *         cannot be matched
+	 */
+	private boolean matchesRule(byte[] streamMessage) {
+
+		if (dispatchRules.isEmpty()) {
+			return false;
+		}
+		try {
+			return dispatchRules.match(streamMessage) != null;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return Target The target of the message, read from its top level fields
+	 *         without building a tree
+	 */
+	private static Target readTarget(byte[] streamMessage) {
+
+		Target target = new Target();
+
+		try (JsonParser parser = JSON_FACTORY.createParser(streamMessage)) {
+
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return target;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				if ("targetRestApi".equals(field) && value == JsonToken.VALUE_STRING) {
+					target.api = parser.getText();
+				} else if ("targetRestApiOperation".equals(field) && value == JsonToken.VALUE_STRING) {
+					target.operation = parser.getText();
+				} else if ("targetRestApiHeaders".equals(field) && value == JsonToken.START_ARRAY) {
+					target.conditional = hasConditionalHeader(parser);
+				} else if (TargetMessage.TARGETS_NODE_NAME.equals(field)) {
+					target.fanOut = true;
+					parser.skipChildren();
+				} else {
+					parser.skipChildren();
+				}
+			}
+		} catch (IOException e) {
+			// invalid messages are reported by the dispatcher
+			target.api = null;
+			return target;
+		}
+
+		target.compactable = !target.conditional && ("PUT".equals(target.operation)
+				|| "POST".equals(target.operation) || "DELETE".equals(target.operation));
+		return target;
+	}
+
+	/**
+	 * @param parser A parser positioned on the start of the targetRestApiHeaders
+	 *               array of key, value objects
+	 * @return boolean Returns true if a header makes the call conditional
+	 */
+	private static boolean hasConditionalHeader(JsonParser parser) throws IOException {
+
+		boolean conditional = false;
+
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				if ("key".equals(field) && value == JsonToken.VALUE_STRING
+						&& parser.getText().toLowerCase().startsWith("if-")) {
+					conditional = true;
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return conditional;
+	}
+
+	private static class Target {
+		private String api;
+		private String operation;
+		private boolean conditional;
+		private boolean compactable;
+		private boolean fanOut;
+	}
+
+}
@@ -0,0 +1,270 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Long running consumer of the DataSyncStream, for steady high volume workloads where the
+//Service Connector to Function hop adds too much latency. It runs the same MessageDispatcher
+//as ReadDataStreamFunction, as a container or on a VM.
+//A polling thread reads batches using a consumer group and prefetches them into a bounded
+//queue, while a dispatch thread processes them. Batches are committed by the polling thread
+//once they are dispatched, so a message is delivered at least once. While the queue is full, the
+//polling thread keeps the group membership alive without reading more messages. A failed poll or
+//commit is logged and tried again with a backoff, so only a stop ends the consumer.
+//The messages of a batch are dispatched concurrently by TenantScheduler, in weighted fair order
+//across the source applications. The per tenant counters are logged every
+//tenant_stats_interval_seconds, along with the message expiry counters, and the batch compaction
+//and hedged request counters when they are enabled.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.auth.InstancePrincipalsAuthenticationDetailsProvider;
+import com.oracle.bmc.auth.ResourcePrincipalAuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.model.Message;
+
+public class DataSyncConsumer {
+
+	private static final Logger LOGGER = Logger.getLogger(DataSyncConsumer.class.getName());
+	private static final String DATA_STREAM_OCID = System.getenv().get("data_stream_ocid");
+	private static final String AUTH_TYPE = System.getenv().getOrDefault("auth_type", "instance_principal");
+	private static final String GROUP_NAME = System.getenv().getOrDefault("consumer_group_name",
+			"DataSyncConsumerGroup");
+	private static final int POLL_LIMIT = Integer
+			.parseInt(System.getenv().getOrDefault("consumer_poll_limit", "100"));
+	private static final int PREFETCH_BATCHES = Integer
+			.parseInt(System.getenv().getOrDefault("consumer_prefetch_batches", "4"));
+	private static final long IDLE_POLL_MS = 250;
+	private static final long HEARTBEAT_MS = 5000;
+	private static final long ERROR_BACKOFF_MS = 1000;
+	private static final long MAX_ERROR_BACKOFF_MS = 30000;
+	private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+	private static final long STATS_INTERVAL_MS = Long
+			.parseLong(System.getenv().getOrDefault("tenant_stats_interval_seconds", "60")) * 1000;
+
+	private final StreamTransport streamTransport;
+	private final MessageDispatcher dispatcher;
+	private final TenantScheduler scheduler;
+	private final BatchCompactor compactor;
+	private final String instanceName;
+	private final BlockingQueue<StreamSubscription.Batch> fetchedBatches = new ArrayBlockingQueue<>(
+			PREFETCH_BATCHES);
+	private final BlockingQueue<StreamSubscription.Batch> dispatchedBatches = new LinkedBlockingQueue<>();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private volatile boolean running = true;
+
+	public DataSyncConsumer(StreamTransport streamTransport, MessageDispatcher dispatcher, String instanceName) {
+		this.streamTransport = streamTransport;
+		this.dispatcher = dispatcher;
+		this.scheduler = new TenantScheduler(dispatcher);
+		this.compactor = new BatchCompactor(dispatcher.getDispatchRules());
+		this.instanceName = instanceName;
+	}
+
+	/**
+	 * @param args
+	 *
+	 *             This is the entry point of the consumer process.
+	 */
+	public static void main(String[] args) {
+
+		BasicAuthenticationDetailsProvider provider = "resource_principal".equals(AUTH_TYPE)
+				? ResourcePrincipalAuthenticationDetailsProvider.builder().build()
+				: InstancePrincipalsAuthenticationDetailsProvider.builder().build();
+
+		StreamTransport streamTransport = StreamTransport.create(provider);
+		MessageDispatcher dispatcher = new MessageDispatcher(provider, streamTransport);
+
+		if (!dispatcher.streamsExist()) {
+			System.exit(1);
+		}
+
+		DataSyncConsumer consumer = new DataSyncConsumer(streamTransport, dispatcher,
+				System.getenv().getOrDefault("consumer_instance_name", hostName()));
+
+		Runtime.getRuntime().addShutdownHook(new Thread(consumer::stop));
+
+		consumer.run();
+	}
+
+	/**
+	 * This method polls the DataSyncStream until the consumer is stopped. On
+	 * stop, the prefetched batches are dispatched and committed before the
+	 * subscription is closed.
+	 */
+	public void run() {
+
+		Thread dispatchThread = new Thread(this::dispatchBatches, "datasync-dispatch");
+		dispatchThread.start();
+
+		try (StreamSubscription subscription = streamTransport.subscribe(dispatcher.getStream(DATA_STREAM_OCID),
+				GROUP_NAME, instanceName, POLL_LIMIT)) {
+
+			LOGGER.log(Level.INFO, "Consumer {0} joined group {1}", new Object[] { instanceName, GROUP_NAME });
+
+			// the polled batch that is waiting for room in the prefetch queue
+			StreamSubscription.Batch batch = null;
+			int failures = 0;
+
+			while (running) {
+
+				try {
+					commitDispatchedBatches(subscription);
+
+					if (batch == null) {
+						batch = subscription.poll();
+						if (batch.getMessages().isEmpty()) {
+							batch = null;
+							failures = 0;
+							TimeUnit.MILLISECONDS.sleep(IDLE_POLL_MS);
+							continue;
+						}
+					}
+
+					// wait for the dispatch thread while keeping the group membership alive
+					if (fetchedBatches.offer(batch, HEARTBEAT_MS, TimeUnit.MILLISECONDS)) {
+						batch = null;
+					} else {
+						subscription.heartbeat();
+					}
+					failures = 0;
+
+				} catch (RuntimeException e) {
+					// the Streaming service or the Kafka client failed, try again until stopped
+					long backoffMs = Math.min(MAX_ERROR_BACKOFF_MS, ERROR_BACKOFF_MS << Math.min(failures, 5));
+					failures++;
+					LOGGER.log(Level.WARNING, "Consumer {0} poll or commit failed, retrying in {1} ms. {2}",
+							new Object[] { instanceName, backoffMs, e.toString() });
+					TimeUnit.MILLISECONDS.sleep(backoffMs);
+				}
+			}
+
+			dispatchThread.join();
+			try {
+				commitDispatchedBatches(subscription);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Consumer {0} final commit failed, the last batches are delivered again. {1}",
+						new Object[] { instanceName, e.toString() });
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.severe("Consumer interrupted " + e.getLocalizedMessage());
+
+		} finally {
+			running = false;
+			Tracing.flush();
+			EventLog.flush();
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * This method stops polling and waits for the in-flight batches to be
+	 * dispatched and committed.
+	 */
+	public void stop() {
+
+		running = false;
+
+		try {
+			if (!stopped.await(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				LOGGER.severe("Consumer did not stop within the shutdown timeout.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * This method runs on the dispatch thread and processes the prefetched
+	 * batches in order. A batch is complete once the messages of every tenant in
+	 * it are dispatched.
+	 */
+	private void dispatchBatches() {
+
+		long statsLoggedAt = System.currentTimeMillis();
+
+		while (running || !fetchedBatches.isEmpty()) {
+
+			if (System.currentTimeMillis() - statsLoggedAt >= STATS_INTERVAL_MS) {
+				scheduler.logStats();
+				dispatcher.logExpiryStats();
+				if (BatchCompactor.isEnabled()) {
+					compactor.logStats();
+				}
+				if (RequestHedger.isEnabled()) {
+					dispatcher.logHedgeStats();
+				}
+				statsLoggedAt = System.currentTimeMillis();
+			}
+
+			StreamSubscription.Batch batch;
+			try {
+				batch = fetchedBatches.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (batch == null) {
+				continue;
+			}
+
+			List<TenantScheduler.Delivery> deliveries = new ArrayList<>(batch.getMessages().size());
+
+			for (Message message : batch.getMessages()) {
+
+				String streamKey = message.getKey() != null ? new String(message.getKey(), UTF_8) : "";
+				deliveries.add(new TenantScheduler.Delivery(message.getValue(), streamKey));
+			}
+
+			try {
+				scheduler.dispatchAll(compactor.compact(dispatcher.shedExpired(deliveries)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			dispatchedBatches.add(batch);
+		}
+		scheduler.logStats();
+		scheduler.close();
+	}
+
+	/**
+	 * @param subscription
+	 *
+	 *                     This method commits the batches dispatched since the
+	 *                     last call, in the order they were polled
+	 */
+	private void commitDispatchedBatches(StreamSubscription subscription) {
+
+		StreamSubscription.Batch batch;
+
+		while ((batch = dispatchedBatches.poll()) != null) {
+			subscription.commit(batch);
+		}
+	}
+
+	private static String hostName() {
+
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "DataSyncConsumer";
+		}
+	}
+
+}
@@ -0,0 +1,339 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Content based filter and transform rules applied by MessageDispatcher before the target call.
+//The rules are read from the dispatch_rules configuration variable and compiled once per
+//container. A message is matched in a single streaming pass, capturing only the values the
+//rules refer to, so dropped and routed messages never build a JsonNode tree.
+//
+//Example:
+//[{"when": {"path": "$.targetRestApiPayload.status", "equals": "DRAFT"}, "action": "drop"},
+// {"when": {"path": "$.targetRestApi", "matches": "https://legacy\\..*"}, "action": "route", "stream": "ocid1.stream..."},
+// {"when": {"path": "$.targetRestApiOperation", "in": ["PUT", "POST"]}, "action": "transform",
+//  "project": ["orderid", "PO"], "rename": {"PO": "purchaseOrder"}}]
+//Rules are evaluated in order and the first matching rule applies. A rule without "when"
+//matches every message. The rules are matched before the payload is decrypted, so a predicate on
+//a targetRestApiPayload path never matches an encrypted message, see PayloadCipher.
+
+package com.example.fn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DispatchRules {
+
+	public enum Action {
+		DISPATCH, DROP, ROUTE, TRANSFORM
+	}
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final DispatchRules NO_RULES = new DispatchRules(Collections.emptyList());
+
+	private final List<Rule> rules;
+	// every path referred to by a predicate, and all of their parent paths
+	private final Set<String> watchedPaths = new HashSet<>();
+
+	private DispatchRules(List<Rule> rules) {
+		this.rules = rules;
+		for (Rule rule : rules) {
+			if (rule.path != null) {
+				String path = rule.path;
+				while (!path.isEmpty()) {
+					watchedPaths.add(path);
+					path = parentPath(path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return DispatchRules
+	 *
+	 *         This method compiles the rules in the dispatch_rules configuration
+	 *         variable. It throws IllegalArgumentException if the rules are
+	 *         invalid, so a misconfiguration fails the container at start up.
+	 */
+	public static DispatchRules fromConfig() {
+
+		String config = System.getenv().get("dispatch_rules");
+
+		if (config == null || config.isBlank()) {
+			return NO_RULES;
+		}
+		try {
+			return compile(new ObjectMapper().readTree(config));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("dispatch_rules is not valid JSON. " + e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * @param rulesNode
+	 * @return DispatchRules
+	 *
+	 *         This method compiles a JSON array of rules.
+	 */
+	public static DispatchRules compile(JsonNode rulesNode) {
+
+		List<Rule> rules = new ArrayList<>();
+
+		for (JsonNode ruleNode : rulesNode) {
+			rules.add(new Rule(ruleNode));
+		}
+		return new DispatchRules(rules);
+	}
+
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return Rule The first matching rule, or null if no rule matches.
+	 * @throws IOException
+	 */
+	public Rule match(byte[] streamMessage) throws IOException {
+
+		if (rules.isEmpty()) {
+			return null;
+		}
+		Map<String, String> values = capture(streamMessage);
+
+		for (Rule rule : rules) {
+			if (rule.matches(values)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return Map<String, String>
+	 * @throws IOException
+	 *
+	 *                     This method reads the message once and captures the
+	 *                     text of the scalar values at the watched paths.
+	 *                     Objects and arrays outside the watched paths are
+	 *                     skipped without being read.
+	 */
+	private Map<String, String> capture(byte[] streamMessage) throws IOException {
+
+		Map<String, String> values = new HashMap<>();
+
+		try (JsonParser parser = JSON_FACTORY.createParser(streamMessage)) {
+
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+
+				if (token == JsonToken.FIELD_NAME) {
+					continue;
+				}
+				String path = currentPath(parser, token);
+
+				if (token.isStructStart()) {
+					if (!path.equals("$") && !watchedPaths.contains(path)) {
+						parser.skipChildren();
+					} else if (watchedPaths.contains(path)) {
+						values.put(path, "");
+					}
+				} else if (token.isScalarValue() && watchedPaths.contains(path)) {
+					values.put(path, token == JsonToken.VALUE_NULL ? null : parser.getText());
+				}
+			}
+		}
+		return values;
+	}
+
+	private static String currentPath(JsonParser parser, JsonToken token) {
+
+		JsonStreamContext context = parser.getParsingContext();
+		// for a start token the context is the new object/array, so begin with its
+		// parent
+		if (token.isStructStart()) {
+			context = context.getParent();
+		}
+		StringBuilder path = new StringBuilder();
+		appendPath(context, path);
+		return path.toString();
+	}
+
+	private static void appendPath(JsonStreamContext context, StringBuilder path) {
+
+		if (context.inRoot()) {
+			path.append('$');
+			return;
+		}
+		appendPath(context.getParent(), path);
+		if (context.inObject()) {
+			path.append('.').append(context.getCurrentName());
+		} else {
+			path.append('[').append(context.getCurrentIndex()).append(']');
+		}
+	}
+
+	private static String parentPath(String path) {
+
+		int end = Math.max(path.lastIndexOf('.'), path.lastIndexOf('['));
+		return end <= 0 ? "" : path.substring(0, end);
+	}
+
+	/**
+	 * A compiled rule. The predicate is on the value at one path of the stream
+	 * message.
+	 */
+	public static class Rule {
+
+		private final String path;
+		private final boolean exists;
+		private final String equals;
+		private final String notEquals;
+		private final Set<String> in;
+		private final Pattern matches;
+		private final Action action;
+		private final String stream;
+		private final Set<String> project;
+		private final Map<String, String> rename;
+
+		Rule(JsonNode ruleNode) {
+
+			JsonNode when = ruleNode.path("when");
+			path = when.has("path") ? normalizePath(when.get("path").asText()) : null;
+			exists = when.path("exists").asBoolean(true);
+			equals = when.has("equals") ? when.get("equals").asText() : null;
+			notEquals = when.has("notEquals") ? when.get("notEquals").asText() : null;
+			matches = when.has("matches") ? Pattern.compile(when.get("matches").asText()) : null;
+
+			if (when.has("in")) {
+				in = new HashSet<>();
+				when.get("in").forEach(value -> in.add(value.asText()));
+			} else {
+				in = null;
+			}
+
+			try {
+				action = Action.valueOf(ruleNode.path("action").asText().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(
+						"dispatch_rules action must be one of drop, route, transform or dispatch. " + ruleNode);
+			}
+
+			stream = ruleNode.has("stream") ? ruleNode.get("stream").asText() : null;
+			if (action == Action.ROUTE && stream == null) {
+				throw new IllegalArgumentException("dispatch_rules route action needs a stream. " + ruleNode);
+			}
+
+			if (ruleNode.has("project")) {
+				project = new HashSet<>();
+				ruleNode.get("project").forEach(field -> project.add(field.asText()));
+			} else {
+				project = null;
+			}
+
+			rename = new HashMap<>();
+			Iterator<Map.Entry<String, JsonNode>> renames = ruleNode.path("rename").fields();
+			while (renames.hasNext()) {
+				Map.Entry<String, JsonNode> entry = renames.next();
+				rename.put(entry.getKey(), entry.getValue().asText());
+			}
+		}
+
+		private static String normalizePath(String path) {
+
+			if (path.equals("$") || path.startsWith("$.") || path.startsWith("$[")) {
+				return path;
+			}
+			throw new IllegalArgumentException("dispatch_rules path must start with $. " + path);
+		}
+
+		boolean matches(Map<String, String> values) {
+
+			if (path == null) {
+				return true;
+			}
+			boolean present = values.containsKey(path);
+			if (!exists) {
+				return !present;
+			}
+			if (!present) {
+				return false;
+			}
+			String value = values.get(path);
+
+			return (equals == null || equals.equals(value)) && (notEquals == null || !notEquals.equals(value))
+					&& (in == null || in.contains(value))
+					&& (matches == null || (value != null && matches.matcher(value).matches()));
+		}
+
+		public Action getAction() {
+			return action;
+		}
+
+		public String getStream() {
+			return stream;
+		}
+
+		/**
+		 * @param payloadParser A parser positioned on the start of the
+		 *                      targetRestApiPayload object.
+		 * @return byte[] The projected and renamed payload, UTF-8 encoded.
+		 * @throws IOException
+		 *
+		 *                     This method copies the top level fields of the payload
+		 *                     that are kept by the projection, under their new
+		 *                     names, without building a tree.
+		 */
+		public byte[] transform(JsonParser payloadParser) throws IOException {
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+			try (JsonGenerator generator = JSON_FACTORY.createGenerator(output, JsonEncoding.UTF8)) {
+
+				if (payloadParser.currentToken() != JsonToken.START_OBJECT) {
+					generator.copyCurrentStructure(payloadParser);
+					generator.flush();
+					return output.toByteArray();
+				}
+
+				generator.writeStartObject();
+				while (payloadParser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = payloadParser.getCurrentName();
+					payloadParser.nextToken();
+
+					if (project != null && !project.contains(field)) {
+						payloadParser.skipChildren();
+						continue;
+					}
+					generator.writeFieldName(rename.getOrDefault(field, field));
+					generator.copyCurrentStructure(payloadParser);
+				}
+				generator.writeEndObject();
+			}
+			return output.toByteArray();
+		}
+
+		@Override
+		public String toString() {
+			return action + (path != null ? " when " + path : "");
+		}
+	}
+
+}
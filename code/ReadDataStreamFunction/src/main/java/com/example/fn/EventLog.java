@@ -0,0 +1,306 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Structured logging of the per message events. Each event is one JSON line with the event name and
+//its key, value fields, e.g.
+//{"time":"2022-10-10T00:00:00.120Z","level":"INFO","logger":"MessageDispatcher","event":"error_stream_put","offset":12,"partition":"0"}
+//An event is only recorded if its level is enabled for the logger in the java.util.logging
+//configuration, and the line is formatted by a background thread that writes the queued events in
+//batches, so the dispatch path neither formats strings nor waits for the log output. When
+//log_queue_size events are waiting, INFO events are dropped and counted, and WARNING and SEVERE
+//events are written by the calling thread. Frequent success events are logged with sampled(), which
+//writes one of every log_sample_rate occurrences of the event. A failure is one SEVERE event with
+//the exception class, message and the frame that threw it, in place of a stack trace.
+//The functions call flush() at the end of each call, as the container may be paused between calls.
+
+package com.example.fn;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class EventLog {
+
+	private static final int QUEUE_SIZE = Integer.parseInt(System.getenv().getOrDefault("log_queue_size", "8192"));
+	private static final long SAMPLE_RATE = Math.max(1,
+			Long.parseLong(System.getenv().getOrDefault("log_sample_rate", "100")));
+	private static final int BATCH_SIZE = 256;
+	private static final long FLUSH_TIMEOUT_MS = 5000;
+	// java.util.logging writes to stderr, so the events are written next to the other log lines
+	private static final PrintStream OUT = System.err;
+
+	private static final BlockingQueue<Event> QUEUE = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	// the no. of events that are queued or being written
+	private static final AtomicLong PENDING = new AtomicLong();
+	private static final AtomicLong DROPPED = new AtomicLong();
+	private static final Object FLUSHED = new Object();
+
+	static {
+		Thread writer = new Thread(EventLog::writeEvents, "event-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private final Logger logger;
+	private final String name;
+	private final Map<String, AtomicLong> occurrences = new ConcurrentHashMap<>();
+
+	private EventLog(Class<?> source) {
+		this.logger = Logger.getLogger(source.getName());
+		this.name = source.getSimpleName();
+	}
+
+	/**
+	 * @param source The class that logs the events
+	 * @return EventLog
+	 */
+	public static EventLog get(Class<?> source) {
+		return new EventLog(source);
+	}
+
+	public boolean isInfoEnabled() {
+		return logger.isLoggable(Level.INFO);
+	}
+
+	/**
+	 * @param event     The event name
+	 * @param keyValues The fields of the event, as key, value pairs. The values
+	 *                  are formatted later, so they must not change after the
+	 *                  call.
+	 */
+	public void info(String event, Object... keyValues) {
+
+		if (logger.isLoggable(Level.INFO)) {
+			enqueue(new Event(Level.INFO, name, event, null, keyValues));
+		}
+	}
+
+	/**
+	 * @param event
+	 * @param keyValues
+	 *
+	 *                  This method logs one of every log_sample_rate occurrences
+	 *                  of the event, with the no. of occurrences so far.
+	 */
+	public void sampled(String event, Object... keyValues) {
+
+		if (!logger.isLoggable(Level.INFO)) {
+			return;
+		}
+		long occurrence = occurrences.computeIfAbsent(event, key -> new AtomicLong()).incrementAndGet();
+		if ((occurrence - 1) % SAMPLE_RATE == 0) {
+			enqueue(new Event(Level.INFO, name, event, null, keyValues).withOccurrences(occurrence));
+		}
+	}
+
+	public void warning(String event, Object... keyValues) {
+
+		if (logger.isLoggable(Level.WARNING)) {
+			enqueue(new Event(Level.WARNING, name, event, null, keyValues));
+		}
+	}
+
+	public void severe(String event, Object... keyValues) {
+
+		if (logger.isLoggable(Level.SEVERE)) {
+			enqueue(new Event(Level.SEVERE, name, event, null, keyValues));
+		}
+	}
+
+	/**
+	 * @param event
+	 * @param error     The cause of the failure
+	 * @param keyValues
+	 */
+	public void failure(String event, Throwable error, Object... keyValues) {
+
+		if (logger.isLoggable(Level.SEVERE)) {
+			enqueue(new Event(Level.SEVERE, name, event, error, keyValues));
+		}
+	}
+
+	/**
+	 * This method waits until the queued events are written.
+	 */
+	public static void flush() {
+
+		long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+		synchronized (FLUSHED) {
+			long remaining = FLUSH_TIMEOUT_MS;
+			while (PENDING.get() > 0 && remaining > 0) {
+				try {
+					FLUSHED.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+	}
+
+	private static void enqueue(Event event) {
+
+		PENDING.incrementAndGet();
+		if (QUEUE.offer(event)) {
+			return;
+		}
+		PENDING.decrementAndGet();
+
+		if (event.level == Level.INFO) {
+			DROPPED.incrementAndGet();
+		} else {
+			// failures are never dropped
+			StringBuilder line = new StringBuilder(256);
+			event.format(line);
+			synchronized (OUT) {
+				OUT.print(line);
+			}
+		}
+	}
+
+	private static void writeEvents() {
+
+		List<Event> batch = new ArrayList<>(BATCH_SIZE);
+		StringBuilder lines = new StringBuilder(BATCH_SIZE * 256);
+
+		while (true) {
+			try {
+				batch.add(QUEUE.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			QUEUE.drainTo(batch, BATCH_SIZE - 1);
+
+			long dropped = DROPPED.getAndSet(0);
+			if (dropped > 0) {
+				new Event(Level.WARNING, "EventLog", "log_events_dropped", null, new Object[] { "count", dropped })
+						.format(lines);
+			}
+			for (Event event : batch) {
+				int lineStart = lines.length();
+				try {
+					event.format(lines);
+				} catch (RuntimeException e) {
+					// an event whose value cannot be formatted is skipped
+					lines.setLength(lineStart);
+				}
+			}
+			synchronized (OUT) {
+				OUT.print(lines);
+				OUT.flush();
+			}
+
+			if (PENDING.addAndGet(-batch.size()) == 0) {
+				synchronized (FLUSHED) {
+					FLUSHED.notifyAll();
+				}
+			}
+			batch.clear();
+			lines.setLength(0);
+		}
+	}
+
+	private static final class Event {
+
+		private final long time = System.currentTimeMillis();
+		private final Level level;
+		private final String logger;
+		private final String name;
+		private final Throwable error;
+		private final Object[] keyValues;
+		private long occurrences;
+
+		Event(Level level, String logger, String name, Throwable error, Object[] keyValues) {
+			this.level = level;
+			this.logger = logger;
+			this.name = name;
+			this.error = error;
+			this.keyValues = keyValues;
+		}
+
+		Event withOccurrences(long occurrences) {
+			this.occurrences = occurrences;
+			return this;
+		}
+
+		void format(StringBuilder line) {
+
+			line.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append("\",\"level\":\"")
+					.append(level.getName()).append("\",\"logger\":\"").append(logger).append("\",\"event\":");
+			appendValue(line, name);
+
+			for (int i = 0; i + 1 < keyValues.length; i += 2) {
+				line.append(',');
+				appendValue(line, String.valueOf(keyValues[i]));
+				line.append(':');
+				appendValue(line, keyValues[i + 1]);
+			}
+			if (occurrences > 0) {
+				line.append(",\"occurrences\":").append(occurrences);
+			}
+			if (error != null) {
+				line.append(",\"error\":");
+				appendValue(line, error.getClass().getName());
+				line.append(",\"message\":");
+				appendValue(line, error.getLocalizedMessage());
+				StackTraceElement[] stackTrace = error.getStackTrace();
+				if (stackTrace.length > 0) {
+					line.append(",\"at\":");
+					appendValue(line, stackTrace[0].toString());
+				}
+			}
+			line.append("}\n");
+		}
+
+		private static void appendValue(StringBuilder line, Object value) {
+
+			if (value == null) {
+				line.append("null");
+				return;
+			}
+			if (value instanceof Number || value instanceof Boolean) {
+				line.append(value);
+				return;
+			}
+			String text = value.toString();
+			line.append('"');
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				switch (c) {
+				case '"':
+					line.append("\\\"");
+					break;
+				case '\\':
+					line.append("\\\\");
+					break;
+				case '\n':
+					line.append("\\n");
+					break;
+				case '\r':
+					line.append("\\r");
+					break;
+				case '\t':
+					line.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						line.append(String.format("\\u%04x", (int) c));
+					} else {
+						line.append(c);
+					}
+				}
+			}
+			line.append('"');
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Consumer group subscription using the Kafka protocol support of OCI Streaming.
+//The instance name is used as a static group member id, so a restarting consumer gets
+//its partitions back without a rebalance. Processed offsets are committed before
+//partitions are revoked from this instance.
+//While the consumer waits for its dispatch thread, heartbeat() pauses the assigned partitions and
+//polls, so that the member is not evicted after max.poll.interval.ms. The next poll() resumes them.
+//If the member was evicted anyway, the offsets it could not commit are dropped, and their messages
+//are delivered again to the partitions' new owner.
+
+package com.example.fn;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.kafka.clients.consumer.CommitFailedException;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+
+import com.oracle.bmc.streaming.model.Message;
+
+public class KafkaStreamSubscription implements StreamSubscription {
+
+	private static final Logger LOGGER = Logger.getLogger(KafkaStreamSubscription.class.getName());
+	private static final String INITIAL_POSITION = System.getenv().getOrDefault("consumer_initial_position",
+			"LATEST");
+	private static final Duration POLL_TIMEOUT = Duration.ofMillis(500);
+
+	private final KafkaConsumer<byte[], byte[]> consumer;
+	private final Map<TopicPartition, OffsetAndMetadata> processedOffsets = new HashMap<>();
+
+	public KafkaStreamSubscription(String topic, String groupName, String instanceName, int limit) {
+
+		Properties consumerProperties = KafkaStreamTransport.connectionProperties();
+		consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+		consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+				ByteArrayDeserializer.class.getName());
+		consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG, groupName);
+		consumerProperties.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, instanceName);
+		consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+		consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(limit));
+		consumerProperties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG,
+				"TRIM_HORIZON".equalsIgnoreCase(INITIAL_POSITION) ? "earliest" : "latest");
+
+		consumer = new KafkaConsumer<>(consumerProperties);
+		consumer.subscribe(Collections.singletonList(topic), new ConsumerRebalanceListener() {
+
+			@Override
+			public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+				try {
+					commitProcessedOffsets();
+				} catch (CommitFailedException e) {
+					// logged, the messages are delivered again to the new owner
+				}
+				processedOffsets.keySet().removeAll(partitions);
+			}
+
+			@Override
+			public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+				LOGGER.log(Level.INFO, "Partitions assigned {0}", partitions);
+			}
+		});
+	}
+
+	@Override
+	public Batch poll() {
+
+		consumer.resume(consumer.paused());
+		ConsumerRecords<byte[], byte[]> records = consumer.poll(POLL_TIMEOUT);
+
+		List<Message> messages = new ArrayList<>(records.count());
+		Map<TopicPartition, OffsetAndMetadata> position = new HashMap<>();
+
+		for (ConsumerRecord<byte[], byte[]> record : records) {
+			messages.add(Message.builder().stream(record.topic()).partition(String.valueOf(record.partition()))
+					.key(record.key()).value(record.value()).offset(record.offset())
+					.timestamp(new Date(record.timestamp())).build());
+			position.put(new TopicPartition(record.topic(), record.partition()),
+					new OffsetAndMetadata(record.offset() + 1));
+		}
+
+		return new Batch(messages, position);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void commit(Batch batch) {
+
+		processedOffsets.putAll((Map<TopicPartition, OffsetAndMetadata>) batch.getPosition());
+		commitProcessedOffsets();
+	}
+
+	@Override
+	public void heartbeat() {
+
+		// The Kafka client sends group heartbeats from its own thread, but evicts the
+		// member unless poll is called within max.poll.interval.ms
+		consumer.pause(consumer.assignment());
+		ConsumerRecords<byte[], byte[]> records = consumer.poll(Duration.ZERO);
+
+		// partitions assigned by a rebalance during the poll are not paused, their
+		// records are read again by the next poll
+		for (TopicPartition partition : records.partitions()) {
+			consumer.seek(partition, records.records(partition).get(0).offset());
+		}
+	}
+
+	@Override
+	public void close() {
+		commitProcessedOffsets();
+		consumer.close();
+	}
+
+	private void commitProcessedOffsets() {
+
+		if (processedOffsets.isEmpty()) {
+			return;
+		}
+		try {
+			consumer.commitSync(processedOffsets);
+		} catch (CommitFailedException e) {
+			// the group rebalanced without this member, which rejoins on the next poll
+			LOGGER.log(Level.WARNING, "Offsets {0} not committed, the group rebalanced. {1}",
+					new Object[] { processedOffsets, e.getLocalizedMessage() });
+			processedOffsets.clear();
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The key service that generates and unwraps the data keys used by PayloadCipher. OCI KMS is the
+//default, with the master key kms_key_ocid of the vault whose crypto endpoint is
+//kms_crypto_endpoint. Set key_service to local and local_master_key to a Base64 encoded 256 bit
+//AES key to encrypt and decrypt without KMS, for tests and local runs.
+
+package com.example.fn;
+
+import java.security.GeneralSecurityException;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+
+public interface KeyService {
+
+	/**
+	 * @return DataKey A new 256 bit AES data key, in plain form and encrypted by
+	 *         the master key.
+	 * @throws GeneralSecurityException
+	 */
+	DataKey generateDataKey() throws GeneralSecurityException;
+
+	/**
+	 * @param encryptedKey A data key encrypted by the master key, as returned by
+	 *                     generateDataKey
+	 * @return byte[] The data key in plain form.
+	 * @throws GeneralSecurityException
+	 */
+	byte[] decryptDataKey(String encryptedKey) throws GeneralSecurityException;
+
+	/**
+	 * @param provider
+	 * @return KeyService
+	 *
+	 *         This method creates the key service configured in the Function
+	 *         Application configuration.
+	 */
+	static KeyService create(BasicAuthenticationDetailsProvider provider) {
+
+		String keyService = System.getenv().getOrDefault("key_service", "kms");
+
+		if ("local".equalsIgnoreCase(keyService)) {
+			return new LocalKeyService(System.getenv().get("local_master_key"));
+		}
+		return new KmsKeyService(provider);
+	}
+
+	/**
+	 * A data key, in plain form and encrypted by the master key.
+	 */
+	final class DataKey {
+
+		private final byte[] plaintext;
+		private final String encryptedKey;
+
+		public DataKey(byte[] plaintext, String encryptedKey) {
+			this.plaintext = plaintext;
+			this.encryptedKey = encryptedKey;
+		}
+
+		public byte[] getPlaintext() {
+			return plaintext;
+		}
+
+		public String getEncryptedKey() {
+			return encryptedKey;
+		}
+	}
+
+}
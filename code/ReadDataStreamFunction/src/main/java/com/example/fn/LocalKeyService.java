@@ -0,0 +1,77 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Key service with a local master key, standing in for OCI KMS in tests and local runs. Data keys
+//are random and are encrypted with AES-GCM by the master key. The encrypted key is the Base64
+//encoding of the IV followed by the ciphertext. Without local_master_key, a random master key is
+//used, so only this process can decrypt what it encrypted.
+
+package com.example.fn;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class LocalKeyService implements KeyService {
+
+	private static final Logger LOGGER = Logger.getLogger(LocalKeyService.class.getName());
+	private static final int KEY_LENGTH_BYTES = 32;
+	private static final int IV_LENGTH_BYTES = 12;
+	private static final int TAG_LENGTH_BITS = 128;
+
+	private final SecureRandom random = new SecureRandom();
+	private final SecretKeySpec masterKey;
+
+	public LocalKeyService(String masterKey) {
+
+		byte[] keyBytes;
+		if (masterKey == null || masterKey.isBlank()) {
+			LOGGER.warning("local_master_key is not set, a random master key is used.");
+			keyBytes = new byte[KEY_LENGTH_BYTES];
+			random.nextBytes(keyBytes);
+		} else {
+			keyBytes = Base64.getDecoder().decode(masterKey);
+			if (keyBytes.length != KEY_LENGTH_BYTES) {
+				throw new IllegalArgumentException("local_master_key must be a Base64 encoded 256 bit key.");
+			}
+		}
+		this.masterKey = new SecretKeySpec(keyBytes, "AES");
+	}
+
+	@Override
+	public DataKey generateDataKey() throws GeneralSecurityException {
+
+		byte[] plaintext = new byte[KEY_LENGTH_BYTES];
+		random.nextBytes(plaintext);
+		byte[] iv = new byte[IV_LENGTH_BYTES];
+		random.nextBytes(iv);
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+		byte[] ciphertext = cipher.doFinal(plaintext);
+
+		String encryptedKey = Base64.getEncoder()
+				.encodeToString(ByteBuffer.allocate(iv.length + ciphertext.length).put(iv).put(ciphertext).array());
+		return new DataKey(plaintext, encryptedKey);
+	}
+
+	@Override
+	public byte[] decryptDataKey(String encryptedKey) throws GeneralSecurityException {
+
+		byte[] wrapped = Base64.getDecoder().decode(encryptedKey);
+		if (wrapped.length <= IV_LENGTH_BYTES) {
+			throw new GeneralSecurityException("Encrypted data key is too short.");
+		}
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH_BITS, wrapped, 0, IV_LENGTH_BYTES));
+		return cipher.doFinal(wrapped, IV_LENGTH_BYTES, wrapped.length - IV_LENGTH_BYTES);
+	}
+
+}
@@ -0,0 +1,623 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The dispatch core shared by ReadDataStreamFunction and DataSyncConsumer.
+//It calls the target application's API for a stream message and, if the call fails,
+//sends the message to the Error Stream configured for the failure.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.Builder;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response.Status.Family;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.secrets.SecretsClient;
+import com.oracle.bmc.secrets.model.Base64SecretBundleContentDetails;
+import com.oracle.bmc.secrets.requests.GetSecretBundleByNameRequest;
+import com.oracle.bmc.secrets.responses.GetSecretBundleByNameResponse;
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.model.Stream.LifecycleState;
+import com.oracle.bmc.streaming.requests.GetStreamRequest;
+import com.oracle.bmc.streaming.requests.ListStreamsRequest;
+import com.oracle.bmc.streaming.responses.GetStreamResponse;
+import com.oracle.bmc.streaming.responses.ListStreamsResponse;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+public class MessageDispatcher {
+
+	private static final Logger LOGGER = Logger.getLogger(MessageDispatcher.class.getName());
+	private static final EventLog EVENTS = EventLog.get(MessageDispatcher.class);
+	private static final String VAULT_OCID = System.getenv().get("vault_ocid");
+	private static final String UNRECOVERABLE_ERROR_STREAM_OCID = System.getenv()
+			.get("unrecoverable_error_stream_ocid");
+	private static final String SERVICEUNAVAILABLE_ERROR_STREAM_OCID = System.getenv()
+			.get("serviceUnavailable_error_stream_ocid");
+	private static final String INTERNALSERVER_ERROR_STREAM_OCID = System.getenv()
+			.get("internalserver_error_stream_ocid");
+	private static final String DEFAULT_ERROR_STREAM_OCID = System.getenv().get("default_error_stream_ocid");
+	private static final String DATA_STREAM_OCID = System.getenv().get("data_stream_ocid");
+	private static final String STREAM_COMPARTMENT_OCID = System.getenv().get("stream_compartment_ocid");
+	private static final String IDEMPOTENCY_KEY_HEADER = System.getenv().getOrDefault("idempotency_key_header",
+			"Idempotency-Key");
+	// the no. of fan-out target calls made at once, besides the first target of
+	// each message
+	private static final int FAN_OUT_CONCURRENCY = Integer
+			.parseInt(System.getenv().getOrDefault("fan_out_concurrency", "8"));
+	private static final String[] OPERATIONS = new String[] { "PUT", "POST", "DELETE" };
+	private static final List<String> STREAM_OCIDS = new ArrayList<>(List.of(UNRECOVERABLE_ERROR_STREAM_OCID,
+			SERVICEUNAVAILABLE_ERROR_STREAM_OCID, INTERNALSERVER_ERROR_STREAM_OCID, DEFAULT_ERROR_STREAM_OCID));
+
+	static {
+		STREAM_OCIDS.addAll(RetryMetadata.delayStreamOCIDs());
+	}
+
+	private final BasicAuthenticationDetailsProvider provider;
+	private final StreamTransport streamTransport;
+	private final StreamAdminClient streamAdminClient;
+	private final HttpClient httpClient = HttpClient.newHttpClient();
+	private final RequestHedger requestHedger = new RequestHedger(httpClient);
+	private final TargetResponseHandler responseHandler = new TargetResponseHandler();
+	private final DispatchRules dispatchRules = DispatchRules.fromConfig();
+	private final PayloadCipher payloadCipher;
+	private final MessageExpiry messageExpiry;
+	private final ExecutorService fanOutExecutor = Executors.newFixedThreadPool(FAN_OUT_CONCURRENCY, runnable -> {
+		Thread thread = new Thread(runnable, "datasync-fan-out-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public MessageDispatcher(BasicAuthenticationDetailsProvider provider, StreamTransport streamTransport) {
+		this.provider = provider;
+		this.streamTransport = streamTransport;
+		this.streamAdminClient = StreamAdminClient.builder().build(provider);
+		this.payloadCipher = new PayloadCipher(KeyService.create(provider));
+		this.messageExpiry = new MessageExpiry(streamTransport);
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @return boolean Returns false if the message was sent to an error stream.
+	 * 
+	 *         This method applies the dispatch rules to a decoded stream message
+	 *         and processes it. If processing fails with an exception, the
+	 *         message is sent to the unrecoverable error stream.
+	 */
+	public boolean dispatch(byte[] streamMessage, String streamKey) {
+
+		// continue the trace started at ingest
+		Span dispatchSpan = Tracing.startMessageSpan("dispatch", streamMessage);
+		Scope dispatchScope = dispatchSpan.makeCurrent();
+
+		try {
+
+			// a message that expired while it waited is not dispatched
+			if (messageExpiry.shed(streamMessage, streamKey, this::getStream)) {
+				dispatchSpan.setAttribute("datasync.expired", true);
+				return true;
+			}
+
+			DispatchRules.Rule rule = dispatchRules.match(streamMessage);
+
+			if (rule != null && rule.getAction() == DispatchRules.Action.DROP) {
+				EVENTS.info("message_dropped", "key", streamKey, "rule", rule);
+				dispatchSpan.setAttribute("datasync.rule", rule.toString());
+				return true;
+			}
+			if (rule != null && rule.getAction() == DispatchRules.Action.ROUTE) {
+				EVENTS.info("message_routed", "key", streamKey, "rule", rule);
+				dispatchSpan.setAttribute("datasync.rule", rule.toString());
+				populateErrorStream(streamMessage, streamKey, rule.getStream());
+				return true;
+			}
+
+			return processMessage(streamMessage, streamKey, rule);
+
+		} catch (Exception ex) {
+
+			EVENTS.failure("dispatch_failed", ex, "key", streamKey);
+			dispatchSpan.recordException(ex);
+			dispatchSpan.setStatus(StatusCode.ERROR);
+
+			rerouteFailedMessage(streamMessage, streamKey, UNRECOVERABLE_ERROR_STREAM_OCID, 0, null);
+			return false;
+
+		} finally {
+			dispatchScope.close();
+			dispatchSpan.end();
+		}
+	}
+
+	/**
+	 * @return boolean
+	 * 
+	 *         This method checks if a stream exist
+	 */
+	public boolean streamsExist() {
+
+		boolean streamsExist = true;
+
+		for (int i = 0; i < STREAM_OCIDS.size(); i++) {
+
+			ListStreamsRequest listRequest = ListStreamsRequest.builder().compartmentId(STREAM_COMPARTMENT_OCID)
+					.id(STREAM_OCIDS.get(i)).lifecycleState(LifecycleState.Active).build();
+
+			ListStreamsResponse listResponse = streamAdminClient.listStreams(listRequest);
+
+			if (listResponse.getItems().isEmpty()) {
+
+				streamsExist = false;
+
+				LOGGER.log(Level.SEVERE,
+						"Processing failed as stream OCID {0} in application configurations doesnt exist.",
+						STREAM_OCIDS.get(i));
+
+				break;
+			}
+
+		}
+
+		return streamsExist;
+
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param rule                  The matching dispatch rule, or null
+	 * @return boolean Returns false if the message, or a target of it, was sent
+	 *         to an error stream.
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException          This method parses the incoming message and
+	 *                              calls its target, or all its targets at once
+	 */
+	private boolean processMessage(byte[] streamMessage, String streamKey, DispatchRules.Rule rule)
+			throws IOException, InterruptedException {
+
+		// parse the incoming message, the payload is sent from the message bytes
+
+		TargetMessage targetMessage = TargetMessage.parse(streamMessage, streamKey, rule, payloadCipher);
+
+		if (!targetMessage.isFanOut()) {
+			return callTarget(streamMessage, streamKey, targetMessage);
+		}
+		return fanOut(streamMessage, streamKey, targetMessage.getTargets());
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param targets
+	 * @return boolean Returns false if a target was sent to an error stream.
+	 * @throws InterruptedException
+	 *
+	 *                              This method calls the targets of a fan-out
+	 *                              message concurrently. The first target is
+	 *                              called by this thread. A target that fails is
+	 *                              sent to the error stream on its own.
+	 */
+	private boolean fanOut(byte[] streamMessage, String streamKey, List<TargetMessage> targets)
+			throws InterruptedException {
+
+		if (targets.isEmpty()) {
+			EVENTS.severe("message_invalid", "key", streamKey, "reason", "targets node is empty.");
+			rerouteFailedMessage(streamMessage, streamKey, UNRECOVERABLE_ERROR_STREAM_OCID, 0, null);
+			return false;
+		}
+
+		// the target calls continue the dispatch span
+		Context context = Context.current();
+		List<Future<Boolean>> calls = new ArrayList<>(targets.size() - 1);
+		for (TargetMessage target : targets.subList(1, targets.size())) {
+			calls.add(fanOutExecutor.submit(context.wrap(() -> callFanOutTarget(streamMessage, streamKey, target))));
+		}
+
+		boolean delivered = callFanOutTarget(streamMessage, streamKey, targets.get(0));
+		for (Future<Boolean> call : calls) {
+			try {
+				delivered = call.get() && delivered;
+			} catch (ExecutionException e) {
+				EVENTS.failure("dispatch_failed", e.getCause(), "key", streamKey);
+				delivered = false;
+			}
+		}
+		return delivered;
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param target
+	 * @return boolean Returns false if the target was sent to an error stream.
+	 * @throws InterruptedException
+	 *
+	 *                              This method calls a target of a fan-out
+	 *                              message. If the call fails with an exception,
+	 *                              only this target is sent to the unrecoverable
+	 *                              error stream.
+	 */
+	private boolean callFanOutTarget(byte[] streamMessage, String streamKey, TargetMessage target)
+			throws InterruptedException {
+
+		try {
+			return callTarget(streamMessage, streamKey, target);
+
+		} catch (IOException | RuntimeException ex) {
+			EVENTS.failure("dispatch_failed", ex, "key", streamKey, "target", target.getTargetRestApi());
+			Span.current().recordException(ex);
+
+			rerouteFailedMessage(target.toStreamMessage(streamMessage), streamKey, UNRECOVERABLE_ERROR_STREAM_OCID,
+					0, null);
+			return false;
+		}
+	}
+
+	/**
+	 * @param streamMessage The stream message the target was read from
+	 * @param streamKey
+	 * @param targetMessage
+	 * @return boolean Returns false if the target was sent to an error stream.
+	 * 
+	 * @throws InterruptedException
+	 * @throws IOException          This method calls the target based on the
+	 *                              targetRestApiOperation defined in the message
+	 */
+	private boolean callTarget(byte[] streamMessage, String streamKey, TargetMessage targetMessage)
+			throws IOException, InterruptedException {
+		StringBuilder failureMessage = new StringBuilder("");
+		boolean processingFailed = false;
+
+		int responseStatusCode = 0;
+		HttpRequest request = null;
+
+		String targetRestApi = targetMessage.getTargetRestApi();
+		String targetRestApiOperation = targetMessage.getTargetRestApiOperation();
+		String vaultSecretName = targetMessage.getVaultSecretName();
+
+		if (targetRestApi == null) {
+			processingFailed = true;
+			failureMessage = new StringBuilder(
+					"Message could not be processed as targetRestApi node is not found in payload.");
+		}
+		if (targetRestApiOperation != null) {
+
+			if (Arrays.stream(OPERATIONS).noneMatch(targetRestApiOperation::equals)) {
+				processingFailed = true;
+				failureMessage.append(
+						" Message could not be processed as targetRestApiOperation node doesnt contain PUT,POST or DELETE.");
+			}
+
+		} else {
+			processingFailed = true;
+			failureMessage
+					.append(" Message could not be processed as targetRestApiOperation node is not found in payload.");
+		}
+
+		if (processingFailed) {
+			EVENTS.severe("message_invalid", "key", streamKey, "reason", failureMessage.toString().trim());
+			rerouteFailedMessage(targetMessage.toStreamMessage(streamMessage), streamKey,
+					UNRECOVERABLE_ERROR_STREAM_OCID, 0, null);
+			return false;
+
+		}
+		Map<String, String> httpHeaders = targetMessage.getHttpHeaders();
+
+		// the target call is traced as a client span, which the target receives in
+		// the traceparent header
+		HttpResponse<String> response;
+		Span targetSpan = Tracing.startSpan("target call", SpanKind.CLIENT);
+		Scope targetScope = targetSpan.makeCurrent();
+		try {
+			// process the messages based on the operation
+			switch (targetRestApiOperation) {
+
+			case "PUT": {
+				Builder builder = HttpRequest.newBuilder().PUT(targetMessage.bodyPublisher())
+						.uri(URI.create(targetRestApi));
+
+				request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
+				break;
+
+			}
+
+			case "POST": {
+
+				Builder builder = HttpRequest.newBuilder().POST(targetMessage.bodyPublisher())
+						.uri(URI.create(targetRestApi));
+
+				request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
+				break;
+			}
+
+			case "DELETE": {
+				Builder builder = HttpRequest.newBuilder().DELETE().uri(URI.create(targetRestApi));
+
+				request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
+				break;
+			}
+			default:
+				EVENTS.severe("no_action", "key", streamKey, "operation", targetRestApiOperation);
+			}
+
+			// make the http request call
+
+			// the response body is always consumed, so that the connection is released
+			response = requestHedger.send(request, responseHandler,
+					isIdempotent(targetRestApiOperation, httpHeaders));
+			// get the status code
+			responseStatusCode = response.statusCode();
+			targetSpan.setAttribute("http.method", targetRestApiOperation);
+			targetSpan.setAttribute("http.url", targetRestApi);
+			targetSpan.setAttribute("http.status_code", responseStatusCode);
+			if (responseStatusCode >= 400) {
+				targetSpan.setStatus(StatusCode.ERROR);
+			}
+		} finally {
+			targetScope.close();
+			targetSpan.end();
+		}
+
+		// Populate error streams in case of a failure
+		String errorStreamOCID = "";
+
+		if ((Family.familyOf(responseStatusCode) == Family.SERVER_ERROR)
+				|| (Family.familyOf(responseStatusCode) == Family.CLIENT_ERROR)) {
+
+			switch (responseStatusCode) {
+
+			case 503: {
+				errorStreamOCID = SERVICEUNAVAILABLE_ERROR_STREAM_OCID;
+				break;
+			}
+			case 500: {
+				errorStreamOCID = INTERNALSERVER_ERROR_STREAM_OCID;
+				break;
+			}
+
+			case 400: {
+				errorStreamOCID = UNRECOVERABLE_ERROR_STREAM_OCID;
+				break;
+			}
+
+			default:
+				errorStreamOCID = DEFAULT_ERROR_STREAM_OCID;
+
+			}
+
+			EVENTS.severe("target_call_failed", "key", streamKey, "status", responseStatusCode, "operation",
+					targetRestApiOperation, "target", targetRestApi);
+
+			rerouteFailedMessage(targetMessage.toStreamMessage(streamMessage), streamKey, errorStreamOCID,
+					responseStatusCode, response.body());
+			return false;
+		}
+		return true;
+
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param errorStreamOCID
+	 * @param statusCode
+	 * @param errorBody
+	 * 
+	 *                        This method records the failure in the retry metadata
+	 *                        of the message and sends it to the error stream, to a
+	 *                        delay stream if the failure is recoverable, or parks
+	 *                        it in the poison message stream if it exceeded the
+	 *                        retry policy
+	 */
+	private void rerouteFailedMessage(byte[] streamMessage, String streamKey, String errorStreamOCID,
+			int statusCode, String errorBody) {
+
+		Span rerouteSpan = Tracing.startSpan("reroute", SpanKind.PRODUCER);
+
+		try {
+			RetryMetadata.Reroute reroute = RetryMetadata.reroute(streamMessage, statusCode, errorBody,
+					DATA_STREAM_OCID, errorStreamOCID);
+
+			if (reroute.isParked()) {
+				EVENTS.warning("message_parked", "key", streamKey, "status", statusCode);
+			}
+			rerouteSpan.setAttribute("datasync.error_stream", reroute.getStreamOCID());
+			rerouteSpan.setAttribute("datasync.parked", reroute.isParked());
+
+			populateErrorStream(reroute.getStreamMessage(), streamKey, reroute.getStreamOCID());
+
+		} finally {
+			rerouteSpan.end();
+		}
+	}
+
+	/**
+	 * @param targetRestApiOperation
+	 * @param httpHeaders
+	 * @return boolean Returns true if the call may be sent twice: a PUT, a DELETE
+	 *         or a POST with an idempotency key header
+	 */
+	private static boolean isIdempotent(String targetRestApiOperation, Map<String, String> httpHeaders) {
+
+		if (!"POST".equals(targetRestApiOperation)) {
+			return true;
+		}
+		return httpHeaders.keySet().stream().anyMatch(IDEMPOTENCY_KEY_HEADER::equalsIgnoreCase);
+	}
+
+	/**
+	 * @return DispatchRules The rules applied to the dispatched messages
+	 */
+	public DispatchRules getDispatchRules() {
+		return dispatchRules;
+	}
+
+	/**
+	 * This method emits the hedged request counters since the last call as a
+	 * hedged_request_stats event, see RequestHedger.
+	 */
+	public void logHedgeStats() {
+		requestHedger.logStats();
+	}
+
+	/**
+	 * @param deliveries The messages of a batch, in stream order
+	 * @return List<TenantScheduler.Delivery> The messages that did not expire
+	 *
+	 *         This method sheds the expired messages of a batch before it is
+	 *         dispatched, see MessageExpiry.
+	 */
+	public List<TenantScheduler.Delivery> shedExpired(List<TenantScheduler.Delivery> deliveries) {
+		return messageExpiry.shed(deliveries, TenantScheduler.Delivery::getStreamMessage,
+				TenantScheduler.Delivery::getStreamKey, this::getStream);
+	}
+
+	/**
+	 * This method emits the message expiry counters since the last call as a
+	 * message_expiry_stats event, see MessageExpiry.
+	 */
+	public void logExpiryStats() {
+		messageExpiry.logStats();
+	}
+
+	/**
+	 * @param builder
+	 * @param httpHeaders
+	 * @param vaultSecretName
+	 * @return HttpRequest
+	 * 
+	 *         This method constructs http request for the target application call
+	 */
+	private HttpRequest constructHttpRequest(Builder builder, Map<String, String> httpHeaders, String vaultSecretName) {
+
+		if (!vaultSecretName.equals("")) {
+			String authorizationHeaderName = "Authorization";
+			// Read the Vault to get the auth token
+			String authToken = getSecretFromVault(vaultSecretName);
+			builder.header(authorizationHeaderName, authToken);
+		}
+		// add targetRestApiHeaders to the request
+
+		httpHeaders.forEach((k, v) -> builder.header(k, v));
+		// add authorization token to the request
+
+		// continue the trace in the target application
+		String traceparent = Tracing.traceparent();
+		if (traceparent != null) {
+			builder.header(Tracing.TRACEPARENT, traceparent);
+		}
+
+		return builder.build();
+
+	}
+
+	/**
+	 * @param vaultSecretName
+	 * @return String
+	 * 
+	 *         This method is used to get the auth token from the vault using
+	 *         secretName
+	 */
+	private String getSecretFromVault(String vaultSecretName) {
+		Span vaultSpan = Tracing.startSpan("vault lookup", SpanKind.INTERNAL);
+		SecretsClient secretsClient = new SecretsClient(provider);
+
+		try {
+			GetSecretBundleByNameRequest getSecretBundleByNameRequest = GetSecretBundleByNameRequest.builder()
+
+					.secretName(vaultSecretName).vaultId(VAULT_OCID).build();
+
+			// get the secret
+			GetSecretBundleByNameResponse getSecretBundleResponse = secretsClient
+					.getSecretBundleByName(getSecretBundleByNameRequest);
+
+			// get the bundle content details
+			Base64SecretBundleContentDetails base64SecretBundleContentDetails = (Base64SecretBundleContentDetails) getSecretBundleResponse
+					.getSecretBundle().getSecretBundleContent();
+
+			return base64SecretBundleContentDetails.getContent();
+
+		} finally {
+			secretsClient.close();
+			vaultSpan.end();
+		}
+
+	}
+
+	/**
+	 * @param streamOCID
+	 * @return Stream
+	 * 
+	 * 
+	 *         This method obtains the Stream object from the stream OCID.
+	 */
+	public Stream getStream(String streamOCID) {
+
+		GetStreamResponse getResponse = streamAdminClient
+				.getStream(GetStreamRequest.builder().streamId(streamOCID).build());
+		return getResponse.getStream();
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param errorStreamOCID
+	 * 
+	 *                          This method is used to populate the error stream
+	 *                          with the failed message
+	 */
+	public void populateErrorStream(byte[] streamMessage, String streamKey, String errorStreamOCID) {
+
+		// Construct the stream message
+
+		List<PutMessagesDetailsEntry> messages = Arrays.asList(
+				PutMessagesDetailsEntry.builder().key(streamKey.getBytes(UTF_8)).value(streamMessage).build());
+
+		// Read the response
+
+		List<PutMessagesResultEntry> putResults = streamTransport
+				.putMessages(getStream(errorStreamOCID), messages);
+		for (PutMessagesResultEntry entry : putResults) {
+			if (entry.getError() != null) {
+
+				EVENTS.severe("error_stream_put_failed", "key", streamKey, "stream", errorStreamOCID, "error",
+						entry.getErrorMessage());
+
+			} else {
+
+				EVENTS.sampled("error_stream_put", "offset", entry.getOffset(), "partition", entry.getPartition(),
+						"stream", errorStreamOCID);
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,256 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Hedged target calls, enabled by setting hedge_requests to true. When an idempotent call has not
+//completed within the hedge_percentile latency of its target host, the same request is sent a
+//second time. The first response that is not a 5xx is used and the other call is cancelled. A call
+//that fails or gets a 5xx falls back to the other one, as the other target instance may still
+//answer. The latency percentile is tracked per host over the last LATENCY_SAMPLES calls, each
+//call timed on its own, and no call is hedged before the host has hedge_min_samples of them. A
+//hedge that loses is not recorded, as it only ran for part of the call. Hedges are limited by a
+//budget shared by all hosts: every call adds hedge_budget_percent / 100 of a hedge to the budget,
+//so hedges add at most that share of extra load on the targets.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.opentelemetry.api.trace.Span;
+
+public class RequestHedger {
+
+	private static final EventLog EVENTS = EventLog.get(RequestHedger.class);
+	private static final boolean ENABLED = Boolean
+			.parseBoolean(System.getenv().getOrDefault("hedge_requests", "false"));
+	private static final double PERCENTILE = Double
+			.parseDouble(System.getenv().getOrDefault("hedge_percentile", "95"));
+	private static final double BUDGET_PERCENT = Double
+			.parseDouble(System.getenv().getOrDefault("hedge_budget_percent", "5"));
+	private static final int MIN_SAMPLES = Integer
+			.parseInt(System.getenv().getOrDefault("hedge_min_samples", "20"));
+	private static final long MIN_DELAY_MS = Long
+			.parseLong(System.getenv().getOrDefault("hedge_min_delay_ms", "10"));
+	private static final int LATENCY_SAMPLES = 256;
+	// the percentile is recomputed every PERCENTILE_REFRESH samples
+	private static final int PERCENTILE_REFRESH = 16;
+	// unused budget is kept for bursts of up to MAX_BUDGET hedges
+	private static final double MAX_BUDGET = 10;
+
+	private final HttpClient httpClient;
+	private final Map<String, HostLatency> hostLatencies = new ConcurrentHashMap<>();
+	private double budget;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+	private final AtomicLong hedgesDenied = new AtomicLong();
+
+	public RequestHedger(HttpClient httpClient) {
+		this.httpClient = httpClient;
+	}
+
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	/**
+	 * @param <T>
+	 * @param request
+	 * @param responseHandler
+	 * @param idempotent      Whether the request may be sent twice
+	 * @return HttpResponse<T>
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *
+	 *                              This method sends the request, and a hedge of
+	 *                              it if the call is idempotent and slower than
+	 *                              the latency percentile of its host.
+	 */
+	public <T> HttpResponse<T> send(HttpRequest request, BodyHandler<T> responseHandler, boolean idempotent)
+			throws IOException, InterruptedException {
+
+		if (!ENABLED) {
+			return httpClient.send(request, responseHandler);
+		}
+
+		HostLatency hostLatency = hostLatencies.computeIfAbsent(String.valueOf(request.uri().getAuthority()),
+				host -> new HostLatency());
+		long hedgeDelayMs = idempotent ? hostLatency.hedgeDelayMs() : -1;
+		addBudget();
+		calls.incrementAndGet();
+
+		CompletableFuture<HttpResponse<T>> primary = timed(httpClient.sendAsync(request, responseHandler),
+				hostLatency, true);
+		CompletableFuture<HttpResponse<T>> hedge = null;
+
+		try {
+			if (hedgeDelayMs >= 0) {
+				try {
+					return primary.get(hedgeDelayMs, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					if (takeBudget()) {
+						hedges.incrementAndGet();
+						Span.current().setAttribute("datasync.hedged", true);
+						hedge = timed(httpClient.sendAsync(request, responseHandler), hostLatency, false);
+					} else {
+						hedgesDenied.incrementAndGet();
+					}
+				}
+			}
+
+			if (hedge == null) {
+				return primary.get();
+			}
+			HttpResponse<T> response = firstSuccessful(primary, hedge).get();
+			if (hedge.isDone() && !hedge.isCompletedExceptionally() && hedge.getNow(null) == response) {
+				hedgesWon.incrementAndGet();
+			}
+			return response;
+
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+
+		} finally {
+			// the losing call is cancelled. Its response body is still consumed by the
+			// response handler, so its connection goes back to the pool
+			primary.cancel(true);
+			if (hedge != null) {
+				hedge.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * This method emits the no. of calls, hedges, hedges that won and hedges
+	 * denied by the budget since the last call as a hedged_request_stats event,
+	 * and resets them.
+	 */
+	public void logStats() {
+
+		EVENTS.info("hedged_request_stats", "calls", calls.getAndSet(0), "hedges", hedges.getAndSet(0), "hedgesWon",
+				hedgesWon.getAndSet(0), "hedgesDenied", hedgesDenied.getAndSet(0));
+	}
+
+	private synchronized void addBudget() {
+		budget = Math.min(budget + BUDGET_PERCENT / 100, MAX_BUDGET);
+	}
+
+	private synchronized boolean takeBudget() {
+
+		if (budget < 1) {
+			return false;
+		}
+		budget = budget - 1;
+		return true;
+	}
+
+	/**
+	 * @param <T>
+	 * @param call
+	 * @param hostLatency
+	 * @param primary     Whether the call is the first one sent, not a hedge
+	 * @return CompletableFuture The call, which records its own latency when it
+	 *         completes
+	 *
+	 *         A primary call cancelled because the hedge won is recorded with
+	 *         the time it ran, a lower bound of its latency, so that the slow
+	 *         calls still count towards the percentile of the host. A cancelled
+	 *         hedge only ran for the primary's latency less the hedge delay, and
+	 *         is not recorded.
+	 */
+	private static <T> CompletableFuture<HttpResponse<T>> timed(CompletableFuture<HttpResponse<T>> call,
+			HostLatency hostLatency, boolean primary) {
+
+		long started = System.nanoTime();
+		call.whenComplete((response, failure) -> {
+			if (response != null || (primary && failure instanceof CancellationException)) {
+				hostLatency.record((System.nanoTime() - started) / 1000000);
+			}
+		});
+		return call;
+	}
+
+	/**
+	 * @return CompletableFuture The first of the calls to complete with a
+	 *         response that is not a 5xx. If neither does, the 5xx response, or
+	 *         the failure of the last call if both fail.
+	 */
+	private static <T> CompletableFuture<HttpResponse<T>> firstSuccessful(CompletableFuture<HttpResponse<T>> primary,
+			CompletableFuture<HttpResponse<T>> hedge) {
+
+		CompletableFuture<HttpResponse<T>> first = new CompletableFuture<>();
+		AtomicInteger unsuccessful = new AtomicInteger();
+		AtomicReference<HttpResponse<T>> serverError = new AtomicReference<>();
+
+		for (CompletableFuture<HttpResponse<T>> call : Arrays.asList(primary, hedge)) {
+			call.whenComplete((response, failure) -> {
+				if (failure == null && response.statusCode() < 500) {
+					first.complete(response);
+					return;
+				}
+				if (failure == null) {
+					serverError.compareAndSet(null, response);
+				}
+				if (unsuccessful.incrementAndGet() == 2) {
+					// a response is more useful to the caller than a failure
+					if (serverError.get() != null) {
+						first.complete(serverError.get());
+					} else {
+						first.completeExceptionally(failure);
+					}
+				}
+			});
+		}
+		return first;
+	}
+
+	/**
+	 * The latencies of the last calls to a host, in milliseconds.
+	 */
+	private static class HostLatency {
+
+		private final long[] samples = new long[LATENCY_SAMPLES];
+		private long count;
+		private long percentileMs = -1;
+
+		synchronized void record(long latencyMs) {
+
+			samples[(int) (count % LATENCY_SAMPLES)] = latencyMs;
+			count = count + 1;
+
+			if (count >= MIN_SAMPLES && (count % PERCENTILE_REFRESH == 0 || percentileMs < 0)) {
+				long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, LATENCY_SAMPLES));
+				Arrays.sort(sorted);
+				int rank = (int) Math.ceil(PERCENTILE / 100 * sorted.length) - 1;
+				percentileMs = sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+			}
+		}
+
+		/**
+		 * @return long The delay after which a call is hedged, or -1 until the
+		 *         host has enough samples
+		 */
+		synchronized long hedgeDelayMs() {
+			return percentileMs < 0 ? -1 : Math.max(percentileMs, MIN_DELAY_MS);
+		}
+	}
+
+}
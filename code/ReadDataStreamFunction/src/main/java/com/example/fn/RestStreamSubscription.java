@@ -0,0 +1,79 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Consumer group subscription using an OCI Streaming group cursor.
+//Offsets are committed explicitly once a batch is processed, so a message is only
+//committed after it was dispatched. Partition rebalancing between the instances of a
+//group is done by the Streaming service.
+
+package com.example.fn;
+
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateGroupCursorDetails;
+import com.oracle.bmc.streaming.model.CreateGroupCursorDetails.Type;
+import com.oracle.bmc.streaming.requests.ConsumerCommitRequest;
+import com.oracle.bmc.streaming.requests.ConsumerHeartbeatRequest;
+import com.oracle.bmc.streaming.requests.CreateGroupCursorRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import com.oracle.bmc.streaming.responses.GetMessagesResponse;
+
+public class RestStreamSubscription implements StreamSubscription {
+
+	private static final String INITIAL_POSITION = System.getenv().getOrDefault("consumer_initial_position",
+			"LATEST");
+	private static final int GROUP_TIMEOUT_MS = 30000;
+
+	private final StreamClient streamClient;
+	private final String streamOCID;
+	private final int limit;
+	private String cursor;
+
+	public RestStreamSubscription(StreamClient streamClient, String streamOCID, String groupName,
+			String instanceName, int limit) {
+
+		this.streamClient = streamClient;
+		this.streamOCID = streamOCID;
+		this.limit = limit;
+
+		CreateGroupCursorDetails cursorDetails = CreateGroupCursorDetails.builder().groupName(groupName)
+				.instanceName(instanceName)
+				.type("TRIM_HORIZON".equalsIgnoreCase(INITIAL_POSITION) ? Type.TrimHorizon : Type.Latest)
+				.commitOnGet(false).timeoutInMs(GROUP_TIMEOUT_MS).build();
+
+		cursor = streamClient.createGroupCursor(CreateGroupCursorRequest.builder().streamId(streamOCID)
+				.createGroupCursorDetails(cursorDetails).build()).getCursor().getValue();
+	}
+
+	@Override
+	public Batch poll() {
+
+		GetMessagesResponse getResponse = streamClient.getMessages(
+				GetMessagesRequest.builder().streamId(streamOCID).cursor(cursor).limit(limit).build());
+
+		cursor = getResponse.getOpcNextCursor();
+
+		return new Batch(getResponse.getItems(), cursor);
+	}
+
+	@Override
+	public void commit(Batch batch) {
+
+		streamClient.consumerCommit(
+				ConsumerCommitRequest.builder().streamId(streamOCID).cursor((String) batch.getPosition()).build());
+	}
+
+	@Override
+	public void heartbeat() {
+
+		cursor = streamClient
+				.consumerHeartbeat(ConsumerHeartbeatRequest.builder().streamId(streamOCID).cursor(cursor).build())
+				.getCursor().getValue();
+	}
+
+	@Override
+	public void close() {
+		// The reservations of this instance are released by the service once the
+		// group timeout passes without a get, commit or heartbeat.
+	}
+
+}
@@ -0,0 +1,112 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Stream transport using the OCI Streaming REST API through StreamClient.
+
+package com.example.fn;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.StreamClient;
+import com.oracle.bmc.streaming.model.CreateCursorDetails;
+import com.oracle.bmc.streaming.model.CreateCursorDetails.Type;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.PutMessagesDetails;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.requests.CreateCursorRequest;
+import com.oracle.bmc.streaming.requests.GetMessagesRequest;
+import com.oracle.bmc.streaming.requests.PutMessagesRequest;
+import com.oracle.bmc.streaming.responses.CreateCursorResponse;
+import com.oracle.bmc.streaming.responses.PutMessagesResponse;
+
+public class RestStreamTransport implements StreamTransport {
+
+	private final BasicAuthenticationDetailsProvider provider;
+	// StreamClients are bound to the messages endpoint of a stream, so one client
+	// is kept per stream OCID for the life of the container.
+	private final Map<String, StreamClient> streamClients = new ConcurrentHashMap<>();
+
+	public RestStreamTransport(BasicAuthenticationDetailsProvider provider) {
+		this.provider = provider;
+	}
+
+	@Override
+	public List<PutMessagesResultEntry> putMessages(Stream stream, List<PutMessagesDetailsEntry> entries) {
+
+		PutMessagesDetails messagesDetails = PutMessagesDetails.builder().messages(entries).build();
+
+		PutMessagesRequest putRequest = PutMessagesRequest.builder().streamId(stream.getId())
+				.putMessagesDetails(messagesDetails).build();
+
+		PutMessagesResponse putResponse = getStreamClient(stream).putMessages(putRequest);
+
+		return putResponse.getPutMessagesResult().getEntries();
+	}
+
+	@Override
+	public List<Message> getMessages(Stream stream, String partition, long readAfterOffset, int limit) {
+
+		StreamClient streamClient = getStreamClient(stream);
+
+		GetMessagesRequest getRequest = GetMessagesRequest.builder().streamId(stream.getId())
+				.cursor(getStreamCursor(streamClient, stream.getId(), partition, readAfterOffset)).limit(limit)
+				.build();
+
+		return streamClient.getMessages(getRequest).getItems();
+	}
+
+	@Override
+	public StreamSubscription subscribe(Stream stream, String groupName, String instanceName, int limit) {
+
+		return new RestStreamSubscription(getStreamClient(stream), stream.getId(), groupName, instanceName, limit);
+	}
+
+	/**
+	 * @param stream
+	 * @return StreamClient
+	 *
+	 *         This method returns the cached StreamClient for a stream
+	 */
+	StreamClient getStreamClient(Stream stream) {
+
+		return streamClients.computeIfAbsent(stream.getId(),
+				id -> StreamClient.builder().stream(stream).build(provider));
+	}
+
+	/**
+	 * @param streamClient
+	 * @param streamOCID
+	 * @param partition
+	 * @param readAfterOffset
+	 * @return String Returns a Stream cursor
+	 *
+	 *         This method creates a Stream message cursor using an
+	 *         AFTER_OFFSET/TRIM_HORIZON cursor type
+	 */
+	private String getStreamCursor(StreamClient streamClient, String streamOCID, String partition,
+			long readAfterOffset) {
+		CreateCursorDetails cursorDetails = null;
+
+		if (readAfterOffset == -1) {
+			cursorDetails = CreateCursorDetails.builder().partition(partition).type(Type.TrimHorizon).build();
+
+		} else {
+
+			cursorDetails = CreateCursorDetails.builder().partition(partition).type(Type.AfterOffset)
+					.offset(readAfterOffset).build();
+		}
+
+		CreateCursorRequest createCursorRequest = CreateCursorRequest.builder().streamId(streamOCID)
+				.createCursorDetails(cursorDetails).build();
+
+		CreateCursorResponse cursorResponse = streamClient.createCursor(createCursorRequest);
+
+		return cursorResponse.getCursor().getValue();
+	}
+
+}
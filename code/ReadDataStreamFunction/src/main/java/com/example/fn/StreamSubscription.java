@@ -0,0 +1,63 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//A consumer group subscription to a Stream, used by the long running DataSyncConsumer.
+//All methods are called from the polling thread of the consumer. A failed call throws a
+//RuntimeException, and the consumer calls it again after a backoff.
+
+package com.example.fn;
+
+import java.util.List;
+
+import com.oracle.bmc.streaming.model.Message;
+
+public interface StreamSubscription extends AutoCloseable {
+
+	/**
+	 * @return Batch The next batch of messages, which is empty if no message is
+	 *         available.
+	 */
+	Batch poll();
+
+	/**
+	 * @param batch
+	 * 
+	 *              This method commits the group position up to and including the
+	 *              batch. Batches are committed in the order they were polled.
+	 */
+	void commit(Batch batch);
+
+	/**
+	 * This method keeps the partition reservations of the consumer alive while
+	 * it is not taking new batches. It does not return or skip any message, the
+	 * next poll continues after the last polled batch.
+	 */
+	void heartbeat();
+
+	@Override
+	void close();
+
+	/**
+	 * A batch of polled messages together with the position to commit once they
+	 * are processed.
+	 */
+	class Batch {
+
+		private final List<Message> messages;
+		private final Object position;
+
+		public Batch(List<Message> messages, Object position) {
+			this.messages = messages;
+			this.position = position;
+		}
+
+		public List<Message> getMessages() {
+			return messages;
+		}
+
+		public Object getPosition() {
+			return position;
+		}
+	}
+
+}
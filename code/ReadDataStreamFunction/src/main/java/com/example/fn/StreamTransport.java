@@ -0,0 +1,73 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The transport used to produce messages to and consume messages from a Stream.
+//The REST StreamClient is the default. The Kafka protocol transport is selected by
+//setting stream_transport to kafka in the Function Application configuration.
+
+package com.example.fn;
+
+import java.util.List;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+
+public interface StreamTransport {
+
+	/**
+	 * @param stream
+	 * @param entries
+	 * @return List<PutMessagesResultEntry> One result entry per message, in the
+	 *         order of the entries.
+	 *
+	 *         This method publishes the messages to the stream
+	 */
+	List<PutMessagesResultEntry> putMessages(Stream stream, List<PutMessagesDetailsEntry> entries);
+
+	/**
+	 * @param stream
+	 * @param partition
+	 * @param readAfterOffset
+	 * @param limit
+	 * @return List<Message>
+	 *
+	 *         This method reads up to limit messages from a partition, starting
+	 *         after readAfterOffset. A readAfterOffset of -1 reads from the oldest
+	 *         message in the partition.
+	 */
+	List<Message> getMessages(Stream stream, String partition, long readAfterOffset, int limit);
+
+	/**
+	 * @param stream
+	 * @param groupName
+	 * @param instanceName
+	 * @param limit
+	 * @return StreamSubscription
+	 *
+	 *         This method joins the consumer group as instanceName and returns a
+	 *         subscription that polls up to limit messages at a time from the
+	 *         partitions assigned to the instance.
+	 */
+	StreamSubscription subscribe(Stream stream, String groupName, String instanceName, int limit);
+
+	/**
+	 * @param provider
+	 * @return StreamTransport
+	 *
+	 *         This method creates the transport configured in the Function
+	 *         Application configuration.
+	 */
+	static StreamTransport create(BasicAuthenticationDetailsProvider provider) {
+
+		String transport = System.getenv().getOrDefault("stream_transport", "rest");
+
+		if ("kafka".equalsIgnoreCase(transport)) {
+			return new KafkaStreamTransport(provider);
+		}
+		return new RestStreamTransport(provider);
+	}
+
+}
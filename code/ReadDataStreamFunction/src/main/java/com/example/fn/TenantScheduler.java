@@ -0,0 +1,357 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Weighted fair dispatch of a batch of messages across the source applications, or tenants,
+//sharing the DataSyncStream. Used by ReadDataStreamFunction and DataSyncConsumer.
+//A message's tenant is the value of the top level tenant_field of the message, sourceApplication
+//by default, or the part of the stream key before tenant_key_delimiter when that is set.
+//Up to dispatch_concurrency messages are dispatched at a time. The next message is taken from the
+//tenant with the lowest virtual time, which advances by the tenant's average dispatch latency
+//divided by its weight for every message dispatched. A tenant with a slow target or a burst of
+//messages is therefore limited to its share of the dispatch time, and never holds more than its
+//concurrency cap of the dispatch threads.
+//Weights and caps are JSON objects keyed by tenant, with "*" as the default for other tenants:
+//tenant_weights = {"erp": 3, "*": 1}, tenant_concurrency = {"erp": 4, "*": 2}
+//Messages with the same stream key are dispatched one at a time, in stream order.
+//The per tenant counters are emitted as tenant_dispatch_stats events, see EventLog.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TenantScheduler implements AutoCloseable {
+
+	private static final EventLog EVENTS = EventLog.get(TenantScheduler.class);
+	private static final int CONCURRENCY = Integer
+			.parseInt(System.getenv().getOrDefault("dispatch_concurrency", "4"));
+	private static final String TENANT_FIELD = System.getenv().getOrDefault("tenant_field", "sourceApplication");
+	private static final String TENANT_KEY_DELIMITER = System.getenv().get("tenant_key_delimiter");
+	private static final String DEFAULT_TENANT = "default";
+	private static final String ANY_TENANT = "*";
+	// the latency assumed for a tenant before its first message completes
+	private static final double INITIAL_LATENCY_MS = 100;
+	private static final double LATENCY_SMOOTHING = 0.2;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final MessageDispatcher dispatcher;
+	private final Map<String, Integer> weights;
+	private final Map<String, Integer> concurrencyCaps;
+	private final ExecutorService executor;
+	// tenant state is kept for the life of the scheduler, guarded by this
+	private final Map<String, Tenant> tenants = new HashMap<>();
+	private final Set<String> keysInFlight = new HashSet<>();
+	private double virtualClock;
+	private int inFlight;
+	private final Map<String, TenantStats> stats = new ConcurrentHashMap<>();
+	private long statsSince = System.currentTimeMillis();
+
+	public TenantScheduler(MessageDispatcher dispatcher) {
+
+		this.dispatcher = dispatcher;
+		this.weights = readTenantConfig("tenant_weights");
+		this.concurrencyCaps = readTenantConfig("tenant_concurrency");
+		this.executor = Executors.newFixedThreadPool(CONCURRENCY, runnable -> {
+			Thread thread = new Thread(runnable, "datasync-dispatch-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * A message to dispatch, with the arguments of MessageDispatcher.dispatch.
+	 */
+	public static class Delivery {
+
+		private final byte[] streamMessage;
+		private final String streamKey;
+		private long queuedAt;
+
+		public Delivery(byte[] streamMessage, String streamKey) {
+			this.streamMessage = streamMessage;
+			this.streamKey = streamKey;
+		}
+
+		public byte[] getStreamMessage() {
+			return streamMessage;
+		}
+
+		public String getStreamKey() {
+			return streamKey;
+		}
+	}
+
+	/**
+	 * @param deliveries
+	 * @throws InterruptedException
+	 *
+	 *                              This method dispatches a batch of messages in
+	 *                              weighted fair order, and returns once all of
+	 *                              them are dispatched.
+	 */
+	public void dispatchAll(List<Delivery> deliveries) throws InterruptedException {
+
+		AtomicInteger remaining = new AtomicInteger(deliveries.size());
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Delivery delivery : deliveries) {
+				delivery.queuedAt = now;
+				Tenant tenant = tenant(classify(delivery));
+				if (tenant.queue.isEmpty() && tenant.running == 0) {
+					// an idle tenant does not keep the credit of the time it was idle
+					tenant.virtualTime = Math.max(tenant.virtualTime, virtualClock);
+				}
+				tenant.queue.add(delivery);
+			}
+
+			while (remaining.get() > 0) {
+
+				Tenant next = inFlight < CONCURRENCY ? nextTenant() : null;
+
+				if (next == null) {
+					// wait for a dispatch to complete
+					wait();
+					continue;
+				}
+
+				Delivery delivery = next.queue.poll();
+				next.running = next.running + 1;
+				inFlight = inFlight + 1;
+				if (!delivery.streamKey.isEmpty()) {
+					keysInFlight.add(delivery.streamKey);
+				}
+				virtualClock = next.virtualTime;
+				next.virtualTime = next.virtualTime + next.averageLatencyMs / next.weight;
+
+				executor.execute(() -> dispatch(next, delivery, remaining));
+			}
+		}
+	}
+
+	/**
+	 * @return Tenant The tenant with the lowest virtual time that has a message
+	 *         ready to dispatch and is under its concurrency cap, or null.
+	 */
+	private Tenant nextTenant() {
+
+		Tenant next = null;
+
+		for (Tenant tenant : tenants.values()) {
+			Delivery head = tenant.queue.peek();
+
+			if (head != null && tenant.running < tenant.concurrencyCap && !keysInFlight.contains(head.streamKey)
+					&& (next == null || tenant.virtualTime < next.virtualTime)) {
+				next = tenant;
+			}
+		}
+		return next;
+	}
+
+	private void dispatch(Tenant tenant, Delivery delivery, AtomicInteger remaining) {
+
+		long started = System.currentTimeMillis();
+		boolean delivered = false;
+
+		try {
+			delivered = dispatcher.dispatch(delivery.streamMessage, delivery.streamKey);
+		} catch (RuntimeException e) {
+			EVENTS.failure("dispatch_failed", e, "key", delivery.streamKey, "tenant", tenant.name);
+		} finally {
+			// released even if dispatch throws an Error, so dispatchAll does not wait forever
+			long latency = System.currentTimeMillis() - started;
+			stats.computeIfAbsent(tenant.name, name -> new TenantStats()).record(started - delivery.queuedAt,
+					latency, delivered);
+
+			synchronized (this) {
+				tenant.running = tenant.running - 1;
+				tenant.averageLatencyMs = tenant.averageLatencyMs
+						+ LATENCY_SMOOTHING * (Math.max(latency, 1) - tenant.averageLatencyMs);
+				inFlight = inFlight - 1;
+				keysInFlight.remove(delivery.streamKey);
+				remaining.decrementAndGet();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @param delivery
+	 * @return String The tenant of the message
+	 */
+	private String classify(Delivery delivery) {
+
+		if (TENANT_KEY_DELIMITER != null && !TENANT_KEY_DELIMITER.isEmpty()) {
+			int end = delivery.streamKey.indexOf(TENANT_KEY_DELIMITER);
+			return end > 0 ? delivery.streamKey.substring(0, end) : DEFAULT_TENANT;
+		}
+
+		// read the top level tenant field, skipping the rest of the message
+		try (JsonParser parser = JSON_FACTORY.createParser(delivery.streamMessage)) {
+
+			if (parser.nextToken() == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					JsonToken value = parser.nextToken();
+
+					if (TENANT_FIELD.equals(field) && value.isScalarValue()) {
+						return parser.getText();
+					}
+					parser.skipChildren();
+				}
+			}
+		} catch (IOException e) {
+			// the dispatcher reports the invalid message
+		}
+		return DEFAULT_TENANT;
+	}
+
+	private Tenant tenant(String name) {
+
+		return tenants.computeIfAbsent(name, tenantName -> new Tenant(tenantName,
+				Math.max(tenantConfig(weights, tenantName, 1), 1),
+				Math.max(tenantConfig(concurrencyCaps, tenantName, CONCURRENCY), 1)));
+	}
+
+	/**
+	 * @return String The per tenant counters since the last call, as JSON
+	 *
+	 *         This method returns the no. of dispatched and failed messages, the
+	 *         throughput, and the average and maximum dispatch latency and queue
+	 *         wait of each tenant, and resets the counters.
+	 */
+	public String drainStats() {
+		return drainStatsNode().toString();
+	}
+
+	private ObjectNode drainStatsNode() {
+
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(now - statsSince, 1) / 1000.0;
+		statsSince = now;
+
+		ObjectNode statsNode = OBJECT_MAPPER.createObjectNode();
+		Iterator<Map.Entry<String, TenantStats>> entries = stats.entrySet().iterator();
+
+		while (entries.hasNext()) {
+			Map.Entry<String, TenantStats> entry = entries.next();
+			entries.remove();
+			entry.getValue().write(statsNode.putObject(entry.getKey()), seconds);
+		}
+		return statsNode;
+	}
+
+	/**
+	 * This method emits the counters of drainStats() as one tenant_dispatch_stats
+	 * event per tenant, and resets them.
+	 */
+	public void logStats() {
+
+		Iterator<Map.Entry<String, JsonNode>> tenantStats = drainStatsNode().fields();
+		while (tenantStats.hasNext()) {
+			Map.Entry<String, JsonNode> entry = tenantStats.next();
+			JsonNode node = entry.getValue();
+			EVENTS.info("tenant_dispatch_stats", "tenant", entry.getKey(), "dispatched", node.get("dispatched").asLong(),
+					"failed", node.get("failed").asLong(), "perSecond", node.get("perSecond").asDouble(),
+					"avgLatencyMs", node.get("avgLatencyMs").asLong(), "maxLatencyMs",
+					node.get("maxLatencyMs").asLong(), "avgWaitMs", node.get("avgWaitMs").asLong(), "maxWaitMs",
+					node.get("maxWaitMs").asLong());
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	private static Map<String, Integer> readTenantConfig(String variable) {
+
+		Map<String, Integer> config = new HashMap<>();
+		String value = System.getenv().get(variable);
+
+		if (value == null || value.isBlank()) {
+			return config;
+		}
+		try {
+			Iterator<Map.Entry<String, JsonNode>> fields = OBJECT_MAPPER.readTree(value).fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				config.put(field.getKey(), field.getValue().asInt());
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(variable + " is not valid JSON. " + e.getLocalizedMessage(), e);
+		}
+		return config;
+	}
+
+	private static int tenantConfig(Map<String, Integer> config, String tenant, int defaultValue) {
+		return config.getOrDefault(tenant, config.getOrDefault(ANY_TENANT, defaultValue));
+	}
+
+	private static class Tenant {
+
+		private final String name;
+		private final int weight;
+		private final int concurrencyCap;
+		private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+		private double virtualTime;
+		private double averageLatencyMs = INITIAL_LATENCY_MS;
+		private int running;
+
+		Tenant(String name, int weight, int concurrencyCap) {
+			this.name = name;
+			this.weight = weight;
+			this.concurrencyCap = concurrencyCap;
+		}
+	}
+
+	private static class TenantStats {
+
+		private final LongAdder dispatched = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder latencyMs = new LongAdder();
+		private final LongAdder waitMs = new LongAdder();
+		private final AtomicLong maxLatencyMs = new AtomicLong();
+		private final AtomicLong maxWaitMs = new AtomicLong();
+
+		void record(long wait, long latency, boolean delivered) {
+			dispatched.increment();
+			if (!delivered) {
+				failed.increment();
+			}
+			latencyMs.add(latency);
+			waitMs.add(wait);
+			maxLatencyMs.accumulateAndGet(latency, Math::max);
+			maxWaitMs.accumulateAndGet(wait, Math::max);
+		}
+
+		void write(ObjectNode node, double seconds) {
+			long count = Math.max(dispatched.sum(), 1);
+			node.put("dispatched", dispatched.sum()).put("failed", failed.sum())
+					.put("perSecond", Math.round(dispatched.sum() / seconds * 100) / 100.0)
+					.put("avgLatencyMs", latencyMs.sum() / count).put("maxLatencyMs", maxLatencyMs.get())
+					.put("avgWaitMs", waitMs.sum() / count).put("maxWaitMs", maxWaitMs.get());
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Encrypts and decrypts payloads with LocalKeyService in place of KMS. The surefire configuration
+//sets data_key_max_messages to 3, so that the data key rotates within a test.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class PayloadCipherTest {
+
+	private static final String MASTER_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+	private static final String TARGET = "https://orders.example.com/orders";
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private CountingKeyService keyService;
+
+	@Before
+	public void setUp() {
+		keyService = new CountingKeyService(new LocalKeyService(MASTER_KEY));
+	}
+
+	@Test
+	public void decryptsWhatItEncrypted() throws Exception {
+
+		ObjectNode message = message("{\"orderId\": 42, \"total\": 9.5}");
+		new PayloadCipher(keyService).encryptPayload(message, "order-42");
+
+		assertFalse(message.has("targetRestApiPayload"));
+		assertEquals("streamKey,targetRestApi", message.path(PayloadCipher.NODE_NAME).path("aad").asText());
+
+		// a new cipher has no cached data key, so it unwraps it with the key service
+		byte[] payload = new PayloadCipher(new LocalKeyService(MASTER_KEY))
+				.decryptPayload(readPayload(message), "order-42", TARGET);
+		assertEquals(OBJECT_MAPPER.readTree("{\"orderId\": 42, \"total\": 9.5}"), OBJECT_MAPPER.readTree(payload));
+	}
+
+	@Test
+	public void rotatesTheDataKeyAfterMaxMessages() throws Exception {
+
+		PayloadCipher payloadCipher = new PayloadCipher(keyService);
+		Set<String> encryptedKeys = new HashSet<>();
+		ObjectNode[] messages = new ObjectNode[7];
+
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = message("{\"orderId\": " + i + "}");
+			payloadCipher.encryptPayload(messages[i], "order-" + i);
+			encryptedKeys.add(messages[i].path(PayloadCipher.NODE_NAME).path("encryptedKey").asText());
+		}
+
+		// 7 messages with 3 messages per data key
+		assertEquals(3, keyService.generated.get());
+		assertEquals(3, encryptedKeys.size());
+
+		// the messages of every data key still decrypt after the rotation
+		PayloadCipher decryptingCipher = new PayloadCipher(keyService);
+		for (int i = 0; i < messages.length; i++) {
+			byte[] payload = decryptingCipher.decryptPayload(readPayload(messages[i]), "order-" + i, TARGET);
+			assertEquals(i, OBJECT_MAPPER.readTree(payload).path("orderId").asInt());
+		}
+		assertEquals(3, keyService.decrypted.get());
+	}
+
+	@Test
+	public void rejectsAnotherStreamKeyOrTarget() throws Exception {
+
+		ObjectNode message = message("{\"orderId\": 42}");
+		PayloadCipher payloadCipher = new PayloadCipher(keyService);
+		payloadCipher.encryptPayload(message, "order-42");
+		PayloadCipher.EncryptedPayload encryptedPayload = readPayload(message);
+
+		assertThrows(IOException.class, () -> payloadCipher.decryptPayload(encryptedPayload, "order-43", TARGET));
+		assertThrows(IOException.class,
+				() -> payloadCipher.decryptPayload(encryptedPayload, "order-42", "https://attacker.example.com"));
+	}
+
+	@Test
+	public void rejectsADowngradedAad() throws Exception {
+
+		ObjectNode message = message("{\"orderId\": 42}");
+		PayloadCipher payloadCipher = new PayloadCipher(keyService);
+		payloadCipher.encryptPayload(message, "order-42");
+
+		// dropping the target from the aad does not unbind the payload from it
+		((ObjectNode) message.get(PayloadCipher.NODE_NAME)).put("aad", "streamKey");
+		PayloadCipher.EncryptedPayload downgraded = readPayload(message);
+		assertThrows(IOException.class, () -> payloadCipher.decryptPayload(downgraded, "order-42", null));
+	}
+
+	@Test
+	public void bindsFanOutMessagesToTheStreamKeyOnly() throws Exception {
+
+		ObjectNode message = message("{\"orderId\": 42}");
+		message.remove("targetRestApi");
+		message.putArray("targets").addObject().put("targetRestApi", TARGET).put("targetRestApiOperation", "POST");
+		PayloadCipher payloadCipher = new PayloadCipher(keyService);
+		payloadCipher.encryptPayload(message, "order-42");
+
+		TargetMessage targetMessage = TargetMessage.parse(OBJECT_MAPPER.writeValueAsBytes(message), "order-42",
+				null, payloadCipher);
+		assertTrue(targetMessage.isFanOut());
+		assertThrows(IOException.class, () -> TargetMessage.parse(OBJECT_MAPPER.writeValueAsBytes(message),
+				"order-43", null, payloadCipher));
+	}
+
+	private static ObjectNode message(String payload) throws IOException {
+
+		ObjectNode message = OBJECT_MAPPER.createObjectNode();
+		message.put("vaultSecretName", "orders-secret");
+		message.put("targetRestApi", TARGET);
+		message.put("targetRestApiOperation", "POST");
+		message.set("targetRestApiPayload", OBJECT_MAPPER.readTree(payload));
+		return message;
+	}
+
+	private static PayloadCipher.EncryptedPayload readPayload(ObjectNode message) throws IOException {
+
+		JsonNode encryptedPayload = message.get(PayloadCipher.NODE_NAME);
+		try (JsonParser parser = JSON_FACTORY.createParser(encryptedPayload.toString().getBytes(UTF_8))) {
+			parser.nextToken();
+			return PayloadCipher.readPayload(parser);
+		}
+	}
+
+	/**
+	 * Counts the data keys generated and unwrapped.
+	 */
+	private static final class CountingKeyService implements KeyService {
+
+		private final KeyService keyService;
+		private final AtomicInteger generated = new AtomicInteger();
+		private final AtomicInteger decrypted = new AtomicInteger();
+
+		private CountingKeyService(KeyService keyService) {
+			this.keyService = keyService;
+		}
+
+		@Override
+		public DataKey generateDataKey() throws GeneralSecurityException {
+			generated.incrementAndGet();
+			return keyService.generateDataKey();
+		}
+
+		@Override
+		public byte[] decryptDataKey(String encryptedKey) throws GeneralSecurityException {
+			decrypted.incrementAndGet();
+			return keyService.decryptDataKey(encryptedKey);
+		}
+	}
+
+}
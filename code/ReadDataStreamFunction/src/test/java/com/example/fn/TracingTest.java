@@ -0,0 +1,127 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Follows a trace from the ingest span of PopulateDataStreamFunction, through the traceContext node
+//of the stream message, to the dispatch span of this function. The surefire configuration sets
+//trace_exporter to memory, so the spans are checked in InMemorySpanSink.
+
+package com.example.fn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.sdk.trace.data.SpanData;
+
+public class TracingTest {
+
+	private static final String SOURCE_TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+	private static final String SOURCE_SPAN_ID = "00f067aa0ba902b7";
+	private static final String NO_PARENT_SPAN_ID = "0000000000000000";
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	@Before
+	public void setUp() {
+		assertTrue("trace_exporter must be memory", Tracing.isEnabled());
+		Tracing.flush();
+		Tracing.memorySink().reset();
+	}
+
+	@Test
+	public void continuesTheIngestTraceWhenTheMessageIsRead() throws Exception {
+
+		// the ingest side, as in PopulateDataStreamFunction
+		ObjectNode message = OBJECT_MAPPER.createObjectNode().put("targetRestApi", "https://orders.example.com");
+		Span ingestSpan = Tracing.startSpan("ingest", SpanKind.SERVER,
+				"00-" + SOURCE_TRACE_ID + "-" + SOURCE_SPAN_ID + "-01");
+		try (Scope scope = ingestSpan.makeCurrent()) {
+			Tracing.inject(message);
+		} finally {
+			ingestSpan.end();
+		}
+		assertNotNull(message.path(Tracing.NODE_NAME).get(Tracing.TRACEPARENT));
+
+		// the read side, from the stored message bytes
+		Tracing.startMessageSpan("dispatch", OBJECT_MAPPER.writeValueAsBytes(message)).end();
+		Tracing.flush();
+
+		List<SpanData> spans = Tracing.memorySink().getFinishedSpans();
+		SpanData ingest = span(spans, "ingest");
+		SpanData queue = span(spans, "stream queue");
+		SpanData dispatch = span(spans, "dispatch");
+
+		assertEquals(SOURCE_TRACE_ID, ingest.getTraceId());
+		assertEquals(SOURCE_SPAN_ID, ingest.getParentSpanId());
+		assertEquals(SOURCE_TRACE_ID, queue.getTraceId());
+		assertEquals(ingest.getSpanId(), queue.getParentSpanId());
+		assertEquals(SOURCE_TRACE_ID, dispatch.getTraceId());
+		assertEquals(ingest.getSpanId(), dispatch.getParentSpanId());
+		assertEquals(SpanKind.CONSUMER, dispatch.getKind());
+	}
+
+	@Test
+	public void writesTheTraceContextAheadOfThePayload() throws Exception {
+
+		ObjectNode message = OBJECT_MAPPER.createObjectNode().put(MessageExpiry.NODE_NAME, 1665400060000L)
+				.put("targetRestApi", "https://orders.example.com");
+		message.putObject("targetRestApiPayload").put("orderId", 42);
+		Span ingestSpan = Tracing.startSpan("ingest", SpanKind.SERVER, null);
+		try (Scope scope = ingestSpan.makeCurrent()) {
+			Tracing.inject(message);
+		} finally {
+			ingestSpan.end();
+		}
+
+		// expiresAt stays the first field, and the payload follows the trace context
+		Iterator<String> fields = message.fieldNames();
+		assertEquals(MessageExpiry.NODE_NAME, fields.next());
+		assertEquals(Tracing.NODE_NAME, fields.next());
+		assertEquals("targetRestApi", fields.next());
+		assertEquals("targetRestApiPayload", fields.next());
+
+		byte[] streamMessage = OBJECT_MAPPER.writeValueAsBytes(message);
+		assertEquals(1665400060000L, MessageExpiry.expiresAt(streamMessage));
+		Tracing.startMessageSpan("dispatch", streamMessage).end();
+		Tracing.flush();
+
+		List<SpanData> spans = Tracing.memorySink().getFinishedSpans();
+		assertEquals(span(spans, "ingest").getSpanId(), span(spans, "dispatch").getParentSpanId());
+	}
+
+	@Test
+	public void startsANewTraceForAMessageWithoutTraceContext() throws Exception {
+
+		ObjectNode message = OBJECT_MAPPER.createObjectNode().put("targetRestApi", "https://orders.example.com");
+		Tracing.startMessageSpan("dispatch", OBJECT_MAPPER.writeValueAsBytes(message)).end();
+		Tracing.flush();
+
+		List<SpanData> spans = Tracing.memorySink().getFinishedSpans();
+		assertEquals(1, spans.size());
+		assertEquals(NO_PARENT_SPAN_ID, span(spans, "dispatch").getParentSpanId());
+	}
+
+	private static SpanData span(List<SpanData> spans, String name) {
+
+		for (SpanData span : spans) {
+			if (name.equals(span.getName())) {
+				return span;
+			}
+		}
+		fail("No " + name + " span in " + spans);
+		return null;
+	}
+
+}
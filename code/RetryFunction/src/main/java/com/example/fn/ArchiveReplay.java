@@ -0,0 +1,309 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Replays the error archive, for messages that are no longer in the error streams after the
+//stream retention period. The archive objects created in a time range are downloaded and decoded
+//in parallel, archive_replay_parallelism objects at a time, and each message is handed to the
+//same retry path as the messages read from a stream.
+//An archive object holds the stream messages as JSON records with Base64 encoded key and value,
+//optionally gzip compressed. Records are read one at a time from the download, so an object is
+//never held in memory.
+//Progress is checkpointed per object under the replayId of the request, when an object stops and
+//every archive_replay_checkpoint_records records or archive_replay_checkpoint_seconds within it,
+//so that a call that times out on a large object does not replay it from the start. A replay that
+//is stopped by the noOfMessagesToProcess limit is continued by calling again with the same replayId.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ArchiveReplay {
+
+	private static final Logger LOGGER = Logger.getLogger(ArchiveReplay.class.getName());
+	private static final EventLog EVENTS = EventLog.get(ArchiveReplay.class);
+	private static final int PARALLELISM = Integer
+			.parseInt(System.getenv().getOrDefault("archive_replay_parallelism", "4"));
+	private static final long CHECKPOINT_RECORDS = Long
+			.parseLong(System.getenv().getOrDefault("archive_replay_checkpoint_records", "1000"));
+	private static final long CHECKPOINT_INTERVAL_MS = Long
+			.parseLong(System.getenv().getOrDefault("archive_replay_checkpoint_seconds", "30")) * 1000;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	// the archive values are standard Base64, decoded straight from the parser
+	private static final Base64Variant BASE64 = Base64Variants.MIME_NO_LINEFEEDS.withPaddingAllowed();
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	/**
+	 * The retry path each archived message is handed to.
+	 */
+	public interface MessageHandler {
+		RetryFunction.Outcome handle(byte[] streamMessage, String streamKey);
+	}
+
+	private final ArchiveStore archiveStore;
+	private final MessageHandler messageHandler;
+
+	private final AtomicInteger processedMessages = new AtomicInteger();
+	private final AtomicInteger failedMessages = new AtomicInteger();
+	private final AtomicInteger parkedMessages = new AtomicInteger();
+	private final AtomicInteger expiredMessages = new AtomicInteger();
+	private final AtomicInteger objectErrors = new AtomicInteger();
+	// objectName -> progress, guarded by this
+	private final Map<String, ObjectNode> checkpoint = new TreeMap<>();
+	private String checkpointName;
+
+	public ArchiveReplay(ArchiveStore archiveStore, MessageHandler messageHandler) {
+		this.archiveStore = archiveStore;
+		this.messageHandler = messageHandler;
+	}
+
+	/**
+	 * @param replayId
+	 * @param objectPrefix
+	 * @param from
+	 * @param to
+	 * @param noOfMessagesToProcess
+	 * @return String Returns the no. of processed, failed and parked messages,
+	 *         and the no. of archive objects completed and remaining.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *
+	 *                              This method replays up to
+	 *                              noOfMessagesToProcess messages of the archive
+	 *                              objects that are not completed yet.
+	 */
+	public String replay(String replayId, String objectPrefix, Date from, Date to, int noOfMessagesToProcess)
+			throws IOException, InterruptedException {
+
+		checkpointName = replayId + ".json";
+		readCheckpoint();
+
+		List<String> objectNames = archiveStore.listObjects(objectPrefix, from, to);
+		List<Callable<Void>> replays = new ArrayList<>();
+		AtomicInteger budget = new AtomicInteger(noOfMessagesToProcess);
+
+		for (String objectName : objectNames) {
+			ObjectNode progress = progress(objectName);
+
+			if (!progress.path("complete").asBoolean()) {
+				long recordsDone = progress.path("records").asLong();
+				replays.add(() -> {
+					replayObject(objectName, recordsDone, budget);
+					return null;
+				});
+			}
+		}
+
+		if (!replays.isEmpty()) {
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, replays.size()));
+			try {
+				executor.invokeAll(replays);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		int remainingObjects = 0;
+		for (String objectName : objectNames) {
+			if (!progress(objectName).path("complete").asBoolean()) {
+				remainingObjects = remainingObjects + 1;
+			}
+		}
+		int completedObjects = objectNames.size() - remainingObjects;
+
+		return new StringBuilder("{\"replayId\":\"").append(replayId).append("\",\"processedmessages\":")
+				.append(processedMessages.get()).append(",\"failedMessages\":").append(failedMessages.get())
+				.append(",\"parkedMessages\":").append(parkedMessages.get())
+				.append(",\"expiredMessages\":").append(expiredMessages.get()).append(",\"completedObjects\":")
+				.append(completedObjects).append(",\"remainingObjects\":").append(remainingObjects)
+				.append(",\"objectErrors\":").append(objectErrors.get())
+				.append(remainingObjects == 0 ? ",\"endOfArchive\": true" : "").append("}").toString();
+	}
+
+	/**
+	 * @param objectName
+	 * @param recordsDone The no. of records replayed by earlier calls
+	 * @param budget      The no. of messages this call may still replay
+	 *
+	 *                    This method streams the records of an archive object to
+	 *                    the message handler, skipping the records replayed
+	 *                    before, and checkpoints the object as it goes and when
+	 *                    it stops.
+	 */
+	private void replayObject(String objectName, long recordsDone, AtomicInteger budget) {
+
+		long records = 0;
+		boolean complete = false;
+		long checkpointedRecords = recordsDone;
+		long checkpointedAt = System.currentTimeMillis();
+
+		try (InputStream content = decompress(archiveStore.openObject(objectName));
+				JsonParser parser = JSON_FACTORY.createParser(content)) {
+
+			JsonToken token;
+			boolean stopped = false;
+
+			while (!stopped && (token = parser.nextToken()) != null) {
+
+				// records are either concatenated or in a JSON array
+				if (token == JsonToken.START_ARRAY || token == JsonToken.END_ARRAY) {
+					continue;
+				}
+				if (token != JsonToken.START_OBJECT) {
+					parser.skipChildren();
+					continue;
+				}
+				if (records < recordsDone) {
+					parser.skipChildren();
+					records = records + 1;
+					continue;
+				}
+				if (budget.getAndDecrement() <= 0) {
+					stopped = true;
+					continue;
+				}
+
+				replayRecord(parser);
+				records = records + 1;
+
+				if (records - checkpointedRecords >= CHECKPOINT_RECORDS
+						|| System.currentTimeMillis() - checkpointedAt >= CHECKPOINT_INTERVAL_MS) {
+					writeProgress(objectName, records, false);
+					checkpointedRecords = records;
+					checkpointedAt = System.currentTimeMillis();
+				}
+			}
+			complete = !stopped;
+
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Replay of archive object {0} failed after {1} records. {2}",
+					new Object[] { objectName, records, e.getLocalizedMessage() });
+			objectErrors.incrementAndGet();
+		}
+
+		if (complete || records > checkpointedRecords) {
+			writeProgress(objectName, records, complete);
+		}
+	}
+
+	/**
+	 * @param parser A parser positioned on the start of a record
+	 *
+	 *               This method decodes a record and hands it to the message
+	 *               handler
+	 */
+	private void replayRecord(JsonParser parser) throws IOException {
+
+		String streamKey = "";
+		byte[] streamMessage = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if (value == JsonToken.VALUE_STRING && "key".equals(field)) {
+				streamKey = new String(parser.getBinaryValue(BASE64), UTF_8);
+			} else if (value == JsonToken.VALUE_STRING && "value".equals(field)) {
+				streamMessage = parser.getBinaryValue(BASE64);
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (streamMessage == null) {
+			EVENTS.warning("archive_record_skipped", "key", streamKey, "reason", "no value");
+			return;
+		}
+
+		switch (messageHandler.handle(streamMessage, streamKey)) {
+		case PROCESSED:
+			processedMessages.incrementAndGet();
+			break;
+		case PARKED:
+			parkedMessages.incrementAndGet();
+			break;
+		case EXPIRED:
+			expiredMessages.incrementAndGet();
+			break;
+		default:
+			failedMessages.incrementAndGet();
+		}
+	}
+
+	private static InputStream decompress(InputStream content) throws IOException {
+
+		BufferedInputStream buffered = new BufferedInputStream(content);
+		buffered.mark(2);
+		int magic = buffered.read() | (buffered.read() << 8);
+		buffered.reset();
+
+		return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(buffered) : buffered;
+	}
+
+	private synchronized ObjectNode progress(String objectName) {
+		return checkpoint.computeIfAbsent(objectName, name -> OBJECT_MAPPER.createObjectNode());
+	}
+
+	private synchronized void readCheckpoint() throws IOException {
+
+		checkpoint.clear();
+		String stored = archiveStore.readCheckpoint(checkpointName);
+
+		if (stored != null) {
+			Iterator<Map.Entry<String, JsonNode>> objects = OBJECT_MAPPER.readTree(stored).path("objects").fields();
+			while (objects.hasNext()) {
+				Map.Entry<String, JsonNode> object = objects.next();
+				checkpoint.put(object.getKey(), (ObjectNode) object.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @param objectName
+	 * @param records
+	 * @param complete
+	 *
+	 *                   This method records the progress of an object and stores
+	 *                   the checkpoint
+	 */
+	private synchronized void writeProgress(String objectName, long records, boolean complete) {
+
+		progress(objectName).put("records", records).put("complete", complete);
+
+		ObjectNode stored = OBJECT_MAPPER.createObjectNode();
+		stored.putObject("objects").setAll(checkpoint);
+
+		try {
+			archiveStore.writeCheckpoint(checkpointName, stored.toString());
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "Checkpoint {0} could not be stored. {1}",
+					new Object[] { checkpointName, e.getLocalizedMessage() });
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The store holding the error archive written by UnrecoverableErrorToStorageConnector, and the
+//checkpoints of archive replays. Object Storage is the default. Set archive_store to local and
+//archive_local_dir to a folder to replay archive objects copied to the local file system, for
+//tests and local runs.
+//The retry jobs are stored as versioned checkpoints, written only if they did not change since
+//they were read, so that a cancel and a job step never overwrite each other.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+
+public interface ArchiveStore {
+
+	/**
+	 * Prefix of the checkpoint objects, which are not part of the archive.
+	 */
+	String CHECKPOINT_PREFIX = "replay-checkpoints/";
+
+	/**
+	 * @param prefix
+	 * @param from
+	 * @param to
+	 * @return List<String> The names of the archive objects starting with prefix
+	 *         and created between from and to, in name order.
+	 */
+	List<String> listObjects(String prefix, Date from, Date to);
+
+	/**
+	 * @param objectName
+	 * @return InputStream The content of the object, as stored.
+	 * @throws IOException
+	 */
+	InputStream openObject(String objectName) throws IOException;
+
+	/**
+	 * @param checkpointName
+	 * @return String The checkpoint, or null if there is none.
+	 * @throws IOException
+	 */
+	String readCheckpoint(String checkpointName) throws IOException;
+
+	/**
+	 * @param checkpointName
+	 * @param checkpoint
+	 * @throws IOException
+	 */
+	void writeCheckpoint(String checkpointName, String checkpoint) throws IOException;
+
+	/**
+	 * @param checkpointName
+	 * @return VersionedCheckpoint The checkpoint with its version, or null if
+	 *         there is none.
+	 * @throws IOException
+	 */
+	VersionedCheckpoint readVersionedCheckpoint(String checkpointName) throws IOException;
+
+	/**
+	 * @param checkpointName
+	 * @param checkpoint
+	 * @param version        The version the checkpoint was read at, or null to
+	 *                       create it
+	 * @return String The version of the stored checkpoint.
+	 * @throws CheckpointConflictException If the checkpoint changed since it was
+	 *                                     read, or exists when version is null
+	 * @throws IOException
+	 */
+	String writeCheckpoint(String checkpointName, String checkpoint, String version) throws IOException;
+
+	/**
+	 * @param provider
+	 * @return ArchiveStore
+	 *
+	 *         This method creates the store configured in the Function Application
+	 *         configuration.
+	 */
+	static ArchiveStore create(BasicAuthenticationDetailsProvider provider) {
+
+		String store = System.getenv().getOrDefault("archive_store", "objectstorage");
+
+		if ("local".equalsIgnoreCase(store)) {
+			return new LocalArchiveStore(System.getenv().get("archive_local_dir"));
+		}
+		return new ObjectStorageArchiveStore(provider);
+	}
+
+	/**
+	 * A checkpoint and the version it was read at, the ETag of its object in
+	 * Object Storage.
+	 */
+	final class VersionedCheckpoint {
+
+		private final String checkpoint;
+		private final String version;
+
+		public VersionedCheckpoint(String checkpoint, String version) {
+			this.checkpoint = checkpoint;
+			this.version = version;
+		}
+
+		public String getCheckpoint() {
+			return checkpoint;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 * Thrown when a checkpoint is written with a version it no longer has.
+	 */
+	class CheckpointConflictException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CheckpointConflictException(String checkpointName) {
+			super("Checkpoint " + checkpointName + " was changed by another call.");
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Reports the backlog of the DataSyncStream and of the error streams configured in the Function
+//Application: the four error streams, the delay streams and the poison message stream.
+//For each partition it reports the offset of the latest message (headOffset), the offset the
+//consumer reached (committedOffset), the no. of messages after it (lag) and the age of the oldest
+//of them (oldestUnprocessedAgeSeconds).
+//The committed offset of the DataSyncStream is the one of the consumer_group_name consumer group
+//used by DataSyncConsumer. The error streams are read by RetryFunction calls, which track their own
+//lastReadOffset, so the caller passes it in checkpoints, e.g.
+//"checkpoints": {"ocid1.stream...": {"0": 1234, "1": 987}}
+//A partition without a committed offset, or whose committed offset is no longer retained, counts
+//every message still retained as backlog.
+//The results are also posted to OCI Monitoring, in the backlog_metrics_namespace namespace, so
+//alarms can be set on the backlog. Set backlog_metrics to none to only return them.
+
+package com.example.fn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.monitoring.MonitoringClient;
+import com.oracle.bmc.monitoring.model.Datapoint;
+import com.oracle.bmc.monitoring.model.MetricDataDetails;
+import com.oracle.bmc.monitoring.model.PostMetricDataDetails;
+import com.oracle.bmc.monitoring.requests.PostMetricDataRequest;
+import com.oracle.bmc.streaming.StreamAdminClient;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.Stream;
+import com.oracle.bmc.streaming.requests.GetStreamRequest;
+
+public class BacklogMonitor {
+
+	private static final Logger LOGGER = Logger.getLogger(BacklogMonitor.class.getName());
+	private static final String CONSUMER_GROUP = System.getenv().getOrDefault("consumer_group_name",
+			"DataSyncConsumerGroup");
+	private static final String METRICS = System.getenv().getOrDefault("backlog_metrics", "monitoring");
+	private static final String METRICS_NAMESPACE = System.getenv().getOrDefault("backlog_metrics_namespace",
+			"datasync_backlog");
+	private static final String METRICS_COMPARTMENT_OCID = System.getenv().getOrDefault(
+			"backlog_metrics_compartment_ocid", System.getenv().get("stream_compartment_ocid"));
+	private static final String METRICS_ENDPOINT = System.getenv().getOrDefault("monitoring_ingestion_endpoint",
+			"https://telemetry-ingestion." + System.getenv().get("OCI_RESOURCE_PRINCIPAL_REGION")
+					+ ".oraclecloud.com");
+	// PostMetricData accepts up to 50 metric streams per call
+	private static final int METRICS_PER_POST = 50;
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final BasicAuthenticationDetailsProvider provider;
+	private final StreamTransport streamTransport;
+
+	public BacklogMonitor(BasicAuthenticationDetailsProvider provider, StreamTransport streamTransport) {
+		this.provider = provider;
+		this.streamTransport = streamTransport;
+	}
+
+	/**
+	 * @param checkpoints       streamOCID -> partition -> lastReadOffset of the
+	 *                          error streams, or a missing node
+	 * @param streamAdminClient
+	 * @return String The backlog of each partition of each stream, as JSON
+	 *
+	 *         This method computes the backlog of the monitored streams and
+	 *         publishes it as metrics.
+	 */
+	public String monitor(JsonNode checkpoints, StreamAdminClient streamAdminClient) {
+
+		long now = System.currentTimeMillis();
+		ObjectNode resultNode = OBJECT_MAPPER.createObjectNode();
+		ArrayNode streamsNode = resultNode.putArray("streams");
+		List<MetricDataDetails> metrics = new ArrayList<>();
+
+		for (Map.Entry<String, String> monitored : monitoredStreams().entrySet()) {
+
+			String streamOCID = monitored.getKey();
+			ObjectNode streamNode = streamsNode.addObject().put("streamOCID", streamOCID).put("role",
+					monitored.getValue());
+
+			try {
+				Stream stream = streamAdminClient.getStream(GetStreamRequest.builder().streamId(streamOCID).build())
+						.getStream();
+				streamNode.put("stream", stream.getName());
+
+				Map<String, Long> committedOffsets = monitored.getValue().contains("data")
+						? streamTransport.getCommittedOffsets(stream, CONSUMER_GROUP)
+						: checkpointOffsets(checkpoints.path(streamOCID));
+
+				ArrayNode partitionsNode = streamNode.putArray("partitions");
+				for (int partition = 0; partition < stream.getPartitions(); partition++) {
+					ObjectNode partitionNode = partitionBacklog(stream, String.valueOf(partition),
+							committedOffsets.get(String.valueOf(partition)), now);
+					partitionsNode.add(partitionNode);
+					metrics.addAll(partitionMetrics(stream, monitored.getValue(), partitionNode, now));
+				}
+
+			} catch (BmcException | IllegalStateException e) {
+				LOGGER.log(Level.SEVERE, "Backlog of stream {0} could not be read. {1}",
+						new Object[] { streamOCID, e.getLocalizedMessage() });
+				streamNode.put("error", e.getLocalizedMessage());
+			}
+		}
+
+		resultNode.put("metricsPublished", publish(metrics));
+		return resultNode.toString();
+	}
+
+	/**
+	 * @param stream
+	 * @param partition
+	 * @param committedOffset The offset of the last processed message, or null
+	 * @param now
+	 * @return ObjectNode
+	 *
+	 *         This method reads the latest offset of the partition and the first
+	 *         message after the committed offset, whose age is the age of the
+	 *         backlog.
+	 */
+	private ObjectNode partitionBacklog(Stream stream, String partition, Long committedOffset, long now) {
+
+		ObjectNode partitionNode = OBJECT_MAPPER.createObjectNode().put("partition", partition);
+		long headOffset = streamTransport.getLatestOffset(stream, partition);
+		partitionNode.put("headOffset", headOffset);
+
+		List<Message> oldest = Collections.emptyList();
+		if (committedOffset != null) {
+			partitionNode.put("committedOffset", committedOffset);
+			try {
+				oldest = streamTransport.getMessages(stream, partition, committedOffset, 1);
+			} catch (BmcException e) {
+				// a cursor after an offset that is no longer retained is rejected as
+				// invalid, the whole partition is backlog. Any other failure, such as
+				// a 429 or a 5xx, fails the stream
+				if (e.getStatusCode() != 400 && e.getStatusCode() != 404) {
+					throw e;
+				}
+				committedOffset = null;
+			}
+		}
+		if (committedOffset == null) {
+			oldest = streamTransport.getMessages(stream, partition, -1, 1);
+		}
+
+		if (oldest.isEmpty() || headOffset < oldest.get(0).getOffset()) {
+			partitionNode.put("lag", 0).put("oldestUnprocessedAgeSeconds", 0);
+		} else {
+			Message oldestMessage = oldest.get(0);
+			partitionNode.put("lag", headOffset - oldestMessage.getOffset() + 1).put("oldestUnprocessedAgeSeconds",
+					Math.max(now - oldestMessage.getTimestamp().getTime(), 0) / 1000);
+		}
+		return partitionNode;
+	}
+
+	/**
+	 * @return Map<String, String> streamOCID -> the roles of the stream in the
+	 *         Function Application configuration
+	 */
+	private static Map<String, String> monitoredStreams() {
+
+		Map<String, String> streams = new LinkedHashMap<>();
+
+		addStream(streams, System.getenv().get("data_stream_ocid"), "data");
+		addStream(streams, System.getenv().get("unrecoverable_error_stream_ocid"), "unrecoverable");
+		addStream(streams, System.getenv().get("serviceUnavailable_error_stream_ocid"), "serviceUnavailable");
+		addStream(streams, System.getenv().get("internalserver_error_stream_ocid"), "internalServer");
+		addStream(streams, System.getenv().get("default_error_stream_ocid"), "default");
+		RetryMetadata.delayStreamOCIDs().forEach(streamOCID -> addStream(streams, streamOCID, "delay"));
+		addStream(streams, RetryMetadata.POISON_MESSAGE_STREAM_OCID, "poison");
+
+		return streams;
+	}
+
+	private static void addStream(Map<String, String> streams, String streamOCID, String role) {
+
+		if (streamOCID != null && !streamOCID.isEmpty()) {
+			streams.merge(streamOCID, role, (roles, newRole) -> roles + "," + newRole);
+		}
+	}
+
+	private static Map<String, Long> checkpointOffsets(JsonNode checkpointNode) {
+
+		Map<String, Long> offsets = new HashMap<>();
+		checkpointNode.fields().forEachRemaining(offset -> offsets.put(offset.getKey(), offset.getValue().asLong()));
+		return offsets;
+	}
+
+	private static List<MetricDataDetails> partitionMetrics(Stream stream, String role, ObjectNode partitionNode,
+			long now) {
+
+		Map<String, String> dimensions = new HashMap<>();
+		dimensions.put("resourceId", stream.getId());
+		dimensions.put("streamName", stream.getName());
+		dimensions.put("partition", partitionNode.get("partition").asText());
+		dimensions.put("role", role);
+
+		List<MetricDataDetails> metrics = new ArrayList<>();
+		metrics.add(metric("HeadOffset", dimensions, partitionNode.get("headOffset").asDouble(), now));
+		metrics.add(metric("Lag", dimensions, partitionNode.get("lag").asDouble(), now));
+		metrics.add(metric("OldestUnprocessedAgeSeconds", dimensions,
+				partitionNode.get("oldestUnprocessedAgeSeconds").asDouble(), now));
+		if (partitionNode.has("committedOffset")) {
+			metrics.add(metric("CommittedOffset", dimensions, partitionNode.get("committedOffset").asDouble(), now));
+		}
+		return metrics;
+	}
+
+	private static MetricDataDetails metric(String name, Map<String, String> dimensions, double value, long now) {
+
+		return MetricDataDetails.builder().namespace(METRICS_NAMESPACE).compartmentId(METRICS_COMPARTMENT_OCID)
+				.name(name).dimensions(dimensions)
+				.datapoints(Collections.singletonList(Datapoint.builder().timestamp(new Date(now)).value(value).build()))
+				.build();
+	}
+
+	/**
+	 * @param metrics
+	 * @return int The no. of metrics posted to OCI Monitoring
+	 */
+	private int publish(List<MetricDataDetails> metrics) {
+
+		if (!"monitoring".equals(METRICS) || metrics.isEmpty()) {
+			return 0;
+		}
+
+		int published = 0;
+		try (MonitoringClient monitoringClient = MonitoringClient.builder().endpoint(METRICS_ENDPOINT)
+				.build(provider)) {
+
+			for (int from = 0; from < metrics.size(); from += METRICS_PER_POST) {
+				List<MetricDataDetails> batch = metrics.subList(from, Math.min(from + METRICS_PER_POST, metrics.size()));
+
+				int failed = monitoringClient.postMetricData(PostMetricDataRequest.builder()
+						.postMetricDataDetails(PostMetricDataDetails.builder().metricData(batch)
+								.batchAtomicity(PostMetricDataDetails.BatchAtomicity.NonAtomic).build())
+						.build()).getPostMetricDataResponseDetails().getFailedMetricsCount();
+				published = published + batch.size() - failed;
+			}
+
+		} catch (BmcException e) {
+			LOGGER.log(Level.SEVERE, "Backlog metrics could not be posted. {0}", e.getLocalizedMessage());
+		}
+		return published;
+	}
+
+}
@@ -0,0 +1,272 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Stream transport using the Kafka protocol support of OCI Streaming.
+//The stream name is used as the Kafka topic. The producer is shared for the life of the
+//container so that records from consecutive calls are compressed, batched and pipelined.
+//Point kafka_bootstrap_servers at a local broker and set kafka_security_protocol to
+//PLAINTEXT to run against a local Kafka installation.
+//The SASL password, the auth token of the kafka_sasl_username user, is kept in the Vault as the
+//secret named kafka_auth_token_secret_name, and read once per container by the first transport
+//created.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.kafka.clients.CommonClientConfigs;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.SaslConfigs;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.secrets.SecretsClient;
+import com.oracle.bmc.secrets.model.Base64SecretBundleContentDetails;
+import com.oracle.bmc.secrets.requests.GetSecretBundleByNameRequest;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+
+public class KafkaStreamTransport implements StreamTransport {
+
+	private static final String BOOTSTRAP_SERVERS = System.getenv().get("kafka_bootstrap_servers");
+	private static final String SECURITY_PROTOCOL = System.getenv().getOrDefault("kafka_security_protocol",
+			"SASL_SSL");
+	private static final String SASL_USERNAME = System.getenv().get("kafka_sasl_username");
+	private static final String AUTH_TOKEN_SECRET_NAME = System.getenv().get("kafka_auth_token_secret_name");
+	private static final String VAULT_OCID = System.getenv().get("vault_ocid");
+	private static final String COMPRESSION_TYPE = System.getenv().getOrDefault("kafka_compression_type", "lz4");
+	private static final String LINGER_MS = System.getenv().getOrDefault("kafka_linger_ms", "5");
+	private static final String BATCH_SIZE = System.getenv().getOrDefault("kafka_batch_size", "65536");
+	private static final Duration POLL_TIMEOUT = Duration.ofMillis(1000);
+
+	// the SASL password, read from the Vault
+	private static volatile String authToken;
+
+	private final KafkaProducer<byte[], byte[]> producer;
+
+	/**
+	 * @param provider Used to read the SASL password from the Vault, may be
+	 *                 null if kafka_security_protocol is not SASL
+	 */
+	public KafkaStreamTransport(BasicAuthenticationDetailsProvider provider) {
+
+		readAuthToken(provider);
+
+		Properties producerProperties = connectionProperties();
+		producerProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+		producerProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+		producerProperties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, COMPRESSION_TYPE);
+		producerProperties.put(ProducerConfig.LINGER_MS_CONFIG, LINGER_MS);
+		producerProperties.put(ProducerConfig.BATCH_SIZE_CONFIG, BATCH_SIZE);
+		// idempotent producer, so that pipelined retries do not duplicate messages
+		producerProperties.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, "true");
+		producerProperties.put(ProducerConfig.ACKS_CONFIG, "all");
+		producerProperties.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, "5");
+
+		producer = new KafkaProducer<>(producerProperties);
+	}
+
+	@Override
+	public List<PutMessagesResultEntry> putMessages(Stream stream, List<PutMessagesDetailsEntry> entries) {
+
+		List<Future<RecordMetadata>> sends = new ArrayList<>(entries.size());
+
+		for (PutMessagesDetailsEntry entry : entries) {
+			sends.add(producer.send(new ProducerRecord<>(stream.getName(), entry.getKey(), entry.getValue())));
+		}
+		producer.flush();
+
+		List<PutMessagesResultEntry> results = new ArrayList<>(sends.size());
+
+		for (Future<RecordMetadata> send : sends) {
+			try {
+				RecordMetadata metadata = send.get();
+				results.add(PutMessagesResultEntry.builder().partition(String.valueOf(metadata.partition()))
+						.offset(metadata.offset()).timestamp(new Date(metadata.timestamp())).build());
+
+			} catch (ExecutionException e) {
+				results.add(PutMessagesResultEntry.builder().error(e.getCause().getClass().getSimpleName())
+						.errorMessage(e.getCause().getLocalizedMessage()).build());
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				results.add(PutMessagesResultEntry.builder().error("Interrupted")
+						.errorMessage(e.getLocalizedMessage()).build());
+			}
+		}
+
+		return results;
+	}
+
+	@Override
+	public List<Message> getMessages(Stream stream, String partition, long readAfterOffset, int limit) {
+
+		List<Message> messages = new ArrayList<>(limit);
+		TopicPartition topicPartition = new TopicPartition(stream.getName(), Integer.parseInt(partition));
+
+		try (KafkaConsumer<byte[], byte[]> consumer = newConsumer(limit)) {
+
+			consumer.assign(Collections.singletonList(topicPartition));
+
+			if (readAfterOffset == -1) {
+				consumer.seekToBeginning(Collections.singletonList(topicPartition));
+			} else {
+				consumer.seek(topicPartition, readAfterOffset + 1);
+			}
+
+			while (messages.size() < limit) {
+				ConsumerRecords<byte[], byte[]> records = consumer.poll(POLL_TIMEOUT);
+				if (records.isEmpty()) {
+					break;
+				}
+				for (ConsumerRecord<byte[], byte[]> record : records) {
+					if (messages.size() == limit) {
+						break;
+					}
+					messages.add(Message.builder().stream(stream.getName()).partition(partition)
+							.key(record.key()).value(record.value()).offset(record.offset())
+							.timestamp(new Date(record.timestamp())).build());
+				}
+			}
+		}
+
+		return messages;
+	}
+
+	@Override
+	public long getLatestOffset(Stream stream, String partition) {
+
+		TopicPartition topicPartition = new TopicPartition(stream.getName(), Integer.parseInt(partition));
+
+		try (KafkaConsumer<byte[], byte[]> consumer = newConsumer(1)) {
+			// the end offset is the offset the next message will get
+			return consumer.endOffsets(Collections.singletonList(topicPartition)).get(topicPartition) - 1;
+		}
+	}
+
+	@Override
+	public Map<String, Long> getCommittedOffsets(Stream stream, String groupName) {
+
+		Map<String, Long> committedOffsets = new HashMap<>();
+		Set<TopicPartition> topicPartitions = new HashSet<>();
+
+		for (int partition = 0; partition < stream.getPartitions(); partition++) {
+			topicPartitions.add(new TopicPartition(stream.getName(), partition));
+		}
+
+		try (KafkaConsumer<byte[], byte[]> consumer = newConsumer(1, groupName)) {
+
+			for (Map.Entry<TopicPartition, OffsetAndMetadata> groupOffset : consumer.committed(topicPartitions)
+					.entrySet()) {
+				if (groupOffset.getValue() != null) {
+					// Kafka commits the offset of the next message to read
+					committedOffsets.put(String.valueOf(groupOffset.getKey().partition()),
+							groupOffset.getValue().offset() - 1);
+				}
+			}
+		}
+		return committedOffsets;
+	}
+
+	private KafkaConsumer<byte[], byte[]> newConsumer(int maxPollRecords) {
+		return newConsumer(maxPollRecords, null);
+	}
+
+	/**
+	 * @param maxPollRecords
+	 * @param groupName      The consumer group to read the committed offsets
+	 *                       of, or null
+	 * @return KafkaConsumer<byte[], byte[]> A consumer for reading assigned
+	 *         partitions, which never commits
+	 */
+	private KafkaConsumer<byte[], byte[]> newConsumer(int maxPollRecords, String groupName) {
+
+		Properties consumerProperties = connectionProperties();
+		consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+		consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+				ByteArrayDeserializer.class.getName());
+		consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+		consumerProperties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, String.valueOf(maxPollRecords));
+		if (groupName != null) {
+			consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG, groupName);
+		}
+
+		return new KafkaConsumer<>(consumerProperties);
+	}
+
+	/**
+	 * @return Properties
+	 *
+	 *         This method builds the connection properties shared by the producer
+	 *         and consumers
+	 */
+	static Properties connectionProperties() {
+
+		Properties properties = new Properties();
+		properties.put(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG, BOOTSTRAP_SERVERS);
+		properties.put(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG, SECURITY_PROTOCOL);
+
+		if (SECURITY_PROTOCOL.startsWith("SASL")) {
+			properties.put(SaslConfigs.SASL_MECHANISM, "PLAIN");
+			properties.put(SaslConfigs.SASL_JAAS_CONFIG,
+					"org.apache.kafka.common.security.plain.PlainLoginModule required username=\"" + SASL_USERNAME
+							+ "\" password=\"" + authToken + "\";");
+		}
+		return properties;
+	}
+
+	/**
+	 * @param provider
+	 *
+	 *                 This method reads the SASL password from the Vault, unless
+	 *                 it was read already or the security protocol does not use
+	 *                 SASL.
+	 */
+	private static synchronized void readAuthToken(BasicAuthenticationDetailsProvider provider) {
+
+		if (authToken != null || !SECURITY_PROTOCOL.startsWith("SASL")) {
+			return;
+		}
+		if (AUTH_TOKEN_SECRET_NAME == null || AUTH_TOKEN_SECRET_NAME.isEmpty()) {
+			throw new IllegalStateException("kafka_auth_token_secret_name is not set");
+		}
+
+		SecretsClient secretsClient = new SecretsClient(provider);
+		try {
+			Base64SecretBundleContentDetails secretContent = (Base64SecretBundleContentDetails) secretsClient
+					.getSecretBundleByName(GetSecretBundleByNameRequest.builder().secretName(AUTH_TOKEN_SECRET_NAME)
+							.vaultId(VAULT_OCID).build())
+					.getSecretBundle().getSecretBundleContent();
+			authToken = new String(Base64.getDecoder().decode(secretContent.getContent()), UTF_8);
+		} finally {
+			secretsClient.close();
+		}
+	}
+
+}
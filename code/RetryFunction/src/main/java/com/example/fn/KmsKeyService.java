@@ -0,0 +1,70 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Key service backed by OCI KMS. Data keys are generated by the kms_key_ocid master key and are
+//only ever returned to KMS to be decrypted, so the master key never leaves the vault.
+
+package com.example.fn;
+
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.keymanagement.KmsCryptoClient;
+import com.oracle.bmc.keymanagement.model.DecryptDataDetails;
+import com.oracle.bmc.keymanagement.model.GenerateKeyDetails;
+import com.oracle.bmc.keymanagement.model.GeneratedKey;
+import com.oracle.bmc.keymanagement.model.KeyShape;
+import com.oracle.bmc.keymanagement.requests.DecryptRequest;
+import com.oracle.bmc.keymanagement.requests.GenerateDataEncryptionKeyRequest;
+
+public class KmsKeyService implements KeyService {
+
+	private static final String KEY_OCID = System.getenv().get("kms_key_ocid");
+	private static final String CRYPTO_ENDPOINT = System.getenv().get("kms_crypto_endpoint");
+	private static final int KEY_LENGTH_BYTES = 32;
+
+	private final BasicAuthenticationDetailsProvider provider;
+	private KmsCryptoClient cryptoClient;
+
+	public KmsKeyService(BasicAuthenticationDetailsProvider provider) {
+		this.provider = provider;
+	}
+
+	@Override
+	public DataKey generateDataKey() throws GeneralSecurityException {
+
+		GenerateKeyDetails keyDetails = GenerateKeyDetails.builder().keyId(KEY_OCID).includePlaintextKey(true)
+				.keyShape(KeyShape.builder().algorithm(KeyShape.Algorithm.Aes).length(KEY_LENGTH_BYTES).build())
+				.build();
+
+		GeneratedKey generatedKey = cryptoClient().generateDataEncryptionKey(
+				GenerateDataEncryptionKeyRequest.builder().generateKeyDetails(keyDetails).build()).getGeneratedKey();
+
+		return new DataKey(Base64.getDecoder().decode(generatedKey.getPlaintext()), generatedKey.getCiphertext());
+	}
+
+	@Override
+	public byte[] decryptDataKey(String encryptedKey) throws GeneralSecurityException {
+
+		DecryptDataDetails decryptDetails = DecryptDataDetails.builder().keyId(KEY_OCID).ciphertext(encryptedKey)
+				.build();
+
+		String plaintext = cryptoClient()
+				.decrypt(DecryptRequest.builder().decryptDataDetails(decryptDetails).build()).getDecryptedData()
+				.getPlaintext();
+		return Base64.getDecoder().decode(plaintext);
+	}
+
+	private synchronized KmsCryptoClient cryptoClient() throws GeneralSecurityException {
+
+		if (cryptoClient == null) {
+			if (KEY_OCID == null || CRYPTO_ENDPOINT == null) {
+				throw new GeneralSecurityException("kms_key_ocid and kms_crypto_endpoint are needed for KMS keys.");
+			}
+			cryptoClient = KmsCryptoClient.builder().endpoint(CRYPTO_ENDPOINT).build(provider);
+		}
+		return cryptoClient;
+	}
+
+}
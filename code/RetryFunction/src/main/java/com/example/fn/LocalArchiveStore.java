@@ -0,0 +1,127 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Archive store on a local folder, standing in for the Object Storage bucket in tests and local
+//runs. Object names are the file paths relative to the folder, with / as separator, and the
+//creation time of an object is the last modified time of its file. The version of a checkpoint is
+//the SHA-256 hash of its content. Versioned writes are checked and made under a lock of this
+//process, which is enough for the single process of a test or local run.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LocalArchiveStore implements ArchiveStore {
+
+	// the versioned writes of all stores of this process
+	private static final Object VERSIONED_WRITES = new Object();
+
+	private final Path root;
+
+	public LocalArchiveStore(String directory) {
+
+		if (directory == null || directory.isBlank()) {
+			throw new IllegalArgumentException("archive_local_dir is needed when archive_store is local.");
+		}
+		root = Paths.get(directory);
+	}
+
+	@Override
+	public List<String> listObjects(String prefix, Date from, Date to) {
+
+		try (Stream<Path> files = Files.walk(root)) {
+
+			return files.filter(Files::isRegularFile).filter(file -> isCreatedBetween(file, from, to))
+					.map(this::objectName)
+					.filter(name -> name.startsWith(prefix) && !name.startsWith(CHECKPOINT_PREFIX)).sorted()
+					.collect(Collectors.toList());
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public InputStream openObject(String objectName) throws IOException {
+		return Files.newInputStream(root.resolve(objectName));
+	}
+
+	@Override
+	public String readCheckpoint(String checkpointName) throws IOException {
+
+		Path checkpoint = root.resolve(CHECKPOINT_PREFIX + checkpointName);
+		return Files.exists(checkpoint) ? Files.readString(checkpoint, UTF_8) : null;
+	}
+
+	@Override
+	public void writeCheckpoint(String checkpointName, String checkpoint) throws IOException {
+
+		Path target = root.resolve(CHECKPOINT_PREFIX + checkpointName);
+		Files.createDirectories(target.getParent());
+
+		// replace the checkpoint in one step, so that a crash never leaves half of it
+		Path temp = Files.createTempFile(target.getParent(), "checkpoint", ".tmp");
+		Files.writeString(temp, checkpoint, UTF_8);
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public VersionedCheckpoint readVersionedCheckpoint(String checkpointName) throws IOException {
+
+		String checkpoint = readCheckpoint(checkpointName);
+		return checkpoint == null ? null : new VersionedCheckpoint(checkpoint, version(checkpoint));
+	}
+
+	@Override
+	public String writeCheckpoint(String checkpointName, String checkpoint, String version) throws IOException {
+
+		synchronized (VERSIONED_WRITES) {
+			String stored = readCheckpoint(checkpointName);
+			if (version == null ? stored != null : stored == null || !version.equals(version(stored))) {
+				throw new CheckpointConflictException(checkpointName);
+			}
+			writeCheckpoint(checkpointName, checkpoint);
+		}
+		return version(checkpoint);
+	}
+
+	private static String version(String checkpoint) {
+
+		try {
+			return Base64.getEncoder()
+					.encodeToString(MessageDigest.getInstance("SHA-256").digest(checkpoint.getBytes(UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private String objectName(Path file) {
+		return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+	}
+
+	private static boolean isCreatedBetween(Path file, Date from, Date to) {
+
+		try {
+			long modified = Files.getLastModifiedTime(file).toMillis();
+			return modified >= from.getTime() && modified <= to.getTime();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+}
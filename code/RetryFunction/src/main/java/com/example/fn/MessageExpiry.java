@@ -0,0 +1,201 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Sheds the messages that expired before they are dispatched or retried, so that the targets are
+//not called with obsolete updates, e.g. after an outage. A message expires at the expiresAt time,
+//in epoch milliseconds, stamped at ingest by PopulateDataStreamFunction and kept when the message
+//is rerouted. Expired messages are checked before any Vault lookup or target call, and put in bulk
+//to the expired_stream_ocid stream, or dropped if it is not set. ReadDataStreamFunction sheds the
+//expired messages of a batch, and those that expire while they wait to be dispatched.
+//RetryFunction sheds them from the error streams, also before a delayed message is due, but sends
+//the messages of the expired_stream_ocid stream itself to the targets regardless of expiry.
+//This class is the same in both functions.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+
+public class MessageExpiry {
+
+	public static final String NODE_NAME = "expiresAt";
+	public static final String EXPIRED_STREAM_OCID = System.getenv().get("expired_stream_ocid");
+	private static final EventLog EVENTS = EventLog.get(MessageExpiry.class);
+	// the expired messages are put in chunks, within the PutMessages request limits
+	private static final int PUT_BATCH_SIZE = 50;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final StreamTransport streamTransport;
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong diverted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong divertFailed = new AtomicLong();
+
+	public MessageExpiry(StreamTransport streamTransport) {
+		this.streamTransport = streamTransport;
+	}
+
+	/**
+	 * @param <T>
+	 * @param batch         The messages of a batch, in stream order
+	 * @param streamMessage Gets the stream message of a message of the batch
+	 * @param streamKey     Gets the stream key of a message of the batch
+	 * @param streams       Gets the Stream of a stream OCID
+	 * @return List<T> The messages that did not expire, in stream order
+	 */
+	public <T> List<T> shed(List<T> batch, Function<T, byte[]> streamMessage, Function<T, String> streamKey,
+			Function<String, Stream> streams) {
+
+		long now = System.currentTimeMillis();
+		List<T> live = new ArrayList<>(batch.size());
+		List<PutMessagesDetailsEntry> expired = new ArrayList<>();
+
+		for (T message : batch) {
+			if (isExpired(streamMessage.apply(message), now)) {
+				expired.add(entry(streamMessage.apply(message), streamKey.apply(message)));
+			} else {
+				live.add(message);
+			}
+		}
+
+		messages.addAndGet(batch.size());
+		if (expired.isEmpty()) {
+			return batch;
+		}
+		divert(expired, streams);
+		return live;
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param streams       Gets the Stream of a stream OCID
+	 * @return boolean Returns true if the message expired and was shed.
+	 */
+	public boolean shed(byte[] streamMessage, String streamKey, Function<String, Stream> streams) {
+
+		if (!isExpired(streamMessage, System.currentTimeMillis())) {
+			return false;
+		}
+		divert(Collections.singletonList(entry(streamMessage, streamKey)), streams);
+		return true;
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @return PutMessagesDetailsEntry The expired message, to divert
+	 */
+	public static PutMessagesDetailsEntry entry(byte[] streamMessage, String streamKey) {
+		return PutMessagesDetailsEntry.builder().key(streamKey.getBytes(UTF_8)).value(streamMessage).build();
+	}
+
+	/**
+	 * @param expired
+	 * @param streams Gets the Stream of a stream OCID
+	 *
+	 *                This method puts the expired messages to the expired stream,
+	 *                or drops them if there is none. They are not dispatched or
+	 *                retried in any case, as they are obsolete.
+	 */
+	public void divert(List<PutMessagesDetailsEntry> expired, Function<String, Stream> streams) {
+
+		if (expired.isEmpty()) {
+			return;
+		}
+		if (EXPIRED_STREAM_OCID == null || EXPIRED_STREAM_OCID.isEmpty()) {
+			dropped.addAndGet(expired.size());
+			EVENTS.info("messages_expired", "count", expired.size(), "action", "dropped");
+			return;
+		}
+
+		int failed = 0;
+		try {
+			Stream expiredStream = streams.apply(EXPIRED_STREAM_OCID);
+			for (int from = 0; from < expired.size(); from = from + PUT_BATCH_SIZE) {
+				List<PutMessagesResultEntry> putResults = streamTransport.putMessages(expiredStream,
+						expired.subList(from, Math.min(from + PUT_BATCH_SIZE, expired.size())));
+				for (PutMessagesResultEntry putResult : putResults) {
+					if (putResult.getError() != null) {
+						failed = failed + 1;
+					}
+				}
+			}
+		} catch (BmcException e) {
+			EVENTS.failure("expired_stream_put_failed", e, "count", expired.size());
+			failed = expired.size();
+		}
+
+		diverted.addAndGet(expired.size() - failed);
+		divertFailed.addAndGet(failed);
+		if (failed > 0) {
+			EVENTS.warning("messages_expired", "count", expired.size(), "action", "diverted", "failed", failed);
+		} else {
+			EVENTS.info("messages_expired", "count", expired.size(), "action", "diverted");
+		}
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param now
+	 * @return boolean Returns true if the message has an expiresAt time before
+	 *         now.
+	 */
+	public static boolean isExpired(byte[] streamMessage, long now) {
+
+		long expiresAt = expiresAt(streamMessage);
+		return expiresAt > 0 && expiresAt <= now;
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return long The expiresAt time of the message in epoch milliseconds, or 0 if
+	 *         it does not expire.
+	 *
+	 *         This method only reads the first field of the message, where
+	 *         PopulateDataStreamFunction stamps expiresAt. The stream messages
+	 *         keep their field order when they are rerouted, so the payload is
+	 *         never parsed.
+	 */
+	public static long expiresAt(byte[] streamMessage) {
+
+		try (JsonParser parser = JSON_FACTORY.createParser(streamMessage)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return 0;
+			}
+			if (parser.nextToken() == JsonToken.FIELD_NAME && NODE_NAME.equals(parser.getCurrentName())
+					&& parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+				return parser.getLongValue();
+			}
+		} catch (IOException e) {
+			// a message that is not JSON is handled by the dispatch or retry path
+		}
+		return 0;
+	}
+
+	/**
+	 * This method emits the no. of messages checked and of expired messages
+	 * diverted, dropped or that could not be diverted since the last call as a
+	 * message_expiry_stats event, and resets them.
+	 */
+	public void logStats() {
+
+		EVENTS.info("message_expiry_stats", "messages", messages.getAndSet(0), "diverted", diverted.getAndSet(0),
+				"dropped", dropped.getAndSet(0), "divertFailed", divertFailed.getAndSet(0));
+	}
+
+}
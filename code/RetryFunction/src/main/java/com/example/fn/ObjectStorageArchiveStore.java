@@ -0,0 +1,148 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Archive store on the Object Storage bucket the error archive is written to,
+//stream-error-bucket by default. Checkpoints are stored as objects in the same bucket. The version
+//of a checkpoint is the ETag of its object, and versioned writes are conditional PutObject calls.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.objectstorage.ObjectStorageClient;
+import com.oracle.bmc.objectstorage.model.ListObjects;
+import com.oracle.bmc.objectstorage.model.ObjectSummary;
+import com.oracle.bmc.objectstorage.requests.GetNamespaceRequest;
+import com.oracle.bmc.objectstorage.requests.GetObjectRequest;
+import com.oracle.bmc.objectstorage.requests.ListObjectsRequest;
+import com.oracle.bmc.objectstorage.requests.PutObjectRequest;
+import com.oracle.bmc.objectstorage.responses.GetObjectResponse;
+
+public class ObjectStorageArchiveStore implements ArchiveStore {
+
+	private static final String BUCKET_NAME = System.getenv().getOrDefault("archive_bucket_name",
+			"stream-error-bucket");
+
+	private final ObjectStorageClient objectStorageClient;
+	private final String namespaceName;
+
+	public ObjectStorageArchiveStore(BasicAuthenticationDetailsProvider provider) {
+
+		objectStorageClient = ObjectStorageClient.builder().build(provider);
+		namespaceName = objectStorageClient.getNamespace(GetNamespaceRequest.builder().build()).getValue();
+	}
+
+	@Override
+	public List<String> listObjects(String prefix, Date from, Date to) {
+
+		List<String> objectNames = new ArrayList<>();
+		String start = null;
+
+		// the objects are listed in name order, one page at a time
+		do {
+			ListObjects page = objectStorageClient.listObjects(ListObjectsRequest.builder()
+					.namespaceName(namespaceName).bucketName(BUCKET_NAME).prefix(prefix).start(start)
+					.fields("name,size,timeCreated").build()).getListObjects();
+
+			for (ObjectSummary object : page.getObjects()) {
+				Date created = object.getTimeCreated();
+
+				if (!object.getName().startsWith(CHECKPOINT_PREFIX) && !created.before(from) && !created.after(to)) {
+					objectNames.add(object.getName());
+				}
+			}
+			start = page.getNextStartWith();
+
+		} while (start != null);
+
+		return objectNames;
+	}
+
+	@Override
+	public InputStream openObject(String objectName) {
+
+		return objectStorageClient.getObject(GetObjectRequest.builder().namespaceName(namespaceName)
+				.bucketName(BUCKET_NAME).objectName(objectName).build()).getInputStream();
+	}
+
+	@Override
+	public String readCheckpoint(String checkpointName) throws IOException {
+
+		try (InputStream checkpoint = openObject(CHECKPOINT_PREFIX + checkpointName)) {
+			return new String(checkpoint.readAllBytes(), UTF_8);
+
+		} catch (BmcException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void writeCheckpoint(String checkpointName, String checkpoint) {
+
+		byte[] content = checkpoint.getBytes(UTF_8);
+
+		objectStorageClient.putObject(PutObjectRequest.builder().namespaceName(namespaceName).bucketName(BUCKET_NAME)
+				.objectName(CHECKPOINT_PREFIX + checkpointName).contentType("application/json")
+				.contentLength((long) content.length).putObjectBody(new ByteArrayInputStream(content)).build());
+	}
+
+	@Override
+	public VersionedCheckpoint readVersionedCheckpoint(String checkpointName) throws IOException {
+
+		try {
+			GetObjectResponse response = objectStorageClient.getObject(GetObjectRequest.builder()
+					.namespaceName(namespaceName).bucketName(BUCKET_NAME)
+					.objectName(CHECKPOINT_PREFIX + checkpointName).build());
+			try (InputStream checkpoint = response.getInputStream()) {
+				return new VersionedCheckpoint(new String(checkpoint.readAllBytes(), UTF_8), response.getETag());
+			}
+
+		} catch (BmcException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public String writeCheckpoint(String checkpointName, String checkpoint, String version)
+			throws CheckpointConflictException {
+
+		byte[] content = checkpoint.getBytes(UTF_8);
+		PutObjectRequest.Builder request = PutObjectRequest.builder().namespaceName(namespaceName)
+				.bucketName(BUCKET_NAME).objectName(CHECKPOINT_PREFIX + checkpointName)
+				.contentType("application/json").contentLength((long) content.length)
+				.putObjectBody(new ByteArrayInputStream(content));
+
+		// a new checkpoint must not exist yet, and a stored one must still have
+		// the ETag it was read with
+		if (version == null) {
+			request.ifNoneMatch("*");
+		} else {
+			request.ifMatch(version);
+		}
+
+		try {
+			return objectStorageClient.putObject(request.build()).getETag();
+		} catch (BmcException e) {
+			if (e.getStatusCode() == 412 || e.getStatusCode() == 409) {
+				throw new CheckpointConflictException(checkpointName);
+			}
+			throw e;
+		}
+	}
+
+}
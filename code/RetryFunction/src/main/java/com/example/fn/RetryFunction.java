@@ -4,23 +4,36 @@
 //This Function retries the messages in streams. This Function is exposed as a public API using an API Gateway. 
 //The exposed API can be invoked as a batch process or on an ad-hoc basis,
 //to reprocess the  messages in any  Stream.
+//In scheduler mode, the Function replays a delay stream and stops at the first message
+//that is not yet due. With "source": "archive", it replays the error archive in Object Storage
+//instead of a stream, see ArchiveReplay. In monitor mode, it reports the backlog of the data and
+//error streams, see BacklogMonitor. Large drains can be submitted as asynchronous jobs, see
+//RetryJobs. Messages that expired are shed instead of retried, see MessageExpiry.
 
 package com.example.fn;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.Builder;
 import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,34 +50,60 @@ import com.oracle.bmc.secrets.model.Base64SecretBundleContentDetails;
 import com.oracle.bmc.secrets.requests.GetSecretBundleByNameRequest;
 import com.oracle.bmc.secrets.responses.GetSecretBundleByNameResponse;
 import com.oracle.bmc.streaming.StreamAdminClient;
-import com.oracle.bmc.streaming.StreamClient;
-import com.oracle.bmc.streaming.model.CreateCursorDetails;
-import com.oracle.bmc.streaming.model.CreateCursorDetails.Type;
 import com.oracle.bmc.streaming.model.Message;
-import com.oracle.bmc.streaming.model.PutMessagesDetails;
 import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
 import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
 import com.oracle.bmc.streaming.model.Stream;
 import com.oracle.bmc.streaming.model.Stream.LifecycleState;
-import com.oracle.bmc.streaming.requests.CreateCursorRequest;
-import com.oracle.bmc.streaming.requests.GetMessagesRequest;
 import com.oracle.bmc.streaming.requests.GetStreamRequest;
 import com.oracle.bmc.streaming.requests.ListStreamsRequest;
-import com.oracle.bmc.streaming.requests.PutMessagesRequest;
-import com.oracle.bmc.streaming.responses.CreateCursorResponse;
-import com.oracle.bmc.streaming.responses.GetMessagesResponse;
 import com.oracle.bmc.streaming.responses.GetStreamResponse;
 import com.oracle.bmc.streaming.responses.ListStreamsResponse;
-import com.oracle.bmc.streaming.responses.PutMessagesResponse;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
 
 public class RetryFunction {
 	private static final Logger LOGGER = Logger.getLogger(RetryFunction.class.getName());
+	private static final EventLog EVENTS = EventLog.get(RetryFunction.class);
 	private final ResourcePrincipalAuthenticationDetailsProvider provider = ResourcePrincipalAuthenticationDetailsProvider
 			.builder().build();
+	private final StreamTransport streamTransport = StreamTransport.create(provider);
+	private final HttpClient httpClient = HttpClient.newHttpClient();
+	private final TargetResponseHandler responseHandler = new TargetResponseHandler();
+	private final PayloadCipher payloadCipher = new PayloadCipher(KeyService.create(provider));
+	private final MessageExpiry messageExpiry = new MessageExpiry(streamTransport);
+	private final ExecutorService fanOutExecutor = Executors.newFixedThreadPool(FAN_OUT_CONCURRENCY, runnable -> {
+		Thread thread = new Thread(runnable, "datasync-fan-out-worker");
+		thread.setDaemon(true);
+		return thread;
+	});
 	private static final String VAULT_OCID = System.getenv().get("vault_ocid");
 	private static final String STREAM_COMPARTMENT_OCID = System.getenv().get("stream_compartment_ocid");
 	private static final String DEFAULT_ERROR_STREAM_OCID = System.getenv().get("default_error_stream_ocid");
+	// the no. of fan-out target calls made at once, besides the first target of
+	// each message
+	private static final int FAN_OUT_CONCURRENCY = Integer
+			.parseInt(System.getenv().getOrDefault("fan_out_concurrency", "8"));
 	private static final String[] OPERATIONS = new String[] { "PUT", "POST", "DELETE" };
+	private static final String SCHEDULER_MODE = "scheduler";
+	private static final String MONITOR_MODE = "monitor";
+	private static final String JOB_MODE = "job";
+	private static final String JOB_STATUS_MODE = "jobStatus";
+	private static final String JOB_CANCEL_MODE = "jobCancel";
+	private static final String JOB_STEP_MODE = "jobStep";
+	private static final String ARCHIVE_SOURCE = "archive";
+	private ArchiveStore archiveStore;
+
+	/**
+	 * The result of retrying a message.
+	 */
+	enum Outcome {
+		PROCESSED, FAILED, PARKED, EXPIRED
+	}
 
 	/**
 	 * @param requestBody
@@ -85,12 +124,28 @@ public class RetryFunction {
 		int noOfMessagesToProcess = 0;
 		int readAfterOffset = 0;
 		String streamOCIDToRetry = "";
+		boolean scheduled = false;
+		boolean fromArchive = false;
 
 		try {
 			JsonNode jsonNode = mapper.readTree(requestBody);
 
-			String[] keys = { "streamOCIDToRetry", "readAfterOffset", "readPartition", "noOfMessagesToProcess",
-					"errormapping" };
+			String mode = jsonNode.path("mode").asText();
+
+			if (MONITOR_MODE.equals(mode)) {
+				return new BacklogMonitor(provider, streamTransport).monitor(jsonNode.path("checkpoints"),
+						streamAdminClient);
+			}
+			if (mode.startsWith(JOB_MODE)) {
+				return handleJob(mode, jsonNode, streamAdminClient, httpGatewayContext);
+			}
+
+			fromArchive = ARCHIVE_SOURCE.equals(jsonNode.path("source").asText());
+
+			String[] keys = fromArchive
+					? new String[] { "replayId", "fromTime", "toTime", "noOfMessagesToProcess", "errormapping" }
+					: new String[] { "streamOCIDToRetry", "readAfterOffset", "readPartition", "noOfMessagesToProcess",
+							"errormapping" };
 
 			for (String key : keys) {
 				if (!jsonNode.has(key)) {
@@ -106,7 +161,7 @@ public class RetryFunction {
 			streamOCIDToRetry = jsonNode.path("streamOCIDToRetry").asText();
 
 			// check if the stream exists
-			if (!streamExist(streamOCIDToRetry, streamAdminClient)) {
+			if (!fromArchive && !streamExist(streamOCIDToRetry, streamAdminClient)) {
 				LOGGER.log(Level.SEVERE,
 						"Processing Failed.  Correct the streamOCIDToRetry with correct stream OCID. {0}  doesnt exist",
 						streamOCIDToRetry);
@@ -120,6 +175,8 @@ public class RetryFunction {
 
 			readPartition = jsonNode.path("readPartition").asText();
 
+			scheduled = SCHEDULER_MODE.equals(jsonNode.path("mode").asText());
+
 			noOfMessagesToProcess = jsonNode.path("noOfMessagesToProcess").asInt();
 			if (noOfMessagesToProcess <= 0) {
 				LOGGER.log(Level.INFO, "Stopped Function execution as noOfMessagesToProcess <=0.");
@@ -137,30 +194,20 @@ public class RetryFunction {
 			// Get the error mapping nodes to get the error code and error stream ocid
 			// mappping to use
 
-			JsonNode errorMMappingNodes = jsonNode.get("errormapping");
-
-			for (int i = 0; i < errorMMappingNodes.size(); i++) {
-				JsonNode node = errorMMappingNodes.get(i);
-				String streamOCID = node.get("stream").asText();
-
-				// check if the error stream OCIDs in the payload are correct
-				if (!streamExist(streamOCID, streamAdminClient)) {
-					LOGGER.log(Level.SEVERE,
-							"Processing Failed.  Correct the errormapping section with correct stream OCID. {0}  doesnt exist",
-							streamOCID);
-
-					httpGatewayContext.setStatusCode(500);
-					return streamOCID + " doesnt exist. Correct the errormapping section with correct stream OCID";
-
-				}
-				// store in a map
-				errorStreamMapping.put(node.get("responsecode").asText(), streamOCID);
-
+			String missingStreamOCID = readErrorMapping(jsonNode.get("errormapping"), errorStreamMapping,
+					streamAdminClient);
+			if (missingStreamOCID != null) {
+				httpGatewayContext.setStatusCode(500);
+				return missingStreamOCID + " doesnt exist. Correct the errormapping section with correct stream OCID";
 			}
 
 			try {
+				if (fromArchive) {
+					return replayArchive(jsonNode, errorStreamMapping, noOfMessagesToProcess, streamAdminClient,
+							httpGatewayContext);
+				}
 				return processStreamMessages(streamOCIDToRetry, streamAdminClient, readPartition, readAfterOffset,
-						errorStreamMapping, noOfMessagesToProcess);
+						errorStreamMapping, noOfMessagesToProcess, scheduled);
 
 			} catch (BmcException e) {
 				LOGGER.severe(e.getLocalizedMessage());
@@ -172,10 +219,185 @@ public class RetryFunction {
 			LOGGER.severe(jsonex.getLocalizedMessage());
 			httpGatewayContext.setStatusCode(500);
 			return "Error occured in processing the payload " + jsonex.getLocalizedMessage();
+
+		} finally {
+			// export the spans of this call
+			Tracing.flush();
+			EventLog.flush();
 		}
 
 	}
 
+	/**
+	 * @param errorMappingNodes
+	 * @param errorStreamMapping The map to add the response code -> error stream
+	 *                           OCID mappings to
+	 * @param streamAdminClient
+	 * @return String The first error stream OCID that doesnt exist, or null
+	 */
+	private String readErrorMapping(JsonNode errorMappingNodes, Map<String, String> errorStreamMapping,
+			StreamAdminClient streamAdminClient) {
+
+		for (int i = 0; i < errorMappingNodes.size(); i++) {
+			JsonNode node = errorMappingNodes.get(i);
+			String streamOCID = node.get("stream").asText();
+
+			// check if the error stream OCIDs in the payload are correct
+			if (!streamExist(streamOCID, streamAdminClient)) {
+				LOGGER.log(Level.SEVERE,
+						"Processing Failed.  Correct the errormapping section with correct stream OCID. {0}  doesnt exist",
+						streamOCID);
+				return streamOCID;
+			}
+			// store in a map
+			errorStreamMapping.put(node.get("responsecode").asText(), streamOCID);
+		}
+		return null;
+	}
+
+	/**
+	 * @param mode
+	 * @param jsonNode
+	 * @param streamAdminClient
+	 * @param httpGatewayContext
+	 * @return String The job, as JSON
+	 * 
+	 *         This method submits a retry job, returns its status, cancels it or
+	 *         runs its next step.
+	 */
+	private String handleJob(String mode, JsonNode jsonNode, StreamAdminClient streamAdminClient,
+			HTTPGatewayContext httpGatewayContext) {
+
+		RetryJobs retryJobs = new RetryJobs(getArchiveStore(), streamTransport, provider);
+		String jobId = jsonNode.path("jobId").asText();
+		String job;
+
+		try {
+			switch (mode) {
+			case JOB_MODE:
+				for (String key : new String[] { "streamOCIDToRetry", "errormapping" }) {
+					if (!jsonNode.has(key)) {
+						httpGatewayContext.setStatusCode(500);
+						return key + " doesnt exist.";
+					}
+				}
+				String streamOCIDToRetry = jsonNode.get("streamOCIDToRetry").asText();
+				if (!streamExist(streamOCIDToRetry, streamAdminClient)) {
+					httpGatewayContext.setStatusCode(500);
+					return streamOCIDToRetry + " doesnt exist. Correct the streamOCIDToRetry  with correct stream OCID";
+				}
+				String missingStreamOCID = readErrorMapping(jsonNode.get("errormapping"), new HashMap<>(),
+						streamAdminClient);
+				if (missingStreamOCID != null) {
+					httpGatewayContext.setStatusCode(500);
+					return missingStreamOCID
+							+ " doesnt exist. Correct the errormapping section with correct stream OCID";
+				}
+				httpGatewayContext.setStatusCode(202);
+				return retryJobs.submit(jsonNode, getStream(streamOCIDToRetry, streamAdminClient));
+
+			case JOB_STATUS_MODE:
+				job = retryJobs.status(jobId);
+				break;
+
+			case JOB_CANCEL_MODE:
+				job = retryJobs.cancel(jobId);
+				break;
+
+			case JOB_STEP_MODE:
+				job = retryJobs.status(jobId);
+				if (job != null) {
+					JsonNode storedJob = new ObjectMapper().readTree(job);
+					String jobStreamOCID = storedJob.get("streamOCIDToRetry").asText();
+					Map<String, String> errorStreamMapping = new HashMap<>();
+					storedJob.get("errormapping").forEach(node -> errorStreamMapping
+							.put(node.get("responsecode").asText(), node.get("stream").asText()));
+
+					job = retryJobs.step(jobId, jsonNode.path("step").asInt(),
+							getStream(jobStreamOCID, streamAdminClient),
+							(streamMessage, streamKey) -> retryMessage(streamMessage, streamKey, jobStreamOCID,
+									errorStreamMapping, streamAdminClient));
+				}
+				break;
+
+			default:
+				httpGatewayContext.setStatusCode(400);
+				return "Unknown mode " + mode;
+			}
+
+		} catch (IllegalArgumentException e) {
+			httpGatewayContext.setStatusCode(400);
+			return e.getLocalizedMessage();
+
+		} catch (IOException e) {
+			LOGGER.severe(e.getLocalizedMessage());
+			httpGatewayContext.setStatusCode(500);
+			return "Retry job failed. " + e.getLocalizedMessage();
+		}
+
+		if (job == null) {
+			httpGatewayContext.setStatusCode(404);
+			return "Retry job " + jobId + " doesnt exist.";
+		}
+		return job;
+	}
+
+	/**
+	 * @param jsonNode
+	 * @param errorStreamMapping
+	 * @param noOfMessagesToProcess
+	 * @param streamAdminClient
+	 * @param httpGatewayContext
+	 * @return String Returns the no. of processed, failed and parked messages, and
+	 *         the no. of archive objects completed and remaining.
+	 * 
+	 *         This method replays the archive objects created between fromTime
+	 *         and toTime, continuing the replay with the same replayId.
+	 */
+	private String replayArchive(JsonNode jsonNode, Map<String, String> errorStreamMapping,
+			int noOfMessagesToProcess, StreamAdminClient streamAdminClient, HTTPGatewayContext httpGatewayContext) {
+
+		String replayId = jsonNode.path("replayId").asText();
+		Date fromTime;
+		Date toTime;
+
+		try {
+			fromTime = Date.from(Instant.parse(jsonNode.path("fromTime").asText()));
+			toTime = Date.from(Instant.parse(jsonNode.path("toTime").asText()));
+		} catch (DateTimeParseException e) {
+			LOGGER.severe(e.getLocalizedMessage());
+			httpGatewayContext.setStatusCode(500);
+			return "fromTime and toTime must be ISO-8601 times, such as 2022-10-10T00:00:00Z.";
+		}
+
+		ArchiveReplay archiveReplay = new ArchiveReplay(getArchiveStore(),
+				(streamMessage, streamKey) -> retryMessage(streamMessage, streamKey, null, errorStreamMapping,
+						streamAdminClient));
+
+		try {
+			return archiveReplay.replay(replayId, jsonNode.path("objectPrefix").asText(), fromTime, toTime,
+					noOfMessagesToProcess);
+
+		} catch (IOException e) {
+			LOGGER.severe(e.getLocalizedMessage());
+			httpGatewayContext.setStatusCode(500);
+			return "Archive replay failed. " + e.getLocalizedMessage();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			httpGatewayContext.setStatusCode(500);
+			return "Archive replay interrupted.";
+		}
+	}
+
+	private synchronized ArchiveStore getArchiveStore() {
+
+		if (archiveStore == null) {
+			archiveStore = ArchiveStore.create(provider);
+		}
+		return archiveStore;
+	}
+
 	/**
 	 * @param streamOCID
 	 * @param streamAdminClient
@@ -201,6 +423,8 @@ public class RetryFunction {
 	 * @param readAfterOffset
 	 * @param errorStreamMapping
 	 * @param noOfMessagesToProcess
+	 * @param scheduled             true to stop at the first message that is not
+	 *                              yet due
 	 * @return String Returns the no. of processed and failed messages.
 	 * 
 	 *         This method gets the Stream from OCID, creates a Stream cursor and
@@ -211,23 +435,18 @@ public class RetryFunction {
 	 */
 	private String processStreamMessages(String streamOCIDToRetry, StreamAdminClient streamAdminClient,
 			String readPartition, long readAfterOffset, Map<String, String> errorStreamMapping,
-			int noOfMessagesToProcess) {
+			int noOfMessagesToProcess, boolean scheduled) {
 
 		// Get the Stream to retry
 		Stream retryStream = getStream(streamOCIDToRetry, streamAdminClient);
 
-		// Get the streamClient
-
-		StreamClient retryStreamClient = StreamClient.builder().stream(retryStream).build(provider);
+		// Read and process messages in stream, starting after readAfterOffset
 
-		// Get the cursor
+		List<Message> responseItems = streamTransport.getMessages(retryStream, readPartition, readAfterOffset,
+				noOfMessagesToProcess + 1);
 
-		String cursor = getStreamCursor(retryStreamClient, readPartition, streamOCIDToRetry, readAfterOffset);
-
-		// Read and process messages in stream using cursor
-
-		return readMessagesFromStream(cursor, retryStreamClient, streamOCIDToRetry, errorStreamMapping,
-				noOfMessagesToProcess, streamAdminClient);
+		return readMessagesFromStream(responseItems, streamOCIDToRetry, readAfterOffset, errorStreamMapping,
+				noOfMessagesToProcess, scheduled, streamAdminClient);
 	}
 
 	/**
@@ -246,58 +465,25 @@ public class RetryFunction {
 	}
 
 	/**
-	 * @param streamClient
-	 * @param readPartition
+	 * @param responseItems
 	 * @param streamOCIDToRetry
 	 * @param readAfterOffset
-	 * @return String Returns a Stream cursor
-	 * 
-	 *         This method creates a Stream message cursor using an
-	 *         AFTER_OFFSET/TRIM_HORIZON cursor type
-	 */
-	private String getStreamCursor(StreamClient streamClient, String readPartition, String streamOCIDToRetry,
-			long readAfterOffset) {
-		CreateCursorDetails cursorDetails = null;
-
-		if (readAfterOffset == -1) {
-			cursorDetails = CreateCursorDetails.builder().partition(readPartition).type(Type.TrimHorizon).build();
-
-		} else {
-
-			cursorDetails = CreateCursorDetails.builder().partition(readPartition).type(Type.AfterOffset)
-					.offset(readAfterOffset).build();
-		}
-
-		CreateCursorRequest createCursorRequest = CreateCursorRequest.builder().streamId(streamOCIDToRetry)
-				.createCursorDetails(cursorDetails).build();
-
-		CreateCursorResponse cursorResponse = streamClient.createCursor(createCursorRequest);
-
-		return cursorResponse.getCursor().getValue();
-	}
-
-	/**
-	 * @param cursor
-	 * @param streamClient
-	 * @param streamOCIDToRetry
 	 * @param errorStreamMapping
-	 * @param readAfterOffset
 	 * @param noOfMessagesToProcess
+	 * @param scheduled
 	 * @param StreamAdminClient
 	 * @return String Returns the no. of processed and failed messages.
 	 * 
-	 *         This method is used to read the messages from stream
+	 *         This method is used to process the messages read from stream. In
+	 *         scheduler mode it stops at the first message that is not yet due,
+	 *         and returns the time it is due at as nextDueAt.
 	 */
-	private String readMessagesFromStream(String cursor, StreamClient streamClient, String streamOCIDToRetry,
-			Map<String, String> errorStreamMapping, int noOfMessagesToProcess, StreamAdminClient streamAdminClient) {
+	private String readMessagesFromStream(List<Message> responseItems, String streamOCIDToRetry,
+			long readAfterOffset, Map<String, String> errorStreamMapping, int noOfMessagesToProcess,
+			boolean scheduled, StreamAdminClient streamAdminClient) {
 
-		long lastReadOffset = 0;
+		long lastReadOffset = readAfterOffset;
 		String endOfStreamMessage = "";
-		GetMessagesRequest getRequest = GetMessagesRequest.builder().streamId(streamOCIDToRetry).cursor(cursor)
-				.limit(noOfMessagesToProcess + 1).build();
-
-		GetMessagesResponse getResponse = streamClient.getMessages(getRequest);
-		List<Message> responseItems = getResponse.getItems();
 
 		// if end of stream is reached, return
 
@@ -315,92 +501,268 @@ public class RetryFunction {
 
 		int successMessages = 0;
 		int failedMessages = 0;
+		int parkedMessages = 0;
+		long nextDueAt = 0;
 		String streamKey = "";
-		String streamMessage = "";
+		ObjectMapper mapper = new ObjectMapper();
+		// diverted together once the messages are read
+		List<PutMessagesDetailsEntry> expiredMessages = new ArrayList<>();
+		int expiredCount = 0;
 
 		for (Message message : responseItems) {
 
-			try {
-				streamMessage = new String(message.getValue(), UTF_8);
-				if (message.getKey() != null) {
+			byte[] streamMessage = message.getValue();
 
-					streamKey = new String(message.getKey(), UTF_8);
-				} else {
-					streamKey = "";
-				}
+			if (message.getKey() != null) {
 
-				executeMessage(streamMessage, streamKey, errorStreamMapping, streamAdminClient);
+				streamKey = new String(message.getKey(), UTF_8);
+			} else {
+				streamKey = "";
+			}
 
-				successMessages = successMessages + 1;
+			// an expired message is shed even if it is not due yet
+			if (!Objects.equals(streamOCIDToRetry, MessageExpiry.EXPIRED_STREAM_OCID)
+					&& MessageExpiry.isExpired(streamMessage, System.currentTimeMillis())) {
+				expiredMessages.add(MessageExpiry.entry(streamMessage, streamKey));
+				lastReadOffset = message.getOffset();
+				continue;
+			}
 
-			} catch (Exception ex) {
-				LOGGER.log(Level.SEVERE, "Retry Failed due to Exception in processing message. {0}",
-						ex.getLocalizedMessage());
-				ex.printStackTrace();
+			if (scheduled) {
+				nextDueAt = RetryMetadata.notBefore(readTreeOrNull(mapper, streamMessage));
+				if (nextDueAt > System.currentTimeMillis()) {
+					// the messages after this one are due later, stop here
+					EVENTS.info("message_not_due", "offset", message.getOffset(), "notBefore", nextDueAt);
+					endOfStreamMessage = "";
+					break;
+				}
+				nextDueAt = 0;
+			}
 
-				populateErrorStream(streamMessage, streamKey, errorStreamMapping.get(String.valueOf("unexpectedError")),
-						streamAdminClient);
+			Outcome outcome = retryMessage(streamMessage, streamKey, streamOCIDToRetry, errorStreamMapping,
+					streamAdminClient);
 
+			if (outcome == Outcome.PROCESSED) {
+				successMessages = successMessages + 1;
+			} else if (outcome == Outcome.PARKED) {
+				parkedMessages = parkedMessages + 1;
+			} else if (outcome == Outcome.EXPIRED) {
+				// expired since it was read, and already shed
+				expiredCount = expiredCount + 1;
+			} else {
 				failedMessages = failedMessages + 1;
-
 			}
+
 			// Return the offset upto which messages were read
 			lastReadOffset = message.getOffset();
 
-			LOGGER.log(Level.INFO, "Read message at offset {0}", lastReadOffset);
+			EVENTS.sampled("message_read", "offset", lastReadOffset, "stream", streamOCIDToRetry);
 
 		}
 
+		messageExpiry.divert(expiredMessages, streamOCID -> getStream(streamOCID, streamAdminClient));
+
 		return new StringBuilder("{\"lastReadOffset\":").append(lastReadOffset).append(" ,\"processedmessages\":")
 				.append(successMessages).append(",\"failedMessages\":").append(failedMessages)
-				.append(endOfStreamMessage).append("}").toString();
+				.append(",\"parkedMessages\":").append(parkedMessages)
+				.append(",\"expiredMessages\":").append(expiredCount + expiredMessages.size())
+				.append(nextDueAt > 0 ? ",\"nextDueAt\":" + nextDueAt : "").append(endOfStreamMessage).append("}")
+				.toString();
 
 	}
 
 	/**
 	 * @param streamMessage
 	 * @param streamKey
+	 * @param streamOCIDToRetry  The stream the message was read from, or null for
+	 *                           the archive
+	 * @param errorStreamMapping
+	 * @param StreamAdminClient
+	 * @return Outcome
+	 * 
+	 *         This method retries a single message. Poison messages are parked
+	 *         without being dispatched again, and expired messages are shed.
+	 */
+	private Outcome retryMessage(byte[] streamMessage, String streamKey, String streamOCIDToRetry,
+			Map<String, String> errorStreamMapping, StreamAdminClient streamAdminClient) {
+
+		// continue the trace started at ingest
+		Span retrySpan = Tracing.startMessageSpan("retry", streamMessage);
+		Scope retryScope = retrySpan.makeCurrent();
+
+		try {
+			// shed obsolete messages before any Vault lookup or target call, unless the
+			// expired stream itself is retried
+			if (!Objects.equals(streamOCIDToRetry, MessageExpiry.EXPIRED_STREAM_OCID)
+					&& MessageExpiry.isExpired(streamMessage, System.currentTimeMillis())) {
+				retrySpan.setAttribute("datasync.expired", true);
+				messageExpiry.divert(Collections.singletonList(MessageExpiry.entry(streamMessage, streamKey)),
+						streamOCID -> getStream(streamOCID, streamAdminClient));
+				return Outcome.EXPIRED;
+			}
+
+			// park poison messages without dispatching them again, unless the poison
+			// message stream itself is retried
+			if (!Objects.equals(streamOCIDToRetry, RetryMetadata.POISON_MESSAGE_STREAM_OCID)
+					&& RetryMetadata.isPoison(streamMessage)) {
+				EVENTS.warning("message_parked", "key", streamKey, "poison", true);
+				populateErrorStream(streamMessage, streamKey, RetryMetadata.POISON_MESSAGE_STREAM_OCID,
+						streamAdminClient);
+				return Outcome.PARKED;
+			}
+
+			executeMessage(streamMessage, streamKey, streamOCIDToRetry, errorStreamMapping, streamAdminClient);
+			return Outcome.PROCESSED;
+
+		} catch (Exception ex) {
+			EVENTS.failure("retry_failed", ex, "key", streamKey);
+			retrySpan.recordException(ex);
+			retrySpan.setStatus(StatusCode.ERROR);
+
+			rerouteFailedMessage(streamMessage, streamKey, streamOCIDToRetry,
+					errorStreamMapping.get(String.valueOf("unexpectedError")), 0, null, streamAdminClient);
+
+			return Outcome.FAILED;
+
+		} finally {
+			retryScope.close();
+			retrySpan.end();
+		}
+	}
+
+	/**
+	 * @param mapper
+	 * @param streamMessage
+	 * @return JsonNode The parsed message, or null if it is not JSON
+	 */
+	private JsonNode readTreeOrNull(ObjectMapper mapper, byte[] streamMessage) {
+
+		try {
+			return mapper.readTree(streamMessage);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param streamOCIDToRetry
 	 * @param errorStreamMapping
 	 * @param StreamAdminClient
 	 * @throws InterruptedException
 	 * @throws IOException
 	 * 
 	 *                              This method parses target api payload and
-	 *                              processes it.
+	 *                              calls its target, or all its targets at once.
 	 * 
 	 */
-	private void executeMessage(String streamMessage, String streamKey, Map<String, String> errorStreamMapping,
-			StreamAdminClient streamAdminClient) throws IOException, InterruptedException {
-
-		HttpClient httpClient = HttpClient.newHttpClient();
-		String targetRestApiPayload = "";
-		String vaultSecretName = "";
-		String targetRestApiOperation = "";
-		String targetRestApi = "";
+	private void executeMessage(byte[] streamMessage, String streamKey, String streamOCIDToRetry,
+			Map<String, String> errorStreamMapping, StreamAdminClient streamAdminClient)
+			throws IOException, InterruptedException {
+
+		// parse the stream message, the payload is sent from the message bytes
+		TargetMessage targetMessage = TargetMessage.parse(streamMessage, streamKey, payloadCipher);
+
+		if (!targetMessage.isFanOut()) {
+			callTarget(streamMessage, streamKey, targetMessage, streamOCIDToRetry, errorStreamMapping,
+					streamAdminClient);
+			return;
+		}
+
+		List<TargetMessage> targets = targetMessage.getTargets();
+		if (targets.isEmpty()) {
+			EVENTS.severe("message_invalid", "key", streamKey, "reason", "targets node is empty.");
+			rerouteFailedMessage(streamMessage, streamKey, streamOCIDToRetry, DEFAULT_ERROR_STREAM_OCID, 0, null,
+					streamAdminClient);
+			return;
+		}
+
+		// the target calls continue the retry span
+		Context context = Context.current();
+		List<Future<?>> calls = new ArrayList<>(targets.size() - 1);
+		for (TargetMessage target : targets.subList(1, targets.size())) {
+			calls.add(fanOutExecutor.submit(context.wrap(() -> {
+				callFanOutTarget(streamMessage, streamKey, target, streamOCIDToRetry, errorStreamMapping,
+						streamAdminClient);
+				return null;
+			})));
+		}
+
+		callFanOutTarget(streamMessage, streamKey, targets.get(0), streamOCIDToRetry, errorStreamMapping,
+				streamAdminClient);
+		for (Future<?> call : calls) {
+			try {
+				call.get();
+			} catch (ExecutionException e) {
+				EVENTS.failure("retry_failed", e.getCause(), "key", streamKey);
+			}
+		}
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param target
+	 * @param streamOCIDToRetry
+	 * @param errorStreamMapping
+	 * @param StreamAdminClient
+	 * @throws InterruptedException
+	 *
+	 *                              This method calls a target of a fan-out
+	 *                              message. If the call fails with an exception,
+	 *                              only this target is sent to the unexpectedError
+	 *                              stream.
+	 */
+	private void callFanOutTarget(byte[] streamMessage, String streamKey, TargetMessage target,
+			String streamOCIDToRetry, Map<String, String> errorStreamMapping, StreamAdminClient streamAdminClient)
+			throws InterruptedException {
+
+		try {
+			callTarget(streamMessage, streamKey, target, streamOCIDToRetry, errorStreamMapping, streamAdminClient);
+
+		} catch (IOException | RuntimeException ex) {
+			EVENTS.failure("retry_failed", ex, "key", streamKey, "target", target.getTargetRestApi());
+			Span.current().recordException(ex);
+
+			rerouteFailedMessage(target.toStreamMessage(streamMessage), streamKey, streamOCIDToRetry,
+					errorStreamMapping.get(String.valueOf("unexpectedError")), 0, null, streamAdminClient);
+		}
+	}
+
+	/**
+	 * @param streamMessage      The stream message the target was read from
+	 * @param streamKey
+	 * @param targetMessage
+	 * @param streamOCIDToRetry
+	 * @param errorStreamMapping
+	 * @param StreamAdminClient
+	 * @throws InterruptedException
+	 * @throws IOException
+	 * 
+	 *                              This method calls the target and sends it to
+	 *                              an error stream if the call fails.
+	 */
+	private void callTarget(byte[] streamMessage, String streamKey, TargetMessage targetMessage,
+			String streamOCIDToRetry, Map<String, String> errorStreamMapping, StreamAdminClient streamAdminClient)
+			throws IOException, InterruptedException {
+
 		StringBuilder failureMessage = new StringBuilder("");
 		boolean targetApiCallFailed = false;
 
 		HttpRequest request = null;
 		int responseStatusCode;
-		ObjectMapper objectMapper = new ObjectMapper();
-
-		JsonNode jsonNode = objectMapper.readTree(streamMessage);
 
-		// parse the stream message
-		if (jsonNode.has("vaultSecretName")) {
-
-			vaultSecretName = jsonNode.get("vaultSecretName").asText();
-		}
+		String targetRestApi = targetMessage.getTargetRestApi();
+		String targetRestApiOperation = targetMessage.getTargetRestApiOperation();
+		String vaultSecretName = targetMessage.getVaultSecretName();
 
-		if (jsonNode.get("targetRestApi") != null) {
-			targetRestApi = jsonNode.get("targetRestApi").asText();
-		} else {
+		if (targetRestApi == null) {
 			targetApiCallFailed = true;
 			failureMessage = new StringBuilder("targetRestApi node not found in payload. ");
 		}
-		if (jsonNode.has("targetRestApiOperation")) {
+		if (targetRestApiOperation != null) {
 
-			targetRestApiOperation = jsonNode.get("targetRestApiOperation").asText();
 			if (Arrays.stream(OPERATIONS).noneMatch(targetRestApiOperation::equals)) {
 				targetApiCallFailed = true;
 				failureMessage.append("targetRestApiOperation node doesnt contain PUT,POST or DELETE.");
@@ -411,60 +773,65 @@ public class RetryFunction {
 			failureMessage.append("  targetRestApiOperation node is not found in payload.");
 		}
 
-		if (jsonNode.get("targetRestApiPayload") != null) {
-			targetRestApiPayload = jsonNode.get("targetRestApiPayload").toString();
-		}
 		if (targetApiCallFailed) {
-			LOGGER.log(Level.SEVERE, failureMessage.toString());
-			populateErrorStream(streamMessage, streamKey, DEFAULT_ERROR_STREAM_OCID, streamAdminClient);
+			EVENTS.severe("message_invalid", "key", streamKey, "reason", failureMessage.toString().trim());
+			rerouteFailedMessage(targetMessage.toStreamMessage(streamMessage), streamKey, streamOCIDToRetry,
+					DEFAULT_ERROR_STREAM_OCID, 0, null, streamAdminClient);
 			return;
 
 		}
-		// Get the targetRestApiHeaders section of the json payload
-		JsonNode headersNode = jsonNode.get("targetRestApiHeaders");
-		Map<String, String> httpHeaders = new HashMap<>();
-
-		for (int i = 0; i < headersNode.size(); i++) {
-			JsonNode headerNode = headersNode.get(i);
-			httpHeaders.put(headerNode.get("key").asText(), headerNode.get("value").asText());
-
-		}
+		Map<String, String> httpHeaders = targetMessage.getHttpHeaders();
 
-		switch (targetRestApiOperation) {
+		// the target call is traced as a client span, which the target receives in
+		// the traceparent header
+		HttpResponse<String> response;
+		Span targetSpan = Tracing.startSpan("target call", SpanKind.CLIENT);
+		Scope targetScope = targetSpan.makeCurrent();
+		try {
+			switch (targetRestApiOperation) {
 
-		case "PUT": {
-			Builder builder = HttpRequest.newBuilder().PUT(HttpRequest.BodyPublishers.ofString(targetRestApiPayload))
-					.uri(URI.create(targetRestApi));
+			case "PUT": {
+				Builder builder = HttpRequest.newBuilder().PUT(targetMessage.bodyPublisher())
+						.uri(URI.create(targetRestApi));
 
-			request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
-			break;
+				request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
+				break;
 
-		}
+			}
 
-		case "POST": {
+			case "POST": {
 
-			Builder builder = HttpRequest.newBuilder().POST(HttpRequest.BodyPublishers.ofString(targetRestApiPayload))
-					.uri(URI.create(targetRestApi));
+				Builder builder = HttpRequest.newBuilder().POST(targetMessage.bodyPublisher())
+						.uri(URI.create(targetRestApi));
 
-			request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
-			break;
-		}
+				request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
+				break;
+			}
 
-		case "DELETE": {
-			Builder builder = HttpRequest.newBuilder().DELETE().uri(URI.create(targetRestApi));
+			case "DELETE": {
+				Builder builder = HttpRequest.newBuilder().DELETE().uri(URI.create(targetRestApi));
 
-			request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
-			break;
-		}
+				request = constructHttpRequest(builder, httpHeaders, vaultSecretName);
+				break;
+			}
 
-		default:
-			LOGGER.log(Level.SEVERE, "Target API not processed.");
+			default:
+				EVENTS.severe("no_action", "key", streamKey, "operation", targetRestApiOperation);
+			}
+			// the response body is always consumed, so that the connection is released
+			response = httpClient.send(request, responseHandler);
+
+			responseStatusCode = response.statusCode();
+			targetSpan.setAttribute("http.method", targetRestApiOperation);
+			targetSpan.setAttribute("http.url", targetRestApi);
+			targetSpan.setAttribute("http.status_code", responseStatusCode);
+			if (responseStatusCode >= 400) {
+				targetSpan.setStatus(StatusCode.ERROR);
+			}
+		} finally {
+			targetScope.close();
+			targetSpan.end();
 		}
-		HttpResponse<InputStream> response = null;
-
-		response = httpClient.send(request, BodyHandlers.ofInputStream());
-
-		responseStatusCode = response.statusCode();
 
 		if ((Family.familyOf(responseStatusCode) == Family.SERVER_ERROR)
 				|| (Family.familyOf(responseStatusCode) == Family.CLIENT_ERROR)) {
@@ -472,18 +839,57 @@ public class RetryFunction {
 			if (errorStreamMapping.containsKey(String.valueOf(responseStatusCode))) {
 				// move the message to an error stream if a stream corresponding to response
 				// status is defined
-				populateErrorStream(streamMessage, streamKey,
-						errorStreamMapping.get(String.valueOf(responseStatusCode)), streamAdminClient);
+				rerouteFailedMessage(targetMessage.toStreamMessage(streamMessage), streamKey, streamOCIDToRetry,
+						errorStreamMapping.get(String.valueOf(responseStatusCode)), responseStatusCode,
+						response.body(), streamAdminClient);
 
 			} else {
 				// if there is no error stream defined for the REST response code, use the
 				// default
-				populateErrorStream(streamMessage, streamKey, DEFAULT_ERROR_STREAM_OCID, streamAdminClient);
+				rerouteFailedMessage(targetMessage.toStreamMessage(streamMessage), streamKey, streamOCIDToRetry,
+						DEFAULT_ERROR_STREAM_OCID, responseStatusCode, response.body(), streamAdminClient);
 			}
 		}
 
 	}
 
+	/**
+	 * @param streamMessage
+	 * @param streamKey
+	 * @param streamOCIDToRetry
+	 * @param errorStreamOCID
+	 * @param statusCode
+	 * @param errorBody
+	 * @param StreamAdminClient
+	 * 
+	 *                          This method records the failure in the retry
+	 *                          metadata of the message and sends it to the error
+	 *                          stream, to a delay stream if the failure is
+	 *                          recoverable, or parks it in the poison message
+	 *                          stream if it exceeded the retry policy
+	 */
+	private void rerouteFailedMessage(byte[] streamMessage, String streamKey, String streamOCIDToRetry,
+			String errorStreamOCID, int statusCode, String errorBody, StreamAdminClient streamAdminClient) {
+
+		Span rerouteSpan = Tracing.startSpan("reroute", SpanKind.PRODUCER);
+
+		try {
+			RetryMetadata.Reroute reroute = RetryMetadata.reroute(streamMessage, statusCode, errorBody,
+					streamOCIDToRetry, errorStreamOCID);
+
+			if (reroute.isParked()) {
+				EVENTS.warning("message_parked", "key", streamKey, "status", statusCode);
+			}
+			rerouteSpan.setAttribute("datasync.error_stream", reroute.getStreamOCID());
+			rerouteSpan.setAttribute("datasync.parked", reroute.isParked());
+
+			populateErrorStream(reroute.getStreamMessage(), streamKey, reroute.getStreamOCID(), streamAdminClient);
+
+		} finally {
+			rerouteSpan.end();
+		}
+	}
+
 	/**
 	 * @param builder
 	 * @param httpHeaders
@@ -505,6 +911,12 @@ public class RetryFunction {
 
 		httpHeaders.forEach((k, v) -> builder.header(k, v));
 
+		// continue the trace in the target application
+		String traceparent = Tracing.traceparent();
+		if (traceparent != null) {
+			builder.header(Tracing.TRACEPARENT, traceparent);
+		}
+
 		return builder.build();
 
 	}
@@ -517,22 +929,28 @@ public class RetryFunction {
 	 *         secretName
 	 */
 	private String getSecretFromVault(String vaultSecretName) {
+		Span vaultSpan = Tracing.startSpan("vault lookup", SpanKind.INTERNAL);
 		SecretsClient secretsClient = new SecretsClient(provider);
 
-		GetSecretBundleByNameRequest getSecretBundleByNameRequest = GetSecretBundleByNameRequest.builder()
+		try {
+			GetSecretBundleByNameRequest getSecretBundleByNameRequest = GetSecretBundleByNameRequest.builder()
+
+					.secretName(vaultSecretName).vaultId(VAULT_OCID).build();
 
-				.secretName(vaultSecretName).vaultId(VAULT_OCID).build();
+			// get the secret
+			GetSecretBundleByNameResponse getSecretBundleResponse = secretsClient
+					.getSecretBundleByName(getSecretBundleByNameRequest);
 
-		// get the secret
-		GetSecretBundleByNameResponse getSecretBundleResponse = secretsClient
-				.getSecretBundleByName(getSecretBundleByNameRequest);
+			// get the bundle content details
+			Base64SecretBundleContentDetails base64SecretBundleContentDetails = (Base64SecretBundleContentDetails) getSecretBundleResponse
+					.getSecretBundle().getSecretBundleContent();
 
-		// get the bundle content details
-		Base64SecretBundleContentDetails base64SecretBundleContentDetails = (Base64SecretBundleContentDetails) getSecretBundleResponse
-				.getSecretBundle().getSecretBundleContent();
-		secretsClient.close();
+			return base64SecretBundleContentDetails.getContent();
 
-		return base64SecretBundleContentDetails.getContent();
+		} finally {
+			secretsClient.close();
+			vaultSpan.end();
+		}
 
 	}
 
@@ -546,32 +964,28 @@ public class RetryFunction {
 	 *                          with the failed message
 	 *
 	 */
-	private void populateErrorStream(String streamMessage, String streamKey, String errorStreamOCID,
+	private void populateErrorStream(byte[] streamMessage, String streamKey, String errorStreamOCID,
 			StreamAdminClient streamAdminClient) {
 
 		// Construct the stream message
 
-		PutMessagesDetails messagesDetails = PutMessagesDetails.builder().messages(Arrays.asList(
-				PutMessagesDetailsEntry.builder().key(streamKey.getBytes()).value(streamMessage.getBytes()).build()))
-				.build();
+		List<PutMessagesDetailsEntry> messages = Arrays.asList(
+				PutMessagesDetailsEntry.builder().key(streamKey.getBytes(UTF_8)).value(streamMessage).build());
 
-		PutMessagesRequest putRequest = PutMessagesRequest.builder().streamId(errorStreamOCID)
-				.putMessagesDetails(messagesDetails).build();
 		// Read the response
 
-		PutMessagesResponse putResponse = StreamClient.builder().stream(getStream(errorStreamOCID, streamAdminClient))
-				.build(provider).putMessages(putRequest);
-		for (PutMessagesResultEntry entry : putResponse.getPutMessagesResult().getEntries()) {
+		List<PutMessagesResultEntry> putResults = streamTransport
+				.putMessages(getStream(errorStreamOCID, streamAdminClient), messages);
+		for (PutMessagesResultEntry entry : putResults) {
 			if (entry.getError() != null) {
 
-				LOGGER.log(Level.SEVERE, String.format("Put message error  %s, in stream with OCID %s.",
-						entry.getErrorMessage(), errorStreamOCID));
+				EVENTS.severe("error_stream_put_failed", "key", streamKey, "stream", errorStreamOCID, "error",
+						entry.getErrorMessage());
 
 			} else {
 
-				LOGGER.log(Level.INFO,
-						String.format("Message pushed to offset %s, in partition  %s in stream with OCID %s",
-								entry.getOffset(), entry.getPartition(), errorStreamOCID));
+				EVENTS.sampled("error_stream_put", "offset", entry.getOffset(), "partition", entry.getPartition(),
+						"stream", errorStreamOCID);
 
 			}
 
@@ -0,0 +1,441 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Asynchronous retry jobs, for drains too large for one call behind API Gateway.
+//A job is submitted with the stream and partitions to retry and returns a jobId right away. It is
+//then run in steps, each a separate call of RetryFunction of up to retry_job_slice_seconds. At
+//the end of a step, the next step is requested by publishing it to the retry_job_topic_ocid
+//Notifications topic, which has a subscription to RetryFunction. Without a topic, each step is
+//run by posting {"mode": "jobStep", "jobId": ..., "step": ...} to the API.
+//The job state, with the progress counters and the last read offset of each partition, is stored
+//next to the archive replay checkpoints and returned by {"mode": "jobStatus", "jobId": ...}.
+//Notifications delivers a step at least once. A step only runs if its no. is after the last step
+//started, or if the last step stopped updating the job for two slices, as after a timeout.
+//The job is only stored if it did not change since it was read, see ArchiveStore. A step whose
+//claim loses to another call does not run, and a cancel made while a step runs is kept, with the
+//progress of the step. A step that cannot store its claim counts as a failed step.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.oracle.bmc.auth.BasicAuthenticationDetailsProvider;
+import com.oracle.bmc.model.BmcException;
+import com.oracle.bmc.ons.NotificationDataPlaneClient;
+import com.oracle.bmc.ons.model.MessageDetails;
+import com.oracle.bmc.ons.requests.PublishMessageRequest;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.Stream;
+
+public class RetryJobs {
+
+	public static final String RUNNING = "RUNNING";
+	public static final String COMPLETED = "COMPLETED";
+	public static final String CANCELLED = "CANCELLED";
+	public static final String FAILED = "FAILED";
+	private static final Logger LOGGER = Logger.getLogger(RetryJobs.class.getName());
+	private static final String JOB_TOPIC_OCID = System.getenv().get("retry_job_topic_ocid");
+	private static final long SLICE_MS = Long
+			.parseLong(System.getenv().getOrDefault("retry_job_slice_seconds", "240")) * 1000;
+	private static final int BATCH_SIZE = Integer
+			.parseInt(System.getenv().getOrDefault("retry_job_batch_size", "100"));
+	// the no. of steps in a row that may fail before the job is failed
+	private static final int MAX_STEP_ERRORS = 5;
+	// the no. of times a write that lost to a cancel is merged with it and tried again
+	private static final int MAX_WRITE_ATTEMPTS = 3;
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private final ArchiveStore jobStore;
+	private final StreamTransport streamTransport;
+	private final BasicAuthenticationDetailsProvider provider;
+
+	public RetryJobs(ArchiveStore jobStore, StreamTransport streamTransport,
+			BasicAuthenticationDetailsProvider provider) {
+		this.jobStore = jobStore;
+		this.streamTransport = streamTransport;
+		this.provider = provider;
+	}
+
+	/**
+	 * @param request The validated job request, with streamOCIDToRetry and
+	 *                errormapping, and optionally partitions, messagesPerSecond
+	 *                and noOfMessagesToProcess
+	 * @param stream  The stream to retry
+	 * @return String The new job, as JSON
+	 * @throws IOException
+	 *
+	 *                     This method stores a new job and requests its first
+	 *                     step.
+	 */
+	public String submit(JsonNode request, Stream stream) throws IOException {
+
+		long now = System.currentTimeMillis();
+		ObjectNode job = OBJECT_MAPPER.createObjectNode();
+
+		job.put("jobId", UUID.randomUUID().toString()).put("status", RUNNING)
+				.put("streamOCIDToRetry", stream.getId())
+				.put("messagesPerSecond", request.path("messagesPerSecond").asDouble(0))
+				.put("noOfMessagesToProcess", request.path("noOfMessagesToProcess").asLong(0))
+				.put("processedMessages", 0).put("failedMessages", 0).put("parkedMessages", 0)
+				.put("expiredMessages", 0).put("step", 0)
+				.put("stepErrors", 0).put("createdAt", now).put("updatedAt", now);
+		job.set("errormapping", request.get("errormapping"));
+
+		// partition -> readAfterOffset, all partitions from the oldest message by
+		// default
+		ObjectNode partitionsNode = job.putObject("partitions");
+		if (request.path("partitions").isObject()) {
+			request.get("partitions").fields().forEachRemaining(partition -> partitionsNode
+					.putObject(partition.getKey()).put("lastReadOffset", partition.getValue().asLong(-1)));
+		} else {
+			for (int partition = 0; partition < stream.getPartitions(); partition++) {
+				partitionsNode.putObject(String.valueOf(partition)).put("lastReadOffset", -1);
+			}
+		}
+
+		new StoredJob(job, null).write();
+		requestStep(job.get("jobId").asText(), 1);
+
+		return job.toString();
+	}
+
+	/**
+	 * @param jobId
+	 * @return String The job, or null if there is no such job
+	 * @throws IOException
+	 */
+	public String status(String jobId) throws IOException {
+
+		StoredJob stored = readJob(jobId);
+		return stored == null ? null : stored.job.toString();
+	}
+
+	/**
+	 * @param jobId
+	 * @return String The job, or null if there is no such job
+	 * @throws IOException
+	 *
+	 *                     This method cancels a running job. The step that is
+	 *                     running finishes its current batch.
+	 */
+	public String cancel(String jobId) throws IOException {
+
+		for (int attempt = 1;; attempt++) {
+			StoredJob stored = readJob(jobId);
+			if (stored == null || !RUNNING.equals(stored.job.path("status").asText())) {
+				return stored == null ? null : stored.job.toString();
+			}
+			stored.job.put("status", CANCELLED).put("updatedAt", System.currentTimeMillis());
+			try {
+				stored.write();
+				return stored.job.toString();
+			} catch (ArchiveStore.CheckpointConflictException e) {
+				// a step stored its progress in the meantime
+				if (attempt == MAX_WRITE_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param jobId
+	 * @param step
+	 * @param stream         The stream to retry
+	 * @param messageHandler The retry path each message is handed to, with the
+	 *                       message and its key
+	 * @return String The job after the step, or null if there is no such job
+	 * @throws IOException
+	 *
+	 *                     This method retries the messages of the job's
+	 *                     partitions in turn, a batch at a time, at up to
+	 *                     messagesPerSecond, until the slice time is used up or
+	 *                     every partition reached its end. Unless the job is
+	 *                     complete, it then requests the next step.
+	 */
+	public String step(String jobId, int step, Stream stream,
+			BiFunction<byte[], String, RetryFunction.Outcome> messageHandler) throws IOException {
+
+		StoredJob stored = readJob(jobId);
+		if (stored == null) {
+			return null;
+		}
+
+		ObjectNode job = stored.job;
+		long started = System.currentTimeMillis();
+		int lastStep = job.path("step").asInt();
+		boolean stale = started - job.path("updatedAt").asLong() > 2 * SLICE_MS;
+
+		if (!RUNNING.equals(job.path("status").asText()) || step < lastStep || (step == lastStep && !stale)) {
+			LOGGER.log(Level.INFO, "Step {0} of job {1} skipped, the job is at step {2} and {3}.",
+					new Object[] { step, jobId, lastStep, job.path("status").asText() });
+			return job.toString();
+		}
+
+		boolean owned = true;
+		try {
+			// claim the step, unless another call changed the job since it was read
+			job.put("step", step).put("updatedAt", started);
+			stored.write();
+
+			owned = runStep(stored, stream, messageHandler, started);
+			job.put("stepErrors", 0);
+
+		} catch (ArchiveStore.CheckpointConflictException e) {
+			owned = false;
+
+		} catch (IOException | BmcException | IllegalStateException e) {
+			LOGGER.log(Level.SEVERE, "Step {0} of job {1} failed. {2}",
+					new Object[] { step, jobId, e.getLocalizedMessage() });
+			job.put("lastError", e.getLocalizedMessage()).put("stepErrors", job.path("stepErrors").asInt() + 1);
+			if (job.get("stepErrors").asInt() >= MAX_STEP_ERRORS) {
+				job.put("status", FAILED);
+			}
+		}
+
+		job.put("updatedAt", System.currentTimeMillis());
+		if (!owned || !storeProgress(stored)) {
+			LOGGER.log(Level.INFO, "Step {0} of job {1} stopped, another call changed the job.",
+					new Object[] { step, jobId });
+			return status(jobId);
+		}
+
+		if (RUNNING.equals(job.get("status").asText())) {
+			requestStep(jobId, step + 1);
+		}
+		return job.toString();
+	}
+
+	/**
+	 * @return boolean Returns false if another call took over the job
+	 */
+	private boolean runStep(StoredJob stored, Stream stream,
+			BiFunction<byte[], String, RetryFunction.Outcome> messageHandler, long started) {
+
+		ObjectNode job = stored.job;
+		double messagesPerSecond = job.path("messagesPerSecond").asDouble(0);
+		long limit = job.path("noOfMessagesToProcess").asLong(0);
+		ObjectNode partitionsNode = (ObjectNode) job.get("partitions");
+		long stepMessages = 0;
+		boolean moreMessages = true;
+
+		while (moreMessages && System.currentTimeMillis() - started < SLICE_MS) {
+
+			moreMessages = false;
+			Iterator<Map.Entry<String, JsonNode>> partitions = partitionsNode.fields();
+
+			while (partitions.hasNext()) {
+				Map.Entry<String, JsonNode> partition = partitions.next();
+				ObjectNode partitionNode = (ObjectNode) partition.getValue();
+
+				if (partitionNode.path("endOfStream").asBoolean()) {
+					continue;
+				}
+
+				int batchSize = BATCH_SIZE;
+				if (limit > 0) {
+					batchSize = (int) Math.min(batchSize, limit - messageCount(job));
+					if (batchSize <= 0) {
+						job.put("status", COMPLETED);
+						return true;
+					}
+				}
+
+				List<Message> messages = streamTransport.getMessages(stream, partition.getKey(),
+						partitionNode.path("lastReadOffset").asLong(-1), batchSize);
+
+				for (Message message : messages) {
+					String streamKey = message.getKey() != null ? new String(message.getKey(), UTF_8) : "";
+
+					count(job, messageHandler.apply(message.getValue(), streamKey));
+					partitionNode.put("lastReadOffset", message.getOffset());
+					stepMessages = stepMessages + 1;
+
+					throttle(started, stepMessages, messagesPerSecond);
+				}
+
+				// a read returns fewer messages than asked for at segment boundaries and at the
+				// response size limit, so only an empty read or the latest offset ends a partition
+				if (messages.isEmpty() || (messages.size() < batchSize && partitionNode.path("lastReadOffset")
+						.asLong(-1) >= streamTransport.getLatestOffset(stream, partition.getKey()))) {
+					partitionNode.put("endOfStream", true);
+				} else {
+					moreMessages = true;
+				}
+			}
+			// keep the progress visible to status calls. A cancel shows as a
+			// conflict, and is kept
+			job.put("updatedAt", System.currentTimeMillis());
+			if (!storeProgressQuietly(stored)) {
+				return false;
+			}
+			if (CANCELLED.equals(job.get("status").asText())) {
+				return true;
+			}
+		}
+
+		if (!moreMessages) {
+			job.put("status", COMPLETED);
+		}
+		return true;
+	}
+
+	private static void count(ObjectNode job, RetryFunction.Outcome outcome) {
+
+		String counter = outcome == RetryFunction.Outcome.PROCESSED ? "processedMessages"
+				: outcome == RetryFunction.Outcome.PARKED ? "parkedMessages"
+						: outcome == RetryFunction.Outcome.EXPIRED ? "expiredMessages" : "failedMessages";
+		job.put(counter, job.path(counter).asLong() + 1);
+	}
+
+	private static long messageCount(ObjectNode job) {
+
+		return job.path("processedMessages").asLong() + job.path("failedMessages").asLong()
+				+ job.path("parkedMessages").asLong() + job.path("expiredMessages").asLong();
+	}
+
+	/**
+	 * @param started
+	 * @param messages
+	 * @param messagesPerSecond
+	 *
+	 *                          This method waits until the no. of messages
+	 *                          retried since started is within the rate limit.
+	 */
+	private static void throttle(long started, long messages, double messagesPerSecond) {
+
+		if (messagesPerSecond <= 0) {
+			return;
+		}
+		long wait = started + (long) (messages * 1000 / messagesPerSecond) - System.currentTimeMillis();
+
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Retry job interrupted.", e);
+			}
+		}
+	}
+
+	/**
+	 * @param jobId
+	 * @param step
+	 *
+	 *              This method publishes the step to the job topic, which calls
+	 *              RetryFunction with it.
+	 */
+	private void requestStep(String jobId, int step) {
+
+		if (JOB_TOPIC_OCID == null || JOB_TOPIC_OCID.isEmpty()) {
+			LOGGER.log(Level.INFO, "No retry_job_topic_ocid, step {0} of job {1} waits for a jobStep call.",
+					new Object[] { step, jobId });
+			return;
+		}
+
+		String stepMessage = OBJECT_MAPPER.createObjectNode().put("mode", "jobStep").put("jobId", jobId)
+				.put("step", step).toString();
+
+		try (NotificationDataPlaneClient notificationClient = NotificationDataPlaneClient.builder()
+				.build(provider)) {
+			notificationClient.publishMessage(PublishMessageRequest.builder().topicId(JOB_TOPIC_OCID)
+					.messageDetails(MessageDetails.builder().title("retry job " + jobId).body(stepMessage).build())
+					.build());
+		}
+	}
+
+	private StoredJob readJob(String jobId) throws IOException {
+
+		ArchiveStore.VersionedCheckpoint stored = jobStore.readVersionedCheckpoint(jobName(jobId));
+		return stored == null ? null
+				: new StoredJob((ObjectNode) OBJECT_MAPPER.readTree(stored.getCheckpoint()), stored.getVersion());
+	}
+
+	/**
+	 * @param stored The job of the running step
+	 * @return boolean Returns false if another call took over the job
+	 * @throws IOException
+	 *
+	 *                     This method stores the progress of a step. If the job
+	 *                     was cancelled since it was read, the progress is stored
+	 *                     with the cancel. Any other change means that another
+	 *                     step took over the job, and nothing is stored.
+	 */
+	private boolean storeProgress(StoredJob stored) throws IOException {
+
+		String jobId = stored.job.get("jobId").asText();
+
+		for (int attempt = 1;; attempt++) {
+			try {
+				stored.write();
+				return true;
+			} catch (ArchiveStore.CheckpointConflictException e) {
+				StoredJob latest = readJob(jobId);
+				if (attempt == MAX_WRITE_ATTEMPTS || latest == null
+						|| !CANCELLED.equals(latest.job.path("status").asText())
+						|| latest.job.path("step").asInt() != stored.job.path("step").asInt()) {
+					return false;
+				}
+				stored.job.put("status", CANCELLED);
+				stored.version = latest.version;
+			}
+		}
+	}
+
+	private boolean storeProgressQuietly(StoredJob stored) {
+
+		try {
+			return storeProgress(stored);
+		} catch (IOException | BmcException e) {
+			LOGGER.log(Level.WARNING, "Progress of job {0} could not be stored. {1}",
+					new Object[] { stored.job.get("jobId").asText(), e.getLocalizedMessage() });
+			return true;
+		}
+	}
+
+	private static String jobName(String jobId) {
+
+		// job ids are generated, but they are also passed in by callers
+		if (!jobId.matches("[A-Za-z0-9-]+")) {
+			throw new IllegalArgumentException("Invalid jobId " + jobId);
+		}
+		return "job-" + jobId + ".json";
+	}
+
+	/**
+	 * A job with the version it was read or last stored at.
+	 */
+	private final class StoredJob {
+
+		private final ObjectNode job;
+		private String version;
+
+		private StoredJob(ObjectNode job, String version) {
+			this.job = job;
+			this.version = version;
+		}
+
+		/**
+		 * @throws ArchiveStore.CheckpointConflictException If the job changed
+		 *                                                  since it was read
+		 * @throws IOException
+		 */
+		private void write() throws IOException {
+			version = jobStore.writeCheckpoint(jobName(job.get("jobId").asText()), job.toString(), version);
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Retry metadata carried in the retryMetadata node of a stream message every time it is
+//rerouted to an error stream, e.g.
+//"retryMetadata": {"attempts": 3, "firstFailure": 1665400000000, "lastFailure": 1665403600000,
+//                  "lastStatusCode": 503, "lastErrorBody": "{\"error\": ...}", "originStream": "ocid1.stream..."}
+//lastErrorBody is the start of the body of the last error response, see TargetResponseHandler.
+//Messages that exceed max_retry_attempts or max_retry_age_minutes are poison messages. They
+//are parked in the poison_message_stream_ocid stream instead of being dispatched again.
+//A limit of 0, the default, disables the check.
+//When retry_delay_streams is set, failures the target may recover from (408, 429 and 5xx) are
+//routed by attempt count to tiered delay streams instead, e.g.
+//[{"delaySeconds": 10, "stream": "ocid1.stream..."}, {"delaySeconds": 60, "stream": "ocid1.stream..."},
+// {"delaySeconds": 600, "stream": "ocid1.stream..."}, {"delaySeconds": 3600, "stream": "ocid1.stream..."}]
+//The first failure goes to the first tier, the second to the second tier, and so on, staying on
+//the last tier. The message gets a notBefore time, so that RetryFunction in scheduler mode
+//replays it only once it is due. Every message in a tier has the same delay, so the messages
+//of a partition become due in offset order.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public final class RetryMetadata {
+
+	public static final String NODE_NAME = "retryMetadata";
+	public static final String POISON_MESSAGE_STREAM_OCID = System.getenv().getOrDefault(
+			"poison_message_stream_ocid", System.getenv().get("unrecoverable_error_stream_ocid"));
+	private static final int MAX_ATTEMPTS = Integer
+			.parseInt(System.getenv().getOrDefault("max_retry_attempts", "0"));
+	private static final long MAX_AGE_MS = Long.parseLong(System.getenv().getOrDefault("max_retry_age_minutes", "0"))
+			* 60000;
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final List<DelayTier> DELAY_TIERS = delayTiersFromConfig();
+
+	private RetryMetadata() {
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param statusCode       The target response status, or 0 if the target was
+	 *                         not called
+	 * @param errorBody        The start of the target response body, or null
+	 * @param originStreamOCID
+	 * @param errorStreamOCID  The error stream mapped to the failure
+	 * @return Reroute The message with updated retry metadata and the stream to
+	 *         send it to. A message that is not a JSON object is returned
+	 *         unchanged, with the mapped error stream.
+	 *
+	 *         This method records a failed attempt in the message and applies the
+	 *         retry policy. Poison messages go to the poison message stream and
+	 *         recoverable failures to the delay tier of their attempt count.
+	 */
+	public static Reroute reroute(byte[] streamMessage, int statusCode, String errorBody, String originStreamOCID,
+			String errorStreamOCID) {
+
+		JsonNode messageNode;
+		try {
+			messageNode = OBJECT_MAPPER.readTree(streamMessage);
+		} catch (IOException e) {
+			return new Reroute(streamMessage, errorStreamOCID, false);
+		}
+		if (messageNode == null || !messageNode.isObject()) {
+			return new Reroute(streamMessage, errorStreamOCID, false);
+		}
+
+		long now = System.currentTimeMillis();
+		ObjectNode metadata = ((ObjectNode) messageNode).with(NODE_NAME);
+
+		int attempts = metadata.path("attempts").asInt(0) + 1;
+		metadata.put("attempts", attempts);
+		if (!metadata.has("firstFailure")) {
+			metadata.put("firstFailure", now);
+		}
+		metadata.put("lastFailure", now);
+		metadata.put("lastStatusCode", statusCode);
+		if (errorBody != null && !errorBody.isEmpty()) {
+			metadata.put("lastErrorBody", errorBody);
+		} else {
+			metadata.remove("lastErrorBody");
+		}
+		if (!metadata.has("originStream") && originStreamOCID != null) {
+			metadata.put("originStream", originStreamOCID);
+		}
+		metadata.remove("notBefore");
+
+		if (isPoison(messageNode)) {
+			return new Reroute(toBytes(messageNode), POISON_MESSAGE_STREAM_OCID, true);
+		}
+
+		if (!DELAY_TIERS.isEmpty() && isRecoverable(statusCode)) {
+			DelayTier tier = DELAY_TIERS.get(Math.min(attempts, DELAY_TIERS.size()) - 1);
+			metadata.put("notBefore", now + tier.delayMs);
+			errorStreamOCID = tier.streamOCID;
+		}
+		return new Reroute(toBytes(messageNode), errorStreamOCID, false);
+	}
+
+	private static byte[] toBytes(JsonNode messageNode) {
+
+		try {
+			return OBJECT_MAPPER.writeValueAsBytes(messageNode);
+		} catch (JsonProcessingException e) {
+			// a tree read from JSON can always be written back
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param messageNode
+	 * @return long The time in epoch milliseconds after which the message may be
+	 *         retried, or 0 if it is not delayed.
+	 */
+	public static long notBefore(JsonNode messageNode) {
+
+		return messageNode == null ? 0 : messageNode.path(NODE_NAME).path("notBefore").asLong(0);
+	}
+
+	/**
+	 * @return List<String> The OCIDs of the delay tier streams
+	 */
+	public static List<String> delayStreamOCIDs() {
+
+		List<String> streamOCIDs = new ArrayList<>(DELAY_TIERS.size());
+		DELAY_TIERS.forEach(tier -> streamOCIDs.add(tier.streamOCID));
+		return streamOCIDs;
+	}
+
+	private static boolean isRecoverable(int statusCode) {
+
+		return statusCode == 408 || statusCode == 429 || (statusCode >= 500 && statusCode < 600);
+	}
+
+	/**
+	 * @param messageNode
+	 * @return boolean Returns true if the message exceeded the retry policy.
+	 */
+	public static boolean isPoison(JsonNode messageNode) {
+
+		JsonNode metadata = messageNode == null ? null : messageNode.get(NODE_NAME);
+		if (metadata == null) {
+			return false;
+		}
+		if (MAX_ATTEMPTS > 0 && metadata.path("attempts").asInt(0) >= MAX_ATTEMPTS) {
+			return true;
+		}
+		return MAX_AGE_MS > 0 && metadata.has("firstFailure")
+				&& System.currentTimeMillis() - metadata.get("firstFailure").asLong() > MAX_AGE_MS;
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return boolean Returns true if the message exceeded the retry policy.
+	 */
+	public static boolean isPoison(byte[] streamMessage) {
+
+		try {
+			return isPoison(OBJECT_MAPPER.readTree(streamMessage));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return List<DelayTier>
+	 *
+	 *         This method reads the delay tiers from the retry_delay_streams
+	 *         configuration variable. It throws IllegalArgumentException if the
+	 *         tiers are invalid, so a misconfiguration fails the container at start
+	 *         up.
+	 */
+	private static List<DelayTier> delayTiersFromConfig() {
+
+		String config = System.getenv().get("retry_delay_streams");
+
+		if (config == null || config.isBlank()) {
+			return Collections.emptyList();
+		}
+		List<DelayTier> tiers = new ArrayList<>();
+		try {
+			for (JsonNode tierNode : OBJECT_MAPPER.readTree(config)) {
+				if (!tierNode.has("delaySeconds") || !tierNode.has("stream")) {
+					throw new IllegalArgumentException(
+							"retry_delay_streams tiers need delaySeconds and stream. " + tierNode);
+				}
+				tiers.add(new DelayTier(tierNode.get("delaySeconds").asLong() * 1000, tierNode.get("stream").asText()));
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("retry_delay_streams is not valid JSON. " + e.getLocalizedMessage(), e);
+		}
+		return Collections.unmodifiableList(tiers);
+	}
+
+	/**
+	 * The message to send to an error stream, with the stream it is routed to.
+	 */
+	public static final class Reroute {
+
+		private final byte[] streamMessage;
+		private final String streamOCID;
+		private final boolean parked;
+
+		Reroute(byte[] streamMessage, String streamOCID, boolean parked) {
+			this.streamMessage = streamMessage;
+			this.streamOCID = streamOCID;
+			this.parked = parked;
+		}
+
+		public byte[] getStreamMessage() {
+			return streamMessage;
+		}
+
+		public String getStreamOCID() {
+			return streamOCID;
+		}
+
+		public boolean isParked() {
+			return parked;
+		}
+	}
+
+	private static final class DelayTier {
+
+		private final long delayMs;
+		private final String streamOCID;
+
+		DelayTier(long delayMs, String streamOCID) {
+			this.delayMs = delayMs;
+			this.streamOCID = streamOCID;
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//The target call described by a stream message, read from the raw message bytes in one pass.
+//The targetRestApiPayload is not copied: the body of the target call is the slice of the message
+//bytes that holds it. An encryptedPayload is decrypted by PayloadCipher.
+//A message can fan out to several targets with a targets array, e.g.
+//"targets": [{"targetRestApi": "https://crm.example.com/orders/1"}, {"targetRestApi": "https://erp.example.com/orders/1", "vaultSecretName": "erp"}]
+//Each target is called with the payload of the message, and takes the vaultSecretName,
+//targetRestApiOperation and targetRestApiHeaders of the message unless it sets its own.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TargetMessage {
+
+	public static final String TARGETS_NODE_NAME = "targets";
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+	private String vaultSecretName;
+	private String targetRestApi;
+	private String targetRestApiOperation;
+	private Map<String, String> httpHeaders;
+	private byte[] payload;
+	private int payloadOffset;
+	private int payloadLength;
+	// the targets of a fan-out message, and the index of a target in them
+	private List<TargetMessage> targets;
+	private int targetIndex = -1;
+
+	private TargetMessage() {
+	}
+
+	/**
+	 * @param streamMessage
+	 * @param streamKey     The key the message was read with
+	 * @param payloadCipher
+	 * @return TargetMessage
+	 * @throws IOException If the message is not valid JSON, or its payload cannot
+	 *                     be decrypted
+	 *
+	 *                     This method reads the top level fields of the message.
+	 *                     The payload is kept as offsets into streamMessage.
+	 */
+	public static TargetMessage parse(byte[] streamMessage, String streamKey, PayloadCipher payloadCipher)
+			throws IOException {
+
+		TargetMessage message = new TargetMessage();
+		PayloadCipher.EncryptedPayload encryptedPayload = null;
+
+		try (JsonParser parser = JSON_FACTORY.createParser(streamMessage)) {
+
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return message;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				switch (field) {
+				case "targetRestApiPayload":
+					message.readPayload(parser, streamMessage);
+					break;
+				case PayloadCipher.NODE_NAME:
+					encryptedPayload = PayloadCipher.readPayload(parser);
+					break;
+				case TARGETS_NODE_NAME:
+					message.readTargets(parser);
+					break;
+				default:
+					message.readTargetField(parser, field, value);
+				}
+			}
+		}
+		// the payload is bound to the targetRestApi, which may follow it
+		if (encryptedPayload != null) {
+			message.payload = payloadCipher.decryptPayload(encryptedPayload, streamKey, message.targetRestApi);
+			message.payloadOffset = 0;
+			message.payloadLength = message.payload.length;
+		}
+		if (message.targets != null) {
+			for (TargetMessage target : message.targets) {
+				target.inherit(message);
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * @param parser A parser positioned on the value of the field
+	 * @param field
+	 * @param value
+	 *
+	 *               This method reads a field that describes the target call,
+	 *               and skips any other field.
+	 */
+	private void readTargetField(JsonParser parser, String field, JsonToken value) throws IOException {
+
+		switch (field) {
+		case "vaultSecretName":
+			vaultSecretName = value.isScalarValue() ? parser.getText() : "";
+			parser.skipChildren();
+			break;
+		case "targetRestApi":
+			targetRestApi = value.isScalarValue() ? parser.getText() : null;
+			parser.skipChildren();
+			break;
+		case "targetRestApiOperation":
+			targetRestApiOperation = value.isScalarValue() ? parser.getText() : "";
+			parser.skipChildren();
+			break;
+		case "targetRestApiHeaders":
+			readHeaders(parser);
+			break;
+		default:
+			parser.skipChildren();
+		}
+	}
+
+	/**
+	 * @param parser A parser positioned on the start of the targets array
+	 */
+	private void readTargets(JsonParser parser) throws IOException {
+
+		targets = new ArrayList<>();
+		if (parser.currentToken() != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return;
+		}
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			// an element that is not an object is kept as a target without a
+			// targetRestApi, so that it is reported as invalid
+			TargetMessage target = new TargetMessage();
+			target.targetIndex = targets.size();
+			targets.add(target);
+
+			if (parser.currentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				target.readTargetField(parser, field, parser.nextToken());
+			}
+		}
+	}
+
+	/**
+	 * @param message The fan-out message of this target
+	 */
+	private void inherit(TargetMessage message) {
+
+		if (vaultSecretName == null) {
+			vaultSecretName = message.vaultSecretName;
+		}
+		if (targetRestApiOperation == null) {
+			targetRestApiOperation = message.targetRestApiOperation;
+		}
+		if (httpHeaders == null) {
+			httpHeaders = message.httpHeaders;
+		}
+		payload = message.payload;
+		payloadOffset = message.payloadOffset;
+		payloadLength = message.payloadLength;
+	}
+
+	/**
+	 * @param parser A parser positioned on the start of the targetRestApiHeaders
+	 *               array of key, value objects
+	 */
+	private void readHeaders(JsonParser parser) throws IOException {
+
+		httpHeaders = new HashMap<>();
+		if (parser.currentToken() != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return;
+		}
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.currentToken() != JsonToken.START_OBJECT) {
+				parser.skipChildren();
+				continue;
+			}
+			String key = null;
+			String value = "";
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				boolean scalar = parser.nextToken().isScalarValue();
+
+				if ("key".equals(field) && scalar) {
+					key = parser.getText();
+				} else if ("value".equals(field) && scalar) {
+					value = parser.getText();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (key != null) {
+				httpHeaders.put(key, value);
+			}
+		}
+	}
+
+	/**
+	 * @param parser        A parser positioned on the start of the
+	 *                      targetRestApiPayload value
+	 * @param streamMessage
+	 */
+	private void readPayload(JsonParser parser, byte[] streamMessage) throws IOException {
+
+		long start = parser.getTokenLocation().getByteOffset();
+		if (parser.currentToken().isStructStart()) {
+			parser.skipChildren();
+		} else {
+			parser.finishToken();
+		}
+		payload = streamMessage;
+		payloadOffset = (int) start;
+		payloadLength = (int) (parser.getCurrentLocation().getByteOffset() - start);
+	}
+
+	public String getVaultSecretName() {
+		return vaultSecretName == null ? "" : vaultSecretName;
+	}
+
+	/**
+	 * @return String The targetRestApi, or null if the message has none
+	 */
+	public String getTargetRestApi() {
+		return targetRestApi;
+	}
+
+	/**
+	 * @return String The targetRestApiOperation, or null if the message has none
+	 */
+	public String getTargetRestApiOperation() {
+		return targetRestApiOperation;
+	}
+
+	public Map<String, String> getHttpHeaders() {
+		return httpHeaders == null ? Collections.emptyMap() : httpHeaders;
+	}
+
+	/**
+	 * @return boolean Returns true if the message has a targets array
+	 */
+	public boolean isFanOut() {
+		return targets != null;
+	}
+
+	/**
+	 * @return List<TargetMessage> The targets of a fan-out message, or this
+	 *         message if it has a single target
+	 */
+	public List<TargetMessage> getTargets() {
+		return targets == null ? Collections.singletonList(this) : targets;
+	}
+
+	/**
+	 * @param streamMessage The stream message this target was read from
+	 * @return byte[] The stream message for this target alone
+	 *
+	 *         For a target of a fan-out message, this method returns a single
+	 *         target message with the fields of the target in place of the
+	 *         targets array, so that a failed target is retried without the
+	 *         targets that succeeded. Its retry metadata starts as a copy of the
+	 *         metadata of the fan-out message.
+	 */
+	public byte[] toStreamMessage(byte[] streamMessage) {
+
+		if (targetIndex < 0) {
+			return streamMessage;
+		}
+		try {
+			ObjectNode messageNode = (ObjectNode) OBJECT_MAPPER.readTree(streamMessage);
+			JsonNode targetNode = messageNode.path(TARGETS_NODE_NAME).path(targetIndex);
+			messageNode.remove(TARGETS_NODE_NAME);
+
+			Iterator<Map.Entry<String, JsonNode>> fields = targetNode.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				messageNode.set(field.getKey(), field.getValue());
+			}
+			return OBJECT_MAPPER.writeValueAsBytes(messageNode);
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return BodyPublisher The payload bytes, published without a copy, or no
+	 *         body if the message has no payload
+	 */
+	public BodyPublisher bodyPublisher() {
+
+		if (payload == null) {
+			return HttpRequest.BodyPublishers.noBody();
+		}
+		return HttpRequest.BodyPublishers.ofByteArray(payload, payloadOffset, payloadLength);
+	}
+
+}
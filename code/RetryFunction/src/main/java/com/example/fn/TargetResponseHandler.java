@@ -0,0 +1,111 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Response body handling for target REST API calls. Every body is consumed to the end, so the
+//connection goes back to the HttpClient pool as soon as the response completes.
+//The body of a successful response is discarded without being buffered. For an error response,
+//up to error_body_max_bytes bytes are kept, so the target's error details can travel with the
+//message to the error stream. The rest of the body is drained and discarded. A body longer than
+//error_body_drain_bytes is cut off, which closes that connection instead of reading it further.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+public class TargetResponseHandler implements BodyHandler<String> {
+
+	private static final int ERROR_BODY_MAX_BYTES = Integer
+			.parseInt(System.getenv().getOrDefault("error_body_max_bytes", "1024"));
+	private static final long ERROR_BODY_DRAIN_BYTES = Long
+			.parseLong(System.getenv().getOrDefault("error_body_drain_bytes", "65536"));
+
+	/**
+	 * @param responseInfo
+	 * @return BodySubscriber<String> A subscriber whose body is null for a
+	 *         successful response, and the bounded prefix of the body for an error
+	 *         response.
+	 */
+	@Override
+	public BodySubscriber<String> apply(ResponseInfo responseInfo) {
+
+		if (responseInfo.statusCode() < 400) {
+			return BodySubscribers.replacing(null);
+		}
+		return new BoundedPrefixSubscriber(ERROR_BODY_MAX_BYTES, ERROR_BODY_DRAIN_BYTES);
+	}
+
+	/**
+	 * Keeps the first maxBytes bytes of the body and discards the rest, up to
+	 * drainBytes in total.
+	 */
+	static class BoundedPrefixSubscriber implements BodySubscriber<String> {
+
+		private final CompletableFuture<String> body = new CompletableFuture<>();
+		private final byte[] prefix;
+		private final long drainBytes;
+		private int prefixLength;
+		private long bodyLength;
+		private Flow.Subscription subscription;
+
+		BoundedPrefixSubscriber(int maxBytes, long drainBytes) {
+			this.prefix = new byte[maxBytes];
+			this.drainBytes = drainBytes;
+		}
+
+		@Override
+		public CompletionStage<String> getBody() {
+			return body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+
+			for (ByteBuffer buffer : buffers) {
+				int remaining = buffer.remaining();
+				int copied = Math.min(remaining, prefix.length - prefixLength);
+				buffer.get(prefix, prefixLength, copied);
+				prefixLength += copied;
+				bodyLength += remaining;
+			}
+
+			if (bodyLength > drainBytes) {
+				subscription.cancel();
+				complete();
+			} else {
+				subscription.request(1);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			// the status code is already known, keep what was read of the body
+			complete();
+		}
+
+		@Override
+		public void onComplete() {
+			complete();
+		}
+
+		private void complete() {
+			body.complete(new String(prefix, 0, prefixLength, UTF_8));
+		}
+	}
+
+}
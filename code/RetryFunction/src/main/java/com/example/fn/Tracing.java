@@ -0,0 +1,276 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//End to end tracing of a message, from the POST to PopulateDataStreamFunction to the target call
+//of ReadDataStreamFunction or RetryFunction, using OpenTelemetry.
+//PopulateDataStreamFunction continues the W3C traceparent header of the source request, or starts
+//a new trace, and carries it in the traceContext node of the stream message, e.g.
+//"traceContext": {"traceparent": "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01", "ingestTime": 1665400000000}
+//The node is written as the first field of the message, or the second after expiresAt, so that the
+//functions that read the message find it without parsing the payload.
+//The functions that read the message continue the trace. A "stream queue" span covers the time
+//from ingest to dispatch, so the time a message waits in the stream and in the connector delivery
+//can be told apart from the time spent processing it.
+//Set trace_exporter to otlp to export spans in batches to otel_exporter_otlp_traces_endpoint, or
+//to memory to keep them in an in-memory sink for local testing. Tracing is off by default.
+
+package com.example.fn;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.TracerProvider;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.propagation.TextMapGetter;
+import io.opentelemetry.context.propagation.TextMapSetter;
+import io.opentelemetry.exporter.otlp.http.trace.OtlpHttpSpanExporter;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.export.BatchSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+
+public final class Tracing {
+
+	public static final String NODE_NAME = "traceContext";
+	public static final String TRACEPARENT = "traceparent";
+	private static final Logger LOGGER = Logger.getLogger(Tracing.class.getName());
+	private static final String EXPORTER = System.getenv().getOrDefault("trace_exporter", "none");
+	private static final String OTLP_ENDPOINT = System.getenv().getOrDefault("otel_exporter_otlp_traces_endpoint",
+			"http://localhost:4318/v1/traces");
+	private static final String SERVICE_NAME = System.getenv().getOrDefault("FN_FN_NAME", "datasync");
+	private static final long FLUSH_TIMEOUT_MS = 5000;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+	private static final W3CTraceContextPropagator PROPAGATOR = W3CTraceContextPropagator.getInstance();
+
+	private static final InMemorySpanSink MEMORY_SINK = "memory".equals(EXPORTER) ? new InMemorySpanSink() : null;
+	private static final SdkTracerProvider TRACER_PROVIDER = tracerProvider();
+	private static final Tracer TRACER = TRACER_PROVIDER != null ? TRACER_PROVIDER.get("com.example.fn")
+			: TracerProvider.noop().get("com.example.fn");
+
+	private static final TextMapGetter<Map<String, String>> MAP_GETTER = new TextMapGetter<>() {
+
+		@Override
+		public Iterable<String> keys(Map<String, String> carrier) {
+			return carrier.keySet();
+		}
+
+		@Override
+		public String get(Map<String, String> carrier, String key) {
+			return carrier == null ? null : carrier.get(key);
+		}
+	};
+	private static final TextMapSetter<Map<String, String>> MAP_SETTER = Map::put;
+
+	private Tracing() {
+	}
+
+	private static SdkTracerProvider tracerProvider() {
+
+		SpanExporter exporter;
+
+		switch (EXPORTER) {
+		case "otlp":
+			exporter = OtlpHttpSpanExporter.builder().setEndpoint(OTLP_ENDPOINT).build();
+			break;
+		case "memory":
+			exporter = MEMORY_SINK;
+			break;
+		case "none":
+			return null;
+		default:
+			LOGGER.severe("Unknown trace_exporter " + EXPORTER + ", tracing is off.");
+			return null;
+		}
+
+		return SdkTracerProvider.builder()
+				.setResource(Resource.getDefault()
+						.merge(Resource.create(Attributes.of(AttributeKey.stringKey("service.name"), SERVICE_NAME))))
+				.addSpanProcessor(BatchSpanProcessor.builder(exporter).build()).build();
+	}
+
+	public static boolean isEnabled() {
+		return TRACER_PROVIDER != null;
+	}
+
+	/**
+	 * @param name
+	 * @param kind
+	 * @return Span A span that is a child of the current span
+	 */
+	public static Span startSpan(String name, SpanKind kind) {
+
+		return TRACER.spanBuilder(name).setSpanKind(kind).startSpan();
+	}
+
+	/**
+	 * @param name
+	 * @param kind
+	 * @param traceparent The W3C traceparent of the parent span, or null
+	 * @return Span A span that continues the trace of traceparent, or starts a
+	 *         new trace if there is no valid traceparent
+	 */
+	public static Span startSpan(String name, SpanKind kind, String traceparent) {
+
+		return TRACER.spanBuilder(name).setSpanKind(kind).setParent(extract(traceparent)).startSpan();
+	}
+
+	/**
+	 * @param name
+	 * @param streamMessage
+	 * @return Span A consumer span that continues the trace carried in the
+	 *         traceContext node of the message
+	 *
+	 *         This method also records the "stream queue" span, from the ingest
+	 *         time of the message until now.
+	 */
+	public static Span startMessageSpan(String name, byte[] streamMessage) {
+
+		if (!isEnabled()) {
+			return Span.getInvalid();
+		}
+
+		Map<String, String> traceContext = readTraceContext(streamMessage);
+		Context parent = extract(traceContext.get(TRACEPARENT));
+		long now = System.currentTimeMillis();
+
+		if (traceContext.getOrDefault("ingestTime", "").matches("\\d+")) {
+			long ingestTime = Long.parseLong(traceContext.get("ingestTime"));
+
+			TRACER.spanBuilder("stream queue").setSpanKind(SpanKind.INTERNAL).setParent(parent)
+					.setStartTimestamp(ingestTime, TimeUnit.MILLISECONDS).startSpan()
+					.end(now, TimeUnit.MILLISECONDS);
+		}
+
+		return TRACER.spanBuilder(name).setSpanKind(SpanKind.CONSUMER).setParent(parent)
+				.setStartTimestamp(now, TimeUnit.MILLISECONDS).startSpan();
+	}
+
+	/**
+	 * @return String The W3C traceparent of the current span, or null if tracing
+	 *         is off
+	 */
+	public static String traceparent() {
+
+		if (!isEnabled()) {
+			return null;
+		}
+		Map<String, String> carrier = new HashMap<>();
+		PROPAGATOR.inject(Context.current(), carrier, MAP_SETTER);
+		return carrier.get(TRACEPARENT);
+	}
+
+	/**
+	 * @param messageNode
+	 *
+	 *                    This method carries the current span in the traceContext
+	 *                    node of the message, which it moves ahead of the other
+	 *                    fields except expiresAt, see MessageExpiry.
+	 */
+	public static void inject(ObjectNode messageNode) {
+
+		String traceparent = traceparent();
+
+		if (traceparent != null) {
+			Map<String, JsonNode> fields = new LinkedHashMap<>();
+			messageNode.fields().forEachRemaining(field -> fields.put(field.getKey(), field.getValue()));
+			fields.remove(NODE_NAME);
+			JsonNode expiresAt = fields.remove(MessageExpiry.NODE_NAME);
+
+			messageNode.removeAll();
+			if (expiresAt != null) {
+				messageNode.set(MessageExpiry.NODE_NAME, expiresAt);
+			}
+			messageNode.putObject(NODE_NAME).put(TRACEPARENT, traceparent).put("ingestTime",
+					System.currentTimeMillis());
+			messageNode.setAll(fields);
+		}
+	}
+
+	/**
+	 * This method exports the finished spans. The functions call it at the end of
+	 * each call, as the container may be paused between calls.
+	 */
+	public static void flush() {
+
+		if (isEnabled()) {
+			TRACER_PROVIDER.forceFlush().join(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return InMemorySpanSink The in-memory sink, or null if trace_exporter is not
+	 *         memory
+	 */
+	public static InMemorySpanSink memorySink() {
+		return MEMORY_SINK;
+	}
+
+	private static Context extract(String traceparent) {
+
+		if (traceparent == null || traceparent.isEmpty()) {
+			return Context.root();
+		}
+		return PROPAGATOR.extract(Context.root(), Collections.singletonMap(TRACEPARENT, traceparent), MAP_GETTER);
+	}
+
+	/**
+	 * @param streamMessage
+	 * @return Map<String, String>
+	 *
+	 *         This method reads the fields of the top level traceContext node.
+	 *         The node is the first field of the message, or follows expiresAt,
+	 *         so the method stops at the first other field without reading the
+	 *         rest of the message.
+	 */
+	private static Map<String, String> readTraceContext(byte[] streamMessage) {
+
+		Map<String, String> traceContext = new HashMap<>();
+
+		try (JsonParser parser = JSON_FACTORY.createParser(streamMessage)) {
+
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return traceContext;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				if (value == JsonToken.START_OBJECT && NODE_NAME.equals(field)) {
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String key = parser.getCurrentName();
+						if (parser.nextToken().isScalarValue()) {
+							traceContext.put(key, parser.getText());
+						} else {
+							parser.skipChildren();
+						}
+					}
+					return traceContext;
+				}
+				if (!MessageExpiry.NODE_NAME.equals(field) || !value.isScalarValue()) {
+					return traceContext;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// a message without a readable trace context starts a new trace
+		}
+		return traceContext;
+	}
+
+}
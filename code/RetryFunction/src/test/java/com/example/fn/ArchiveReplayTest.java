@@ -0,0 +1,165 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Replays archive objects from a LocalArchiveStore folder, and continues a replay stopped by the
+//noOfMessagesToProcess limit from its checkpoint. The surefire configuration sets
+//archive_replay_checkpoint_records to 2, so that objects are also checkpointed within.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ArchiveReplayTest {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final Date FROM = new Date(0);
+
+	private Path archiveDir;
+	private final List<String> handledKeys = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setUp() throws IOException {
+
+		archiveDir = Files.createTempDirectory("archive-replay-test");
+
+		// an array of records, and gzip compressed concatenated records
+		StringBuilder records = new StringBuilder("[");
+		for (int i = 0; i < 5; i++) {
+			records.append(i == 0 ? "" : ",").append(record("order-" + i));
+		}
+		Path plain = archiveDir.resolve("errors/2022-10-10/object-1.json");
+		Files.createDirectories(plain.getParent());
+		Files.writeString(plain, records.append("]").toString(), UTF_8);
+
+		try (OutputStream gzip = new GZIPOutputStream(
+				Files.newOutputStream(archiveDir.resolve("errors/2022-10-10/object-2.json.gz")))) {
+			for (int i = 5; i < 8; i++) {
+				gzip.write(record("order-" + i).getBytes(UTF_8));
+				gzip.write('\n');
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		try (Stream<Path> files = Files.walk(archiveDir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void replaysEveryArchivedMessage() throws Exception {
+
+		JsonNode result = replay("replay-1", 100);
+
+		assertEquals(8, result.path("processedmessages").asInt());
+		assertEquals(2, result.path("completedObjects").asInt());
+		assertEquals(0, result.path("remainingObjects").asInt());
+		assertTrue(result.path("endOfArchive").asBoolean());
+		assertEquals(8, handledKeys.size());
+		assertEquals(8, new HashSet<>(handledKeys).size());
+	}
+
+	@Test
+	public void continuesAStoppedReplayFromItsCheckpoint() throws Exception {
+
+		JsonNode first = replay("replay-2", 3);
+		assertEquals(3, first.path("processedmessages").asInt());
+		assertFalse(first.path("endOfArchive").asBoolean());
+		assertTrue(Files.exists(archiveDir.resolve(ArchiveStore.CHECKPOINT_PREFIX + "replay-2.json")));
+
+		// a new call, as on another function instance, reads the checkpoint
+		JsonNode second = replay("replay-2", 100);
+		assertEquals(5, second.path("processedmessages").asInt());
+		assertTrue(second.path("endOfArchive").asBoolean());
+
+		// no message is replayed twice, and none is missed
+		assertEquals(8, handledKeys.size());
+		assertEquals(8, new HashSet<>(handledKeys).size());
+
+		// the checkpoints are not replayed as archive objects
+		JsonNode third = replay("replay-2", 100);
+		assertEquals(0, third.path("processedmessages").asInt());
+		assertTrue(third.path("endOfArchive").asBoolean());
+	}
+
+	@Test
+	public void checkpointsWithinAnObject() throws Exception {
+
+		LocalArchiveStore archiveStore = new LocalArchiveStore(archiveDir.toString());
+		AtomicLong checkpointedRecords = new AtomicLong(-1);
+
+		// the checkpoint as it is when the last record of the first object is handed over,
+		// which is what a call that times out there leaves behind
+		new ArchiveReplay(archiveStore, (streamMessage, streamKey) -> {
+			if ("order-4".equals(streamKey)) {
+				try {
+					checkpointedRecords.set(OBJECT_MAPPER.readTree(archiveStore.readCheckpoint("replay-5.json"))
+							.path("objects").path("errors/2022-10-10/object-1.json").path("records").asLong());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return RetryFunction.Outcome.PROCESSED;
+		}).replay("replay-5", "errors/", FROM, new Date(System.currentTimeMillis() + 60000), 100);
+
+		assertEquals(4, checkpointedRecords.get());
+	}
+
+	@Test
+	public void keepsReplaysWithAnotherReplayIdApart() throws Exception {
+
+		replay("replay-3", 3);
+		JsonNode other = replay("replay-4", 100);
+
+		assertEquals(8, other.path("processedmessages").asInt());
+	}
+
+	private JsonNode replay(String replayId, int noOfMessagesToProcess) throws Exception {
+
+		ArchiveReplay archiveReplay = new ArchiveReplay(new LocalArchiveStore(archiveDir.toString()),
+				(streamMessage, streamKey) -> {
+					handledKeys.add(streamKey);
+					return RetryFunction.Outcome.PROCESSED;
+				});
+		return OBJECT_MAPPER.readTree(archiveReplay.replay(replayId, "errors/", FROM,
+				new Date(System.currentTimeMillis() + 60000), noOfMessagesToProcess));
+	}
+
+	private static String record(String key) {
+
+		return OBJECT_MAPPER.createObjectNode()
+				.put("key", Base64.getEncoder().encodeToString(key.getBytes(UTF_8)))
+				.put("value", Base64.getEncoder().encodeToString(("{\"orderId\": \"" + key + "\"}").getBytes(UTF_8)))
+				.toString();
+	}
+
+}
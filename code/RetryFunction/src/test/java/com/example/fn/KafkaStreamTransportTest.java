@@ -0,0 +1,165 @@
+//Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Puts and reads messages through KafkaStreamTransport against an embedded ZooKeeper and Kafka
+//broker. The surefire configuration points kafka_bootstrap_servers at the broker, on
+//localhost:19092, with kafka_security_protocol PLAINTEXT.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.utils.Time;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+
+import kafka.server.KafkaConfig;
+import kafka.server.KafkaServer;
+import scala.Option;
+
+public class KafkaStreamTransportTest {
+
+	private static Path dataDir;
+	private static ServerCnxnFactory zookeeperFactory;
+	private static ZooKeeperServer zookeeper;
+	private static KafkaServer broker;
+	private static KafkaStreamTransport streamTransport;
+
+	@BeforeClass
+	public static void startBroker() throws IOException, InterruptedException {
+
+		dataDir = Files.createTempDirectory("kafka-stream-transport-test");
+		File zookeeperDir = dataDir.resolve("zookeeper").toFile();
+		zookeeper = new ZooKeeperServer(zookeeperDir, zookeeperDir, 500);
+		zookeeperFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("localhost", 0), 16);
+		zookeeperFactory.startup(zookeeper);
+
+		Properties brokerProperties = new Properties();
+		brokerProperties.put("broker.id", "0");
+		brokerProperties.put("zookeeper.connect", "localhost:" + zookeeperFactory.getLocalPort());
+		brokerProperties.put("listeners", "PLAINTEXT://localhost:19092");
+		brokerProperties.put("log.dirs", dataDir.resolve("kafka").toString());
+		brokerProperties.put("num.partitions", "1");
+		brokerProperties.put("offsets.topic.replication.factor", "1");
+		brokerProperties.put("offsets.topic.num.partitions", "1");
+		brokerProperties.put("transaction.state.log.replication.factor", "1");
+		brokerProperties.put("transaction.state.log.min.isr", "1");
+		brokerProperties.put("group.initial.rebalance.delay.ms", "0");
+		broker = new KafkaServer(new KafkaConfig(brokerProperties), Time.SYSTEM, Option.empty(), false);
+		broker.startup();
+
+		streamTransport = new KafkaStreamTransport(null);
+	}
+
+	@AfterClass
+	public static void stopBroker() throws IOException {
+
+		if (broker != null) {
+			broker.shutdown();
+			broker.awaitShutdown();
+		}
+		if (zookeeperFactory != null) {
+			zookeeperFactory.shutdown();
+		}
+		if (zookeeper != null) {
+			zookeeper.shutdown();
+		}
+		try (Stream<Path> files = Files.walk(dataDir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void readsBackWhatItPuts() {
+
+		com.oracle.bmc.streaming.model.Stream stream = stream("orders");
+		List<PutMessagesDetailsEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			entries.add(PutMessagesDetailsEntry.builder().key(("order-" + i).getBytes(UTF_8))
+					.value(("{\"orderId\": " + i + "}").getBytes(UTF_8)).build());
+		}
+
+		List<PutMessagesResultEntry> putResults = streamTransport.putMessages(stream, entries);
+		assertEquals(5, putResults.size());
+		for (int i = 0; i < putResults.size(); i++) {
+			assertNull(putResults.get(i).getErrorMessage(), putResults.get(i).getError());
+			assertEquals("0", putResults.get(i).getPartition());
+			assertEquals(i, putResults.get(i).getOffset().longValue());
+		}
+		assertEquals(4, streamTransport.getLatestOffset(stream, "0"));
+
+		List<Message> messages = streamTransport.getMessages(stream, "0", -1, 10);
+		assertEquals(5, messages.size());
+		for (int i = 0; i < messages.size(); i++) {
+			assertEquals("order-" + i, new String(messages.get(i).getKey(), UTF_8));
+			assertEquals("{\"orderId\": " + i + "}", new String(messages.get(i).getValue(), UTF_8));
+			assertEquals(i, messages.get(i).getOffset().longValue());
+		}
+
+		// reading after an offset skips it, and stops at the limit
+		messages = streamTransport.getMessages(stream, "0", 1, 2);
+		assertEquals(2, messages.size());
+		assertEquals(2, messages.get(0).getOffset().longValue());
+		assertEquals(3, messages.get(1).getOffset().longValue());
+	}
+
+	@Test
+	public void readsTheOffsetsAGroupCommitted() {
+
+		com.oracle.bmc.streaming.model.Stream stream = stream("payments");
+		List<PutMessagesDetailsEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			entries.add(PutMessagesDetailsEntry.builder().key(("payment-" + i).getBytes(UTF_8))
+					.value("{}".getBytes(UTF_8)).build());
+		}
+		streamTransport.putMessages(stream, entries);
+
+		assertTrue(streamTransport.getCommittedOffsets(stream, "unknown-group").isEmpty());
+
+		Properties consumerProperties = KafkaStreamTransport.connectionProperties();
+		consumerProperties.put(ConsumerConfig.GROUP_ID_CONFIG, "payments-group");
+		consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class.getName());
+		consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
+				ByteArrayDeserializer.class.getName());
+		try (KafkaConsumer<byte[], byte[]> consumer = new KafkaConsumer<>(consumerProperties)) {
+			// Kafka commits the offset of the next message to read
+			consumer.commitSync(Collections.singletonMap(new TopicPartition("payments", 0), new OffsetAndMetadata(2)));
+		}
+
+		Map<String, Long> committedOffsets = streamTransport.getCommittedOffsets(stream, "payments-group");
+		assertEquals(Collections.singletonMap("0", 1L), committedOffsets);
+	}
+
+	private static com.oracle.bmc.streaming.model.Stream stream(String name) {
+		return com.oracle.bmc.streaming.model.Stream.builder().name(name).partitions(1).build();
+	}
+
+}
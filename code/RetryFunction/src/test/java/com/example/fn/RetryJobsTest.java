@@ -0,0 +1,261 @@
+// Copyright (c)  2022,  Oracle and/or its affiliates.
+// Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+//Runs retry job steps on a LocalArchiveStore folder and a stream held in memory, with a cancel or
+//a failed write in the middle of a step.
+
+package com.example.fn;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.oracle.bmc.streaming.model.Message;
+import com.oracle.bmc.streaming.model.PutMessagesDetailsEntry;
+import com.oracle.bmc.streaming.model.PutMessagesResultEntry;
+import com.oracle.bmc.streaming.model.Stream;
+
+public class RetryJobsTest {
+
+	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+	private static final Stream STREAM = Stream.builder().id("ocid1.stream.oc1..errors").name("errors")
+			.partitions(1).build();
+
+	private Path jobDir;
+	private HookedStore jobStore;
+	private RetryJobs retryJobs;
+	private final AtomicInteger handled = new AtomicInteger();
+
+	@Before
+	public void setUp() throws IOException {
+
+		jobDir = Files.createTempDirectory("retry-jobs-test");
+		jobStore = new HookedStore(new LocalArchiveStore(jobDir.toString()));
+		retryJobs = new RetryJobs(jobStore, new MemoryStreamTransport(3), null);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		try (java.util.stream.Stream<Path> files = Files.walk(jobDir)) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void runsAJobToTheEndOfTheStream() throws Exception {
+
+		String jobId = submit();
+		JsonNode job = OBJECT_MAPPER.readTree(retryJobs.step(jobId, 1, STREAM, handler(null)));
+
+		assertEquals(RetryJobs.COMPLETED, job.path("status").asText());
+		assertEquals(3, job.path("processedMessages").asInt());
+		assertEquals(2, job.path("partitions").path("0").path("lastReadOffset").asInt());
+	}
+
+	@Test
+	public void keepsReadingAfterAShortRead() throws Exception {
+
+		// reads return at most 2 messages, fewer than the batch size
+		retryJobs = new RetryJobs(jobStore, new MemoryStreamTransport(5, 2), null);
+		String jobId = submit();
+		JsonNode job = OBJECT_MAPPER.readTree(retryJobs.step(jobId, 1, STREAM, handler(null)));
+
+		assertEquals(RetryJobs.COMPLETED, job.path("status").asText());
+		assertEquals(5, job.path("processedMessages").asInt());
+		assertEquals(4, job.path("partitions").path("0").path("lastReadOffset").asInt());
+	}
+
+	@Test
+	public void keepsACancelMadeWhileAStepRuns() throws Exception {
+
+		String jobId = submit();
+		JsonNode job = OBJECT_MAPPER.readTree(retryJobs.step(jobId, 1, STREAM, handler(jobId)));
+
+		// the cancel is kept, with the messages the step retried before it stopped
+		assertEquals(RetryJobs.CANCELLED, job.path("status").asText());
+		assertEquals(3, job.path("processedMessages").asInt());
+		JsonNode stored = OBJECT_MAPPER.readTree(retryJobs.status(jobId));
+		assertEquals(RetryJobs.CANCELLED, stored.path("status").asText());
+		assertEquals(3, stored.path("processedMessages").asInt());
+	}
+
+	@Test
+	public void doesNotRunAStepWhoseClaimLost() throws Exception {
+
+		String jobId = submit();
+		// a cancel lands between the read of the job and the claim of the step
+		jobStore.beforeVersionedWrite = () -> retryJobs.cancel(jobId);
+
+		JsonNode job = OBJECT_MAPPER.readTree(retryJobs.step(jobId, 1, STREAM, handler(null)));
+
+		assertEquals(RetryJobs.CANCELLED, job.path("status").asText());
+		assertEquals(0, job.path("step").asInt());
+		assertEquals(0, handled.get());
+	}
+
+	@Test
+	public void countsAClaimThatCannotBeStoredAsAFailedStep() throws Exception {
+
+		String jobId = submit();
+		jobStore.beforeVersionedWrite = () -> {
+			throw new IOException("Object Storage unavailable");
+		};
+
+		JsonNode job = OBJECT_MAPPER.readTree(retryJobs.step(jobId, 1, STREAM, handler(null)));
+
+		assertEquals(RetryJobs.RUNNING, job.path("status").asText());
+		assertEquals(1, job.path("stepErrors").asInt());
+		assertTrue(job.path("lastError").asText().contains("Object Storage unavailable"));
+		assertEquals(0, handled.get());
+
+		// the failed step is stored, and the next step runs
+		assertEquals(1, OBJECT_MAPPER.readTree(retryJobs.status(jobId)).path("stepErrors").asInt());
+		job = OBJECT_MAPPER.readTree(retryJobs.step(jobId, 2, STREAM, handler(null)));
+		assertEquals(RetryJobs.COMPLETED, job.path("status").asText());
+		assertEquals(0, job.path("stepErrors").asInt());
+	}
+
+	private String submit() throws IOException {
+
+		JsonNode request = OBJECT_MAPPER.createObjectNode().put("streamOCIDToRetry", STREAM.getId());
+		return OBJECT_MAPPER.readTree(retryJobs.submit(request, STREAM)).path("jobId").asText();
+	}
+
+	/**
+	 * @param cancelJobId The job to cancel at the first message, or null
+	 */
+	private BiFunction<byte[], String, RetryFunction.Outcome> handler(String cancelJobId) {
+
+		return (streamMessage, streamKey) -> {
+			if (handled.getAndIncrement() == 0 && cancelJobId != null) {
+				try {
+					retryJobs.cancel(cancelJobId);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return RetryFunction.Outcome.PROCESSED;
+		};
+	}
+
+	private interface Hook {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Runs a hook once, before the next versioned write.
+	 */
+	private static final class HookedStore implements ArchiveStore {
+
+		private final ArchiveStore archiveStore;
+		private Hook beforeVersionedWrite;
+
+		private HookedStore(ArchiveStore archiveStore) {
+			this.archiveStore = archiveStore;
+		}
+
+		@Override
+		public List<String> listObjects(String prefix, Date from, Date to) {
+			return archiveStore.listObjects(prefix, from, to);
+		}
+
+		@Override
+		public InputStream openObject(String objectName) throws IOException {
+			return archiveStore.openObject(objectName);
+		}
+
+		@Override
+		public String readCheckpoint(String checkpointName) throws IOException {
+			return archiveStore.readCheckpoint(checkpointName);
+		}
+
+		@Override
+		public void writeCheckpoint(String checkpointName, String checkpoint) throws IOException {
+			archiveStore.writeCheckpoint(checkpointName, checkpoint);
+		}
+
+		@Override
+		public VersionedCheckpoint readVersionedCheckpoint(String checkpointName) throws IOException {
+			return archiveStore.readVersionedCheckpoint(checkpointName);
+		}
+
+		@Override
+		public String writeCheckpoint(String checkpointName, String checkpoint, String version)
+				throws IOException {
+
+			Hook hook = beforeVersionedWrite;
+			beforeVersionedWrite = null;
+			if (hook != null) {
+				hook.run();
+			}
+			return archiveStore.writeCheckpoint(checkpointName, checkpoint, version);
+		}
+	}
+
+	/**
+	 * A stream with one partition of messages at offsets 0 to messages - 1, read
+	 * at most maxRead messages at a time.
+	 */
+	private static final class MemoryStreamTransport implements StreamTransport {
+
+		private final List<Message> messages = new ArrayList<>();
+		private final int maxRead;
+
+		private MemoryStreamTransport(int messages) {
+			this(messages, Integer.MAX_VALUE);
+		}
+
+		private MemoryStreamTransport(int messages, int maxRead) {
+			this.maxRead = maxRead;
+			for (long offset = 0; offset < messages; offset++) {
+				this.messages.add(Message.builder().partition("0").offset(offset)
+						.key(("key-" + offset).getBytes(UTF_8)).value("{}".getBytes(UTF_8)).build());
+			}
+		}
+
+		@Override
+		public List<PutMessagesResultEntry> putMessages(Stream stream, List<PutMessagesDetailsEntry> entries) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<Message> getMessages(Stream stream, String partition, long readAfterOffset, int limit) {
+
+			int from = (int) Math.min(readAfterOffset + 1, messages.size());
+			int to = Math.min(from + Math.min(limit, maxRead), messages.size());
+			return new ArrayList<>(messages.subList(from, to));
+		}
+
+		@Override
+		public long getLatestOffset(Stream stream, String partition) {
+			return messages.size() - 1;
+		}
+
+		@Override
+		public Map<String, Long> getCommittedOffsets(Stream stream, String groupName) {
+			return Collections.emptyMap();
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+#!/bin/bash
+# Copyright (c)  2022,  Oracle and/or its affiliates.
+# Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+
+# Compares the cold start time-to-first-response of the JVM and native image builds of a Function.
+# Both variants are deployed side by side; the native one gets a "-native" suffix in its name.
+# A cold start is forced before every invocation by changing a function configuration value,
+# which makes Functions replace the running containers.
+# The native variant is deployed from func.native.yaml and native.Dockerfile of the function folder.
+# Its reflection configuration under META-INF/native-image is maintained by hand, so exercise the
+# transport and modes being measured in the payload; a class missing from it fails at run time.
+#
+# usage: startup-benchmark.sh <function folder> <application name> <payload file> [runs]
+# e.g.   startup-benchmark.sh ../PopulateDataStreamFunction DataSyncApplication payload.json 10
+
+set -euo pipefail
+
+FUNCTION_DIR=$(cd "$1" && pwd)
+APP=$2
+PAYLOAD=$3
+RUNS=${4:-10}
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+deploy() {
+  local variant=$1
+  local dir="$WORK_DIR/$variant"
+  cp -r "$FUNCTION_DIR" "$dir"
+  if [ "$variant" = "native" ]; then
+    mv "$dir/func.native.yaml" "$dir/func.yaml"
+    mv "$dir/native.Dockerfile" "$dir/Dockerfile"
+    sed -i 's/^name: \(.*\)$/name: \1-native/' "$dir/func.yaml"
+  fi
+  (cd "$dir" && fn -v deploy --app "$APP" >&2)
+  grep '^name:' "$dir/func.yaml" | awk '{print $2}'
+}
+
+measure() {
+  local name=$1
+  local timings=()
+  for run in $(seq 1 "$RUNS"); do
+    fn config function "$APP" "$name" startup_benchmark_run "$run-$(date +%s)" > /dev/null
+    local start=$(date +%s%N)
+    fn invoke "$APP" "$name" < "$PAYLOAD" > /dev/null
+    local end=$(date +%s%N)
+    timings+=($(( (end - start) / 1000000 )))
+  done
+  local sorted=($(printf '%s\n' "${timings[@]}" | sort -n))
+  echo "$name runs=$RUNS min=${sorted[0]}ms median=${sorted[$((RUNS / 2))]}ms max=${sorted[$((RUNS - 1))]}ms"
+}
+
+JVM_FUNCTION=$(deploy jvm)
+NATIVE_FUNCTION=$(deploy native)
+
+echo "Cold start time-to-first-response"
+measure "$JVM_FUNCTION"
+measure "$NATIVE_FUNCTION"
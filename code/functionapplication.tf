@@ -15,6 +15,15 @@ resource oci_functions_application export_DataSyncApplication {
     "vault_key_ocid"            = oci_kms_key_version.export_SyncDataEncryptionKey_key_version_1.id
     "vault_ocid"                = oci_kms_vault.export_DataSync_Vault.id
     "internalserver_error_stream_ocid" =oci_streaming_stream.export_InternalserverErrorStream.id
+    "stream_transport"          = var.stream_transport
+    "kafka_bootstrap_servers"   = var.kafka_bootstrap_servers
+    "kafka_sasl_username"       = var.kafka_sasl_username
+    "kafka_auth_token_secret_name" = var.kafka_auth_token_secret_name
+    "retry_job_topic_ocid"      = oci_ons_notification_topic.export_RetryJobTopic.id
+    "payload_encryption"        = var.payload_encryption
+    "kms_key_ocid"              = oci_kms_key.export_SyncDataEncryptionKey.id
+    "kms_crypto_endpoint"       = oci_kms_vault.export_DataSync_Vault.crypto_endpoint
+    "error_digest_topic_ocid"   = oci_ons_notification_topic.export_ErrorTopic.id
   }
  
   display_name = "DataSyncApplication"
@@ -58,6 +58,24 @@ data "oci_functions_functions" "test_deploy_PopulateDataStreamFunction" {
     display_name   = "populatedatastreamfunction"
     
   
+}
+resource "null_resource" "deploy_ErrorDigestFunction" {
+
+ depends_on = [ oci_functions_application.export_DataSyncApplication]
+  provisioner "local-exec" {
+    working_dir = "${abspath(path.root)}/ErrorDigestFunction"
+    command = <<-EOC
+      fn -v deploy --app DataSyncApplication
+
+    EOC
+  }
+}
+data "oci_functions_functions" "test_deploy_ErrorDigestFunction" {
+     depends_on = [null_resource.deploy_ErrorDigestFunction]
+    application_id=oci_functions_application.export_DataSyncApplication.id
+    display_name   = "errordigestfunction"
+
+
 }
 output "list_populatedatastreamfunction" {
         value = data.oci_functions_functions.test_deploy_PopulateDataStreamFunction.functions.0.id
@@ -23,3 +23,22 @@ resource oci_ons_subscription export_subscription_1 {
   topic_id = oci_ons_notification_topic.export_ErrorTopic.id
 }
 
+resource oci_ons_notification_topic export_RetryJobTopic {
+  compartment_id = var.compartment_ocid
+
+  description = "Topic that runs the steps of asynchronous RetryFunction jobs"
+  freeform_tags = {
+  }
+  name = "RetryJobTopic"
+}
+
+resource oci_ons_subscription export_RetryJobSubscription {
+  compartment_id = var.compartment_ocid
+
+  delivery_policy = "{\"backoffRetryPolicy\":{\"maxRetryDuration\":7200000,\"policyType\":\"EXPONENTIAL\"}}"
+  endpoint        = data.oci_functions_functions.test_deploy_RetryFunction.functions[0].id
+  freeform_tags = {
+  }
+  protocol = "ORACLE_FUNCTIONS"
+  topic_id = oci_ons_notification_topic.export_RetryJobTopic.id
+}
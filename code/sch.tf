@@ -18,13 +18,13 @@ resource oci_sch_service_connector export_ServerUnavailableToNotificationsConnec
     stream_id = oci_streaming_stream.export_ServerUnavailableStream.id
   }
   state = "ACTIVE"
+  # ErrorDigestFunction sends one notification to ErrorTopic per target host and status code of each batch
   target {
-  
-    enable_formatted_messaging = "false"
-   
-    kind = "notifications"
-   
-    topic_id = oci_ons_notification_topic.export_ErrorTopic.id
+
+    batch_time_in_sec = var.error_digest_window_seconds
+    function_id       = data.oci_functions_functions.test_deploy_ErrorDigestFunction.functions[0].id
+    kind              = "functions"
+
   }
 }
 
@@ -44,13 +44,13 @@ resource oci_sch_service_connector export_UnrecoverableErrorToNotificationsConne
     stream_id = oci_streaming_stream.export_UnrecoverableErrorStream.id
   }
   state = "ACTIVE"
+  # ErrorDigestFunction sends one notification to ErrorTopic per target host and status code of each batch
   target {
-    
-    enable_formatted_messaging = "false"
-   
-    kind = "notifications"
-    
-    topic_id = oci_ons_notification_topic.export_ErrorTopic.id
+
+    batch_time_in_sec = var.error_digest_window_seconds
+    function_id       = data.oci_functions_functions.test_deploy_ErrorDigestFunction.functions[0].id
+    kind              = "functions"
+
   }
 }
 
@@ -32,6 +32,38 @@ variable "key_management_endpoint" {
 
 }
 
+variable "payload_encryption" {
+  description = "Set to true to encrypt the targetRestApiPayload of the messages stored in the streams, with data keys generated by SyncDataEncryptionKey."
+  type        = string
+  default     = "false"
+}
 
+variable "stream_transport" {
+  description = "Transport used by the Functions to produce and consume stream messages. rest (default) or kafka."
+  type        = string
+  default     = "rest"
+}
 
+variable "kafka_bootstrap_servers" {
+  description = "Kafka bootstrap servers of the stream pool holding the streams, used by the Kafka transport."
+  type        = string
+  default     = ""
+}
 
+variable "kafka_sasl_username" {
+  description = "SASL username for the Kafka transport, in the form <tenancy name>/<user name>/<stream pool OCID>."
+  type        = string
+  default     = ""
+}
+
+variable "kafka_auth_token_secret_name" {
+  description = "Name of the Vault secret, in the DataSync vault, that holds the auth token of the user in kafka_sasl_username. It is used as the SASL password for the Kafka transport."
+  type        = string
+  default     = ""
+}
+
+variable "error_digest_window_seconds" {
+  description = "Time window over which the Service Connectors batch the error stream messages into one call of ErrorDigestFunction, which sends one notification per error stream, target host and status code of the window."
+  type        = number
+  default     = 60
+}